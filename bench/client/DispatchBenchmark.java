@@ -0,0 +1,93 @@
+package client;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tags.Decode;
+import tags.Encode;
+import tags.Tags;
+
+/**
+ * The classification step of ChatFrame.ChatRoom: a peer message goes through
+ * {@link TagDispatcher} to a handler that decodes it. The table mirrors
+ * ChatRoom's default handlers, with the Swing and database work left out so
+ * only routing and decoding are measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+	@Param({ "chat", "typing", "reaction", "edit", "delete", "file", "close", "unknown", "mixed" })
+	public String traffic;
+
+	private TagDispatcher dispatcher;
+	private String[] messages;
+	private int next;
+	// what the last handler produced, returned so the decode is not optimized away
+	private Object sink;
+
+	@Setup
+	public void setup() {
+		dispatcher = new TagDispatcher(msg -> sink = msg);
+		dispatcher.register(Tags.CHAT_MSG_OPEN_TAG, msg -> sink = Decode.getMessage(msg));
+		dispatcher.register(Tags.TYPING_OPEN_TAG, msg -> sink = Decode.getTypingPayload(msg));
+		dispatcher.register(Tags.CHAT_REACTION_OPEN_TAG, msg -> sink = Decode.getReactionPayload(msg));
+		dispatcher.register(Tags.CHAT_EDIT_OPEN_TAG, msg -> sink = Decode.getEditPayload(msg));
+		dispatcher.register(Tags.CHAT_DELETE_OPEN_TAG, msg -> sink = Decode.getDeletePayload(msg));
+		dispatcher.register(Tags.SESSION_ACCEPT_OPEN_TAG, msg -> sink = Decode.getAllUser(msg));
+		dispatcher.register(Tags.FILE_REQ_OPEN_TAG, msg -> sink = Decode.getFileName(msg));
+		dispatcher.register(Tags.FILE_REQ_ACK_OPEN_TAG, msg -> sink = Decode.checkFeedBack(msg));
+		dispatcher.registerExact(Tags.CHAT_CLOSE_TAG, msg -> sink = msg);
+		dispatcher.registerExact(Tags.CHAT_CLEAR_TAG, msg -> sink = msg);
+		dispatcher.registerExact(Tags.VIDEO_CALL_START_TAG, msg -> sink = msg);
+		dispatcher.registerExact(Tags.VIDEO_CALL_END_TAG, msg -> sink = msg);
+		dispatcher.registerExact(Tags.FILE_DATA_BEGIN_TAG, msg -> sink = msg);
+		dispatcher.registerExact(Tags.FILE_DATA_CLOSE_TAG, msg -> sink = msg);
+
+		String chat = Encode.sendMessage("Are we still on for lunch today?");
+		String typing = Encode.sendTyping(true);
+		String reaction = Encode.sendReaction("Are we still on for lunch today?", "like");
+		String edit = Encode.sendEdit("See you at 12", "See you at 1");
+		String delete = Encode.sendDelete("See you at 1");
+		String file = Encode.sendFile("report-2024.pdf");
+		String close = Tags.CHAT_CLOSE_TAG;
+		String unknown = "<NOT_A_TAG>hello</NOT_A_TAG>";
+		messages = switch (traffic) {
+			case "chat" -> new String[] { chat };
+			case "typing" -> new String[] { typing };
+			case "reaction" -> new String[] { reaction };
+			case "edit" -> new String[] { edit };
+			case "delete" -> new String[] { delete };
+			case "file" -> new String[] { file };
+			case "close" -> new String[] { close };
+			case "unknown" -> new String[] { unknown };
+			// a conversation: mostly typing indicators and messages
+			case "mixed" -> new String[] { typing, typing, chat, typing, typing, chat, reaction, typing, edit,
+					chat, typing, delete, chat, file, typing, chat };
+			default -> throw new IllegalArgumentException(traffic);
+		};
+	}
+
+	@Benchmark
+	public Object dispatch() throws Exception {
+		String msg = messages[next];
+		next = next + 1 == messages.length ? 0 : next + 1;
+		dispatcher.dispatch(msg);
+		return sink;
+	}
+}
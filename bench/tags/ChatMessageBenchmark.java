@@ -0,0 +1,92 @@
+package tags;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Chat message encode and decode from 10 characters up to
+ * {@link Tags#MAX_MSG_SIZE}. The text is plain ASCII, Vietnamese (multi-byte
+ * in UTF-8) or markup full of characters that have to be escaped. The
+ * binary frame is also run through {@link FrameCompressor}, whose counters
+ * give the compression ratio for each text.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChatMessageBenchmark {
+
+	@Param({ "10", "100", "1024", "16384", "131072", "" + Tags.MAX_MSG_SIZE })
+	public int size;
+
+	@Param({ "ascii", "vietnamese", "markup" })
+	public String text;
+
+	private String content;
+	private String msg;
+	private byte[] binary;
+	private byte[] deflated;
+	// threshold 0 so even short messages are attempted; they go as they are if that is smaller
+	private final FrameCompressor compressor = new FrameCompressor(0, new FrameCompressor.Metrics());
+
+	@Setup
+	public void setup() {
+		String unit = switch (text) {
+			case "ascii" -> "The quick brown fox jumps over the lazy dog. ";
+			case "vietnamese" -> "Xin chào, hôm nay trời đẹp quá! Chúng ta đi uống cà phê nhé? ";
+			case "markup" -> "<b>a & b</b> <CHAT_MSG> ";
+			default -> throw new IllegalArgumentException(text);
+		};
+		content = unit.repeat(size / unit.length() + 1).substring(0, size);
+		msg = Encode.sendMessage(content);
+		binary = BinaryCodec.encode(msg);
+		deflated = compressor.compress(binary);
+		if (!content.equals(Decode.getMessage(msg))) {
+			throw new IllegalStateException("Round trip failed for " + text + " " + size);
+		}
+	}
+
+	@Benchmark
+	public String encode() {
+		return Encode.sendMessage(content);
+	}
+
+	@Benchmark
+	public String decode() {
+		return Decode.getMessage(msg);
+	}
+
+	@Benchmark
+	public byte[] binaryEncode() {
+		return BinaryCodec.encode(msg);
+	}
+
+	@Benchmark
+	public BinaryCodec.Frame binaryDecode() throws IOException {
+		return BinaryCodec.decode(binary);
+	}
+
+	@Benchmark
+	public byte[] binaryDeflate() {
+		return compressor.compress(binary);
+	}
+
+	@Benchmark
+	public BinaryCodec.Frame binaryInflate() throws IOException {
+		return compressor.inflate(BinaryCodec.decode(deflated));
+	}
+}
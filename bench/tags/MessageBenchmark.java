@@ -0,0 +1,107 @@
+package tags;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import data.Peer;
+
+/**
+ * Encode and decode cost of one typical message of every type, as tag text
+ * and as a {@link BinaryCodec} frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+
+	private static Peer peer(String name, String host, int port) {
+		Peer p = new Peer();
+		p.setPeer(name, host, port);
+		return p;
+	}
+
+	public enum Sample {
+		SESSION_REQ(() -> Encode.getCreateAccount("alice", "10001"), Decode::getUser),
+		KEEP_ALIVE(() -> Encode.sendRequest("alice", 42), Decode::getKeepAlivePayload),
+		SUBSCRIBE(() -> Encode.sendSubscribe(42), Decode::getSubscribeVersion),
+		EXIT(() -> Encode.exit("alice"), Decode::getKeepAlivePayload),
+		SESSION_DELTA(() -> Encode.getPresenceDelta(41, 42,
+				List.of(peer("bob", "10.0.0.2", 10002), peer("carol", "10.0.0.3", 10003)), List.of("dave")),
+				Decode::getPresenceDelta),
+		CHAT_REQ(() -> Encode.sendRequestChat("alice"), Decode::getNameRequestChat),
+		CHAT_MSG(() -> Encode.sendMessage("Are we still on for lunch today?"), Decode::getMessage),
+		CHAT_EDIT(() -> Encode.sendEdit("See you at 12", "See you at 1"), Decode::getEditPayload),
+		CHAT_DELETE(() -> Encode.sendDelete("See you at 1"), Decode::getDeletePayload),
+		CHAT_REACTION(() -> Encode.sendReaction("See you at 1", "like"), Decode::getReactionPayload),
+		CHAT_CLEAR(Encode::sendClearChat, Decode::getLeadingTag),
+		TYPING(() -> Encode.sendTyping(true), Decode::getTypingPayload),
+		FILE_REQ(() -> Encode.sendFile("report-2024.pdf"), Decode::getFileName),
+		GROUP_CREATE(() -> Encode.sendGroupCreate("weekend trip", "alice"), Decode::getGroupCreatePayload),
+		GROUP_INVITE(() -> Encode.sendGroupInvite(42, "weekend trip", "bob"), Decode::getGroupInvitePayload),
+		GROUP_JOIN(() -> Encode.sendGroupJoin(42, "bob"), Decode::getGroupJoinPayload),
+		GROUP_MSG(() -> Encode.sendGroupMessage(42, "alice", "hello everyone"), Decode::getGroupMessagePayload);
+
+		final Supplier<String> encode;
+		final Function<String, Object> decode;
+
+		Sample(Supplier<String> encode, Function<String, ?> decode) {
+			this.encode = encode;
+			this.decode = decode::apply;
+		}
+	}
+
+	@Param
+	public Sample type;
+
+	private String msg;
+	private BinaryCodec.Frame frame;
+	private byte[] binary;
+
+	@Setup
+	public void setup() {
+		msg = type.encode.get();
+		frame = BinaryCodec.toFrame(msg);
+		binary = BinaryCodec.encode(frame);
+		if (type.decode.apply(msg) == null) {
+			throw new IllegalStateException("Sample does not decode: " + msg);
+		}
+	}
+
+	@Benchmark
+	public String encode() {
+		return type.encode.get();
+	}
+
+	@Benchmark
+	public Object decode() {
+		return type.decode.apply(msg);
+	}
+
+	@Benchmark
+	public byte[] binaryEncode() {
+		return BinaryCodec.encode(frame);
+	}
+
+	@Benchmark
+	public BinaryCodec.Frame binaryDecode() throws IOException {
+		return BinaryCodec.decode(binary);
+	}
+}
@@ -0,0 +1,92 @@
+package tags;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import data.Peer;
+import data.PeerList;
+
+/**
+ * Peer list cost from 10 to 100k online users: the full SESSION_ACCEPT list
+ * (into new Peer objects and into a reused {@link PeerList}) and a
+ * SESSION_DELTA reset carrying the same peers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PeerListBenchmark {
+
+	@Param({ "10", "100", "1000", "10000", "100000" })
+	public int peers;
+
+	private List<Peer> online;
+	private String accept;
+	private String delta;
+	private byte[] binary;
+	private final PeerList reused = new PeerList();
+
+	@Setup
+	public void setup() {
+		online = new ArrayList<>(peers);
+		for (int i = 0; i < peers; i++) {
+			Peer p = new Peer();
+			p.setPeer("user" + i, "10." + (i >> 16 & 255) + "." + (i >> 8 & 255) + "." + (i & 255),
+					10000 + i % 50000);
+			online.add(p);
+		}
+		accept = Encode.getSessionAccept(online);
+		delta = Encode.getPresenceDelta(-1, 1, online, List.of());
+		binary = BinaryCodec.encode(accept);
+		if (!Decode.getAllUser(accept, reused) || reused.size() != peers) {
+			throw new IllegalStateException("Peer list does not decode");
+		}
+	}
+
+	@Benchmark
+	public String encodeAccept() {
+		return Encode.getSessionAccept(online);
+	}
+
+	@Benchmark
+	public ArrayList<Peer> decodeAccept() {
+		return Decode.getAllUser(accept);
+	}
+
+	@Benchmark
+	public PeerList decodeAcceptReused() {
+		Decode.getAllUser(accept, reused);
+		return reused;
+	}
+
+	@Benchmark
+	public Decode.PresenceDelta decodeDelta() {
+		return Decode.getPresenceDelta(delta);
+	}
+
+	@Benchmark
+	public byte[] binaryEncode() {
+		return BinaryCodec.encode(accept);
+	}
+
+	@Benchmark
+	public BinaryCodec.Frame binaryDecode() throws IOException {
+		return BinaryCodec.decode(binary);
+	}
+}
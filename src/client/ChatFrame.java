@@ -20,9 +20,12 @@ import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 
 import data.DataFile;
+import data.PeerList;
 import database.MessageDAO;
 import tags.Decode;
 import tags.Encode;
+import tags.Handshake;
+import tags.MessageStream;
 import tags.Tags;
 
 import static tags.Encode.sendMessage;
@@ -75,13 +78,29 @@ public class ChatFrame extends JFrame {
     }
 
     public ChatFrame(String user, String guest, Socket socket, int port, int portVoice) throws Exception {
+        this(user, guest, socket, port, portVoice, null);
+    }
+
+    /**
+     * Opens the chat for the side that requested it
+     *
+     * @param agreed Handshake settled from the peer's offer, announced as the
+     *               first message; null if the peer made no offer
+     */
+    public ChatFrame(String user, String guest, Socket socket, int port, Handshake agreed) throws Exception {
+        this(user, guest, socket, port, port, agreed);
+    }
+
+    private ChatFrame(String user, String guest, Socket socket, int port, int portVoice, Handshake agreed)
+            throws Exception {
         this.nameUser = user;
         this.nameGuest = guest;
         this.socketChat = socket;
         this.port = port;
         this.portVoice = portVoice;
 
-        this.chat = new ChatRoom(socketChat, nameUser, nameGuest);
+        this.chat = new ChatRoom(socketChat, nameUser, nameGuest, agreed);
+        chat.registerDefaultHandlers();
 
         EventQueue.invokeLater(() -> {
             initializeUI();
@@ -927,7 +946,7 @@ public class ChatFrame extends JFrame {
             createVideoWindow();
 
             // Notify the peer that we're initiating a video call
-            String videoCallMsg = "<VIDEO_CALL_START>";
+            String videoCallMsg = Tags.VIDEO_CALL_START_TAG;
             chat.sendMessage(videoCallMsg);
 
             // Initialize video socket (use different port than voice)
@@ -995,7 +1014,7 @@ public class ChatFrame extends JFrame {
             updateChat_notify("📹 Video call ended");
 
             // Notify peer that call is ended
-            chat.sendMessage("<VIDEO_CALL_END>");
+            chat.sendMessage(Tags.VIDEO_CALL_END_TAG);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -1070,16 +1089,24 @@ public class ChatFrame extends JFrame {
 
     public class ChatRoom extends Thread {
         private Socket connect;
-        private ObjectOutputStream outPeer;
-        private ObjectInputStream inPeer;
+        private MessageStream peer;
+        // Handshake to announce on connect, or null to wait for the peer's HELLO
+        private final Handshake announce;
+        private boolean helloSent = false;
         private boolean finishReceive = false;
         private long sizeReceiveBytes = 0;
         private String nameFileReceive = "";
         private FileOutputStream fileReceiveStream;
         private File fileReceiveTemp;
+        private final TagDispatcher handlers = new TagDispatcher(this::handleUnknownMessage);
 
         public ChatRoom(Socket connection, String name, String guest) {
+            this(connection, name, guest, null);
+        }
+
+        public ChatRoom(Socket connection, String name, String guest, Handshake announce) {
             this.connect = connection;
+            this.announce = announce;
         }
 
         @Override
@@ -1087,12 +1114,15 @@ public class ChatFrame extends JFrame {
             System.out.println("Chat Room start");
 
             try {
-                // Initialize both streams once at the start
-                // Important: Output stream must be created first to write stream header
-                outPeer = new ObjectOutputStream(connect.getOutputStream());
-                outPeer.flush();
-
-                inPeer = new ObjectInputStream(connect.getInputStream());
+                // Output first: the link writes the stream header the peer waits for
+                MessageStream stream = new MessageStream(connect);
+                synchronized (this) {
+                    if (announce != null) {
+                        stream.sendHello(announce);
+                        helloSent = true;
+                    }
+                    peer = stream;
+                }
 
                 while (!isStop) {
                     try {
@@ -1108,7 +1138,7 @@ public class ChatFrame extends JFrame {
         }
 
         private void handleIncomingMessage() throws Exception {
-            Object obj = inPeer.readObject();
+            Object obj = peer.read();
 
             if (obj instanceof String) {
                 String msgObj = obj.toString();
@@ -1132,60 +1162,93 @@ public class ChatFrame extends JFrame {
             }
         }
 
+        /**
+         * Registers the handler for messages whose first tag is {@code leadingTag}.
+         * Dispatch is one map lookup, so adding message types costs nothing per message.
+         *
+         * @param leadingTag First tag of the message, e.g. {@link Tags#CHAT_MSG_OPEN_TAG}
+         * @param handler    Handler, replacing any previous one for the tag
+         */
+        public void registerHandler(String leadingTag, TagHandler handler) {
+            handlers.register(leadingTag, handler);
+        }
+
+        /**
+         * Registers the handler for a message that is a single fixed tag, such as
+         * {@link Tags#CHAT_CLOSE_TAG}; anything after the tag makes it unknown
+         *
+         * @param tag     Whole message
+         * @param handler Handler
+         */
+        public void registerExactHandler(String tag, TagHandler handler) {
+            handlers.registerExact(tag, handler);
+        }
+
+        // Called once the room is constructed, before it starts reading
+        private void registerDefaultHandlers() {
+            registerHandler(Tags.CHAT_MSG_OPEN_TAG, this::handleChatMessage);
+            registerHandler(Tags.TYPING_OPEN_TAG, this::handleTypingMessage);
+            registerHandler(Tags.CHAT_REACTION_OPEN_TAG, this::handleReactionMessage);
+            registerHandler(Tags.CHAT_EDIT_OPEN_TAG, this::handleEditMessage);
+            registerHandler(Tags.CHAT_DELETE_OPEN_TAG, this::handleDeleteMessage);
+            registerHandler(Tags.SESSION_ACCEPT_OPEN_TAG, this::handleSessionAccept);
+            registerHandler(Tags.FILE_REQ_OPEN_TAG, this::handleFileRequest);
+            registerHandler(Tags.FILE_REQ_ACK_OPEN_TAG, this::handleFileFeedback);
+            registerExactHandler(Tags.CHAT_CLOSE_TAG, msg -> handleChatClose());
+            registerExactHandler(Tags.CHAT_CLEAR_TAG, msg -> handleClearChat());
+            registerExactHandler(Tags.VIDEO_CALL_START_TAG, msg -> handleVideoCallStart());
+            registerExactHandler(Tags.VIDEO_CALL_END_TAG, msg -> handleVideoCallEnd());
+            registerExactHandler(Tags.FILE_DATA_BEGIN_TAG, msg -> handleFileDataBegin());
+            registerExactHandler(Tags.FILE_DATA_CLOSE_TAG, msg -> handleFileDataClose());
+            registerHandler(Tags.HELLO_OPEN_TAG, this::handleHello);
+        }
+
         private void handleStringMessage(String msgObj) throws Exception {
-            if (msgObj.startsWith("<SESSION_ACCEPT>")) {
-                handleSessionAccept(msgObj);
-            } else if (msgObj.equals(Tags.CHAT_CLOSE_TAG)) {
-                handleChatClose();
-            } else if (Decode.isEdit(msgObj)) {
-                handleEditMessage(msgObj);
-            } else if (Decode.isTyping(msgObj)) {
-                handleTypingMessage(msgObj);
-            } else if (Decode.isReaction(msgObj)) {
-                handleReactionMessage(msgObj);
-            } else if (Decode.isDelete(msgObj)) {
-                handleDeleteMessage(msgObj);
-            } else if (msgObj.equals(Tags.CHAT_CLEAR_TAG)) {
-                handleClearChat();
-            } else if (msgObj.equals("<VIDEO_CALL_START>")) {
-                handleVideoCallStart();
-            } else if (msgObj.equals("<VIDEO_CALL_END>")) {
-                handleVideoCallEnd();
-            } else if (Decode.checkFile(msgObj)) {
-                handleFileRequest(msgObj);
-            } else if (Decode.checkFeedBack(msgObj)) {
-                handleFileFeedback();
-            } else if (msgObj.equals(Tags.FILE_DATA_BEGIN_TAG)) {
-                handleFileDataBegin();
-            } else if (msgObj.equals(Tags.FILE_DATA_CLOSE_TAG)) {
-                handleFileDataClose();
-            } else {
-                String message = Decode.getMessage(msgObj);
-                if (message != null && !message.isEmpty()) {
-                    updateChat_receive(message);
-                    MessageDAO.saveMessage(nameGuest, nameUser, message);
-                } else {
-                    System.out.println("Failed to decode message: " + msgObj);
+            handlers.dispatch(msgObj);
+        }
+
+        // The peer's HELLO ends its text framing. The side that accepted the chat
+        // learns the agreed handshake here and answers with its own HELLO.
+        private void handleHello(String msgObj) throws Exception {
+            Handshake hello = Decode.getHello(msgObj);
+            if (hello == null) {
+                handleUnknownMessage(msgObj);
+                return;
+            }
+            Handshake agreed = Handshake.local().negotiate(hello);
+            peer.upgradeInput(agreed);
+            synchronized (this) {
+                if (!helloSent) {
+                    peer.sendHello(agreed);
+                    helloSent = true;
                 }
             }
         }
 
-        private void handleSessionAccept(String msgObj) throws Exception {
-            System.out.println("SESSION_ACCEPT received");
-            // Parse peers from message
-            String[] peers = msgObj.split("<PEER>");
-            for (String p : peers) {
-                if (p.contains("<PEER_NAME>") && p.contains("<IP>") && p.contains("<PORT>")) {
-                    String name = extractXmlValue(p, "PEER_NAME");
-                    String ip = extractXmlValue(p, "IP").replace("/", "").trim();
-                    int port = Integer.parseInt(extractXmlValue(p, "PORT"));
-                    System.out.println("Peer found: " + name + " @ " + ip + ":" + port);
-                }
+        private void handleChatMessage(String msgObj) {
+            String message = Decode.getMessage(msgObj);
+            if (message != null && !message.isEmpty()) {
+                updateChat_receive(message);
+                MessageDAO.saveMessage(nameGuest, nameUser, message);
+            } else {
+                handleUnknownMessage(msgObj);
             }
         }
 
-        private String extractXmlValue(String xml, String tag) {
-            return xml.split("<" + tag + ">")[1].split("</" + tag + ">")[0];
+        private void handleUnknownMessage(String msgObj) {
+            System.out.println("Failed to decode message: " + msgObj);
+        }
+
+        private void handleSessionAccept(String msgObj) throws Exception {
+            System.out.println("SESSION_ACCEPT received");
+            PeerList peers = new PeerList();
+            if (!Decode.getAllUser(msgObj, peers)) {
+                handleUnknownMessage(msgObj);
+                return;
+            }
+            for (int i = 0; i < peers.size(); i++) {
+                System.out.println("Peer found: " + peers.getName(i) + " @ " + peers.getHost(i) + ":" + peers.getPort(i));
+            }
         }
 
         private void handleVideoCallStart() {
@@ -1251,6 +1314,7 @@ public class ChatFrame extends JFrame {
         private void handleEditMessage(String msgObj) {
             Decode.EditPayload payload = Decode.getEditPayload(msgObj);
             if (payload == null) {
+                handleUnknownMessage(msgObj);
                 return;
             }
 
@@ -1269,6 +1333,7 @@ public class ChatFrame extends JFrame {
         private void handleDeleteMessage(String msgObj) {
             Decode.DeletePayload payload = Decode.getDeletePayload(msgObj);
             if (payload == null) {
+                handleUnknownMessage(msgObj);
                 return;
             }
 
@@ -1285,6 +1350,7 @@ public class ChatFrame extends JFrame {
         private void handleReactionMessage(String msgObj) {
             Decode.ReactionPayload payload = Decode.getReactionPayload(msgObj);
             if (payload == null) {
+                handleUnknownMessage(msgObj);
                 return;
             }
             SwingUtilities.invokeLater(() -> {
@@ -1313,6 +1379,7 @@ public class ChatFrame extends JFrame {
         private void handleTypingMessage(String msgObj) {
             Decode.TypingPayload payload = Decode.getTypingPayload(msgObj);
             if (payload == null) {
+                handleUnknownMessage(msgObj);
                 return;
             }
             SwingUtilities.invokeLater(() -> setPeerTyping(payload.on()));
@@ -1328,7 +1395,12 @@ public class ChatFrame extends JFrame {
         }
 
         private void handleFileRequest(String msgObj) throws Exception {
-            nameFileReceive = msgObj.substring(10, msgObj.length() - 11);
+            String fileName = Decode.getFileName(msgObj);
+            if (fileName == null) {
+                handleUnknownMessage(msgObj);
+                return;
+            }
+            nameFileReceive = fileName;
             finishReceive = false;
             sizeReceiveBytes = 0;
 
@@ -1349,7 +1421,11 @@ public class ChatFrame extends JFrame {
             sendMessage(ack);
         }
 
-        private void handleFileFeedback() throws Exception {
+        private void handleFileFeedback(String msgObj) throws Exception {
+            if (!Decode.checkFeedBack(msgObj)) {
+                handleUnknownMessage(msgObj);
+                return;
+            }
             btnSendFile.setEnabled(false);
             new Thread(() -> {
                 try {
@@ -1467,10 +1543,24 @@ public class ChatFrame extends JFrame {
         }
 
         public synchronized void sendMessage(Object obj) throws Exception {
-            if (outPeer != null) {
-                outPeer.writeObject(obj);
-                outPeer.flush();
+            if (peer == null) {
+                return;
+            }
+            if (isBatchable(obj)) {
+                peer.writeBatched(obj);
+            } else {
+                peer.write(obj);
+            }
+        }
+
+        // Typing indicators, reactions and file chunks may wait a few milliseconds
+        // for company; chat text and call or file control go out at once
+        private boolean isBatchable(Object obj) {
+            if (obj instanceof DataFile) {
+                return true;
             }
+            String msg = (String) obj;
+            return msg.startsWith(Tags.TYPING_OPEN_TAG) || msg.startsWith(Tags.CHAT_REACTION_OPEN_TAG);
         }
 
         public void stopChat() {
@@ -5,11 +5,18 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.*;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.swing.SwingUtilities;
 
 import data.Peer;
+import data.PeerList;
 import database.UserDAO;
 import tags.Decode;
 import tags.Encode;
+import tags.Handshake;
+import tags.MessageStream;
 import tags.Tags;
 
 public class Client {
@@ -25,10 +32,26 @@ public class Client {
 	private boolean isRunning = true;
 
 	private static final int TIMEOUT = 10000;
-
+	private static final int READ_TIMEOUT = 2 * TIMEOUT;
+	private static final int CONNECT_TIMEOUT = 5000;
+	private static final int MIN_BACKOFF = 1000;
+	// The longest wait, jitter included (MAX_BACKOFF * 1.5), stays under the
+	// server's 35 s peer timeout so a retrying client is not expired meanwhile
+	private static final int MAX_BACKOFF = 20000;
+	// A link must stay up this long before a drop is retried from MIN_BACKOFF
+	private static final int STABLE_LINK = READ_TIMEOUT;
+
+	// Last presence version applied, 0 until the first delta arrives
+	private long presenceVersion = 0;
+	private final LinkedHashMap<String, Peer> peersByName = new LinkedHashMap<>();
+	private final PeerList peerBuffer = new PeerList();
+
+	// Long-lived control connection to the server, replaced on reconnect
+	private final Object channelLock = new Object();
 	private Socket socketClient;
-	private ObjectInputStream in;
-	private ObjectOutputStream out;
+	private volatile MessageStream channel;
+	// Set once the server answered HELLO with something else; it predates the handshake
+	private boolean legacyServer = false;
 
 	public String getUsername() {
 		return username;
@@ -48,7 +71,9 @@ public class Client {
 		System.out.println(" → Client Port : " + portClient);
 		System.out.println(" → Username    : " + username);
 
-		this.clientList = Decode.getAllUser(rawUserList);
+		if (Decode.getAllUser(rawUserList, peerBuffer)) {
+			setPeers(peerBuffer);
+		}
 
 		// Thread update friend list
 		new Thread(this::updateFriendList).start();
@@ -56,8 +81,9 @@ public class Client {
 		// Start listening client
 		server = new ClientServer(this);
 
-		// Start periodic request thread
-		new RequestThread().start();
+		// Start control connection to the server
+		new ControlChannel().start();
+		new KeepAliveThread().start();
 	}
 
 	// ========================= GETTER =========================
@@ -65,49 +91,212 @@ public class Client {
 		return clientPort;
 	}
 
-	// ========================= SEND REQUEST TO SERVER =========================
-	private void sendRequest() throws Exception {
-		socketClient = new Socket();
-		SocketAddress address = new InetSocketAddress(serverIP, serverPort);
+	// ========================= CONTROL CONNECTION =========================
+	// Opens the control connection, resumes the session registered at login
+	// and subscribes to pushed presence changes
+	private boolean connect() throws Exception {
+		Socket socket = new Socket();
+		socket.connect(new InetSocketAddress(serverIP, serverPort), CONNECT_TIMEOUT);
+		socket.setSoTimeout(READ_TIMEOUT);
+		socket.setKeepAlive(true);
+
+		MessageStream stream = new MessageStream(socket);
+		if (!legacyServer) {
+			negotiate(stream);
+		}
 
-		socketClient.connect(address);
+		stream.write(Encode.getCreateAccount(username, String.valueOf(clientPort)));
+		String msg = stream.readString();
+		if (msg.equals(Tags.SESSION_DENY_TAG)) {
+			socket.close();
+			return false;
+		}
+		if (msg.equals(Tags.SESSION_BUSY_TAG)) {
+			// Throttled: retry after the usual backoff
+			socket.close();
+			throw new IOException("Server busy");
+		}
 
-		// Send request
-		out = new ObjectOutputStream(socketClient.getOutputStream());
-		out.writeObject(Encode.sendRequest(username));
-		out.flush();
+		stream.write(Encode.sendSubscribe(presenceVersion));
 
-		// Receive response
-		in = new ObjectInputStream(socketClient.getInputStream());
-		String msg = (String) in.readObject();
+		synchronized (channelLock) {
+			socketClient = socket;
+			channel = stream;
+		}
+		return true;
+	}
 
-		// Debug
-		System.out.println("Server Response: " + msg);
+	// Offers our capabilities and waits for the server's choice before sending
+	// anything else, so the server knows where its input changes framing
+	private void negotiate(MessageStream stream) throws IOException {
+		stream.write(Encode.sendHello(Handshake.local()));
+		String reply = stream.readString();
+		Handshake agreed = Decode.getHello(reply);
+		if (agreed == null) {
+			// An older server takes HELLO for a list request and sends the peer list
+			legacyServer = true;
+			return;
+		}
+		stream.upgradeInput(agreed);
+		stream.upgradeOutput(agreed);
+	}
 
-		clientList = Decode.getAllUser(msg);
+	// ========================= SEND REQUEST TO SERVER =========================
+	private void sendRequest() throws Exception {
+		synchronized (channelLock) {
+			if (channel == null) {
+				return;
+			}
+			channel.write(Encode.sendRequest(username, presenceVersion));
+		}
+	}
 
-		in.close();
-		socketClient.close();
+	private void closeChannel() {
+		synchronized (channelLock) {
+			if (socketClient != null) {
+				try {
+					socketClient.close();
+				} catch (IOException ignored) {
+					// Ignore cleanup exceptions
+				}
+			}
+			socketClient = null;
+			channel = null;
+		}
+	}
 
-		// Update friend list
-		new Thread(this::updateFriendList).start();
+	// ========================= CONTROL CHANNEL THREAD =========================
+	// Reads replies and pushed presence; reconnects with backoff when the link drops
+	private class ControlChannel extends Thread {
+		@Override
+		public void run() {
+			int backoff = MIN_BACKOFF;
+			while (isRunning) {
+				long connectedAt = 0;
+				try {
+					if (!connect()) {
+						System.err.println("Server denied session for " + username);
+						return;
+					}
+					connectedAt = System.currentTimeMillis();
+					MessageStream stream = channel;
+					while (isRunning) {
+						applyPresence(stream.readString());
+					}
+				} catch (Exception e) {
+					closeChannel();
+					if (!isRunning) {
+						return;
+					}
+					if (connectedAt > 0 && System.currentTimeMillis() - connectedAt >= STABLE_LINK) {
+						backoff = MIN_BACKOFF;
+					} else if (connectedAt > 0) {
+						// A server that accepts the login and then closes, like the legacy
+						// blocking one, serves one request per connection: log in again at
+						// the keep-alive interval rather than backing off past its timeout
+						if (!sleepQuietly(TIMEOUT)) {
+							return;
+						}
+						continue;
+					}
+					System.err.println("Connection lost. Retrying in " + backoff + " ms...");
+					if (!sleepQuietly(backoff + ThreadLocalRandom.current().nextInt(backoff / 2 + 1))) {
+						return;
+					}
+					backoff = Math.min(backoff * 2, MAX_BACKOFF);
+				}
+			}
+		}
+	}
+
+	// false when interrupted, meaning the client is shutting down
+	private static boolean sleepQuietly(long millis) {
+		try {
+			Thread.sleep(millis);
+			return true;
+		} catch (InterruptedException e) {
+			return false;
+		}
 	}
 
-	// ========================= PERIODIC REQUEST THREAD =========================
-	private class RequestThread extends Thread {
+	// ========================= PERIODIC KEEP-ALIVE THREAD =========================
+	private class KeepAliveThread extends Thread {
 		@Override
 		public void run() {
 			while (isRunning) {
 				try {
 					Thread.sleep(TIMEOUT);
 					sendRequest();
+				} catch (InterruptedException e) {
+					return;
 				} catch (Exception e) {
-					System.err.println("Connection lost. Retrying...");
+					// Reader thread notices the broken link and reconnects
+					closeChannel();
 				}
 			}
 		}
 	}
 
+	// ========================= PRESENCE =========================
+	private void applyPresence(String msg) {
+		Decode.PresenceDelta delta = Decode.getPresenceDelta(msg);
+		if (delta == null) {
+			// Server without delta support answered with a full list
+			if (Decode.getAllUser(msg, peerBuffer)) {
+				setPeers(peerBuffer);
+				new Thread(this::updateFriendList).start();
+			}
+			return;
+		}
+
+		if (delta.reset()) {
+			peersByName.clear();
+			presenceVersion = delta.version();
+		} else if (delta.version() <= presenceVersion) {
+			return; // Already applied
+		} else if (delta.since() <= presenceVersion) {
+			presenceVersion = delta.version();
+		}
+		// A delta starting after our version leaves a gap: apply it (changes are
+		// idempotent) but keep the version so the next keep-alive fills the gap
+
+		for (Peer p : delta.joined()) {
+			peersByName.put(p.getName(), p);
+		}
+		for (String name : delta.left()) {
+			peersByName.remove(name);
+		}
+		clientList = new ArrayList<>(peersByName.values());
+
+		if (delta.reset()) {
+			new Thread(this::updateFriendList).start();
+			return;
+		}
+		SwingUtilities.invokeLater(() -> {
+			for (Peer p : delta.joined()) {
+				if (!p.getName().equals(username)) {
+					MainFrame.updateFriendMainFrame(p.getName());
+				}
+			}
+			for (String name : delta.left()) {
+				MainFrame.removeFriendMainFrame(name);
+			}
+		});
+	}
+	// Replaces the peer table, keeping the Peer of anyone whose address is unchanged
+	private void setPeers(PeerList peers) {
+		LinkedHashMap<String, Peer> previous = new LinkedHashMap<>(peersByName);
+		peersByName.clear();
+		for (int i = 0; i < peers.size(); i++) {
+			Peer p = previous.get(peers.getName(i));
+			if (p == null || p.getPort() != peers.getPort(i) || !p.getHost().equals(peers.getHost(i))) {
+				p = peers.toPeer(i);
+			}
+			peersByName.put(p.getName(), p);
+		}
+		clientList = new ArrayList<>(peersByName.values());
+	}
+
 	// ========================= INITIAL NEW CHAT =========================
 	public void startChat(String ip, int port, String guest) throws Exception {
 		Socket chatSocket = new Socket(InetAddress.getByName(ip), port);
@@ -126,8 +315,13 @@ public class Client {
 			return;
 		}
 
+		// A peer with the handshake offers its capabilities with the accept; we
+		// pick the common ones and announce them as the first chat message
+		Handshake offer = Decode.getChatAcceptHello(response);
+		Handshake agreed = offer != null ? Handshake.local().negotiate(offer) : null;
+
 		// Open chat window
-		new ChatFrame(username, guest, chatSocket, clientPort);
+		new ChatFrame(username, guest, chatSocket, clientPort, agreed);
 	}
 
 	// ========================= EXIT CLIENT =========================
@@ -135,16 +329,22 @@ public class Client {
 		UserDAO.updateUserStatus(username, "OFFLINE");
 		isRunning = false;
 
-		socketClient = new Socket();
-		SocketAddress addressServer = new InetSocketAddress(serverIP, serverPort);
-		socketClient.connect(addressServer);
-
 		String msg = Encode.exit(username);
 
-		out = new ObjectOutputStream(socketClient.getOutputStream());
-		out.writeObject(msg);
-		out.flush();
-		out.close();
+		synchronized (channelLock) {
+			if (channel != null) {
+				channel.write(msg);
+			} else {
+				// No live control connection: deliver the exit on a one-shot socket
+				Socket socket = new Socket();
+				socket.connect(new InetSocketAddress(serverIP, serverPort), CONNECT_TIMEOUT);
+				ObjectOutputStream exitOut = new ObjectOutputStream(socket.getOutputStream());
+				exitOut.writeObject(msg);
+				exitOut.flush();
+				socket.close();
+			}
+		}
+		closeChannel();
 
 		server.exit();
 	}
@@ -7,6 +7,8 @@ import java.net.ServerSocket;
 import java.net.Socket;
 
 import tags.Decode;
+import tags.Encode;
+import tags.Handshake;
 import tags.Tags;
 
 public class ClientServer {
@@ -67,7 +69,8 @@ public class ClientServer {
 						send.writeObject(Tags.CHAT_DENY_TAG);
 
 					} else if (res == 0) {
-						send.writeObject(Tags.CHAT_ACCEPT_TAG);
+						// The initiator answers the offer with a HELLO as its first chat message
+						send.writeObject(Encode.sendChatAccept(Handshake.local()));
 
 						// mở cửa sổ chat
 						new ChatFrame(username, guestName, connection, port);
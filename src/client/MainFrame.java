@@ -399,6 +399,10 @@ public class MainFrame extends JFrame implements WindowListener {
 		}
 	}
 
+	public static void removeFriendMainFrame(String name) {
+		model.removeElement(name);
+	}
+
 	public static void resetList() {
 		model.clear();
 	}
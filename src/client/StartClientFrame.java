@@ -18,6 +18,7 @@ public class StartClientFrame extends JFrame implements ActionListener {
 
 	private static final String NAME_FAILED = "Tên chỉ chứa chữ cái, số và dấu gạch dưới. Không được bắt đầu bằng số!";
 	private static final String NAME_EXIST = "Tên này đã được sử dụng. Vui lòng chọn tên khác!";
+	private static final String SERVER_BUSY = "Server đang quá tải. Vui lòng thử lại sau ít phút!";
 	private static final String SERVER_NOT_START = "Không thể kết nối tới Server!\nVui lòng kiểm tra lại IP/Port hoặc bật Server.";
 
 	private Pattern checkName = Pattern.compile("^[_a-zA-Z][_a-zA-Z0-9]{0,19}$"); // Tối đa 20 ký tự
@@ -339,6 +340,10 @@ public class StartClientFrame extends JFrame implements ActionListener {
 					JOptionPane.showMessageDialog(this, NAME_EXIST, "Đăng nhập thất bại", JOptionPane.ERROR_MESSAGE);
 					return;
 				}
+				if (msg.equals(Tags.SESSION_BUSY_TAG)) {
+					JOptionPane.showMessageDialog(this, SERVER_BUSY, "Đăng nhập thất bại", JOptionPane.ERROR_MESSAGE);
+					return;
+				}
 				// Thành công → mở MainFrame
 				new MainFrame(IP, portPeer, userName, msg, portServer);
 				dispose();
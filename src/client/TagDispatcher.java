@@ -0,0 +1,63 @@
+package client;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import tags.Decode;
+
+/**
+ * Routes peer messages to a handler chosen by their leading tag. Dispatch is
+ * one scan for the first tag and one map lookup, so adding message types
+ * costs nothing per message. Messages with no handler go to the fallback.
+ */
+public class TagDispatcher {
+
+	private final Map<String, TagHandler> handlers = new ConcurrentHashMap<>();
+	private final TagHandler unknown;
+
+	/**
+	 * @param unknown Handler for messages no registered tag claims
+	 */
+	public TagDispatcher(TagHandler unknown) {
+		this.unknown = unknown;
+	}
+
+	/**
+	 * Registers the handler for messages whose first tag is {@code leadingTag}
+	 *
+	 * @param leadingTag First tag of the message, e.g. {@code Tags.CHAT_MSG_OPEN_TAG}
+	 * @param handler    Handler, replacing any previous one for the tag
+	 */
+	public void register(String leadingTag, TagHandler handler) {
+		handlers.put(leadingTag, handler);
+	}
+
+	/**
+	 * Registers the handler for a message that is a single fixed tag, such as
+	 * {@code Tags.CHAT_CLOSE_TAG}; anything after the tag makes it unknown
+	 *
+	 * @param tag     Whole message
+	 * @param handler Handler
+	 */
+	public void registerExact(String tag, TagHandler handler) {
+		register(tag, msg -> {
+			if (msg.length() == tag.length()) {
+				handler.handle(msg);
+			} else {
+				unknown.handle(msg);
+			}
+		});
+	}
+
+	/**
+	 * Hands a message to its handler
+	 *
+	 * @param msg Message as received
+	 * @throws Exception Whatever the handler throws
+	 */
+	public void dispatch(String msg) throws Exception {
+		String tag = Decode.getLeadingTag(msg);
+		TagHandler handler = tag != null ? handlers.get(tag) : null;
+		(handler != null ? handler : unknown).handle(msg);
+	}
+}
@@ -0,0 +1,10 @@
+package client;
+
+/**
+ * Handles one type of incoming peer message, selected by its leading tag
+ */
+@FunctionalInterface
+public interface TagHandler {
+
+	void handle(String msg) throws Exception;
+}
@@ -0,0 +1,102 @@
+package data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Reusable list of peers held in parallel arrays, so decoding a peer list
+ * allocates only the name and host strings. The arrays grow as needed and
+ * are kept across {@link #clear()}, so a list refilled every poll stops
+ * allocating once it has seen the largest list.
+ */
+public class PeerList {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private String[] names = new String[INITIAL_CAPACITY];
+	private String[] hosts = new String[INITIAL_CAPACITY];
+	private int[] ports = new int[INITIAL_CAPACITY];
+	private int size = 0;
+
+	/**
+	 * Empties the list, keeping its capacity
+	 */
+	public void clear() {
+		Arrays.fill(names, 0, size, null);
+		Arrays.fill(hosts, 0, size, null);
+		size = 0;
+	}
+
+	/**
+	 * Appends a peer
+	 *
+	 * @param name Peer username
+	 * @param host Peer IP address or hostname
+	 * @param port Peer port number
+	 */
+	public void add(String name, String host, int port) {
+		if (size == names.length) {
+			int capacity = size * 2;
+			names = Arrays.copyOf(names, capacity);
+			hosts = Arrays.copyOf(hosts, capacity);
+			ports = Arrays.copyOf(ports, capacity);
+		}
+		names[size] = name;
+		hosts[size] = host;
+		ports[size] = port;
+		size++;
+	}
+
+	/**
+	 * Gets the number of peers
+	 *
+	 * @return Size
+	 */
+	public int size() {
+		return size;
+	}
+
+	public String getName(int i) {
+		return names[checkIndex(i)];
+	}
+
+	public String getHost(int i) {
+		return hosts[checkIndex(i)];
+	}
+
+	public int getPort(int i) {
+		return ports[checkIndex(i)];
+	}
+
+	/**
+	 * Creates a Peer for one entry
+	 *
+	 * @param i Index
+	 * @return New Peer
+	 */
+	public Peer toPeer(int i) {
+		Peer peer = new Peer();
+		peer.setPeer(getName(i), getHost(i), getPort(i));
+		return peer;
+	}
+
+	/**
+	 * Creates Peer objects for every entry
+	 *
+	 * @return New list of peers
+	 */
+	public ArrayList<Peer> toPeers() {
+		ArrayList<Peer> peers = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			peers.add(toPeer(i));
+		}
+		return peers;
+	}
+
+	private int checkIndex(int i) {
+		if (i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException("Index " + i + " out of bounds for size " + size);
+		}
+		return i;
+	}
+}
@@ -0,0 +1,56 @@
+package database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collection;
+
+/**
+ * Data Access Object for the server's peers presence table.
+ * Java 21 compatible.
+ */
+public final class PeerDAO {
+
+    private PeerDAO() {
+        // Utility class - prevent instantiation
+    }
+
+    /**
+     * Presence row for one peer
+     * 
+     * @param username Username
+     * @param ip       Last known address
+     * @param port     Peer chat port
+     * @param online   true for ONLINE, false for OFFLINE
+     */
+    public record PeerStatus(String username, String ip, int port, boolean online) {
+    }
+
+    /**
+     * Writes presence rows in one JDBC batch
+     * 
+     * @param rows Rows to insert or update
+     * @throws SQLException If the batch fails
+     */
+    public static void upsertPeers(Collection<PeerStatus> rows) throws SQLException {
+        String sql = "INSERT INTO peers(username, ip, port, status) " +
+                "VALUES (?, ?, ?, ?) " +
+                "ON DUPLICATE KEY UPDATE ip=?, port=?, status=?";
+        try (Connection con = DBUtil.getConnection();
+                PreparedStatement ps = con.prepareStatement(sql)) {
+
+            for (PeerStatus row : rows) {
+                String status = row.online() ? "ONLINE" : "OFFLINE";
+                ps.setString(1, row.username());
+                ps.setString(2, row.ip());
+                ps.setInt(3, row.port());
+                ps.setString(4, status);
+                ps.setString(5, row.ip());
+                ps.setInt(6, row.port());
+                ps.setString(7, status);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import tags.FrameCompressor;
+import tags.Handshake;
+
+/**
+ * A client link as seen by the message handler, independent of the
+ * engine (blocking loop or NIO selector) that serves it.
+ */
+public interface ClientConnection {
+
+	/**
+	 * Gets the remote address of the client
+	 *
+	 * @return Remote address
+	 */
+	InetAddress getInetAddress();
+
+	/**
+	 * Queues a reply, encoded for the connection's framing
+	 *
+	 * @param frame Message, may be shared between connections
+	 * @throws IOException If the connection is broken or was closed because
+	 *                     its outbound queue overflowed
+	 */
+	void send(WireFrame frame) throws IOException;
+
+	/**
+	 * Queues a pushed presence frame. Unlike replies, these may be dropped
+	 * when the client falls behind, depending on the overflow policy.
+	 *
+	 * @param frame Message, may be shared between connections
+	 * @throws IOException If the connection is broken or was closed
+	 */
+	void sendPresence(WireFrame frame) throws IOException;
+
+	/**
+	 * Sends a protocol message
+	 *
+	 * @param msg Message to send
+	 * @throws IOException If the connection is broken
+	 */
+	default void send(String msg) throws IOException {
+		send(new WireFrame(msg));
+	}
+
+	/**
+	 * Completes the handshake: queues the HELLO reply in the current framing,
+	 * then switches both directions to the agreed one. The client sends
+	 * nothing between its HELLO and our reply, so its next message is
+	 * already in the new framing.
+	 *
+	 * @param reply      HELLO reply
+	 * @param agreed     Negotiated handshake
+	 * @param compressor Compressor for the connection's frames, null unless
+	 *                   binary framing and compression were both agreed
+	 * @throws IOException If the connection is broken
+	 */
+	void upgrade(WireFrame reply, Handshake agreed, FrameCompressor compressor) throws IOException;
+
+	/**
+	 * Closes the connection once pending frames have been written
+	 */
+	void close();
+
+	/**
+	 * Closes the connection at once, dropping unsent frames
+	 */
+	void abort();
+}
@@ -0,0 +1,591 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import data.Peer;
+
+/**
+ * Gossip side of a multi-node server. Every interval the node picks a random
+ * member and runs one anti-entropy round with it over a short TCP exchange:
+ *
+ * <pre>
+ * initiator: HELLO id, members (id, heartbeat)*, bucket digests
+ * responder: members*, differing buckets*, its entries in those buckets
+ * initiator: its entries in those buckets
+ * </pre>
+ *
+ * Both sides merge what they receive into their {@link ClusterState}, so a
+ * round repairs differences in both directions.
+ *
+ * Usernames are sharded over the live members with a {@link HashRing}: the
+ * owning node makes every login and logout of its names, so a name is never
+ * claimed twice, and other nodes forward those requests (and authoritative
+ * lookups) to it with a one-shot call on the same port. When membership
+ * changes, each node takes over the names that moved into its shard; the
+ * rest of the cluster keeps reading replicated presence. Every entry also
+ * names the node the client is connected to, which need not be the shard
+ * owner. Heartbeats are the wall clock of a member's last round; a member
+ * whose heartbeat stops advancing is declared failed and the clients
+ * connected to it are logged out. A node that restarts
+ * syncs with its seeds before serving clients, so it catches up from the
+ * cluster rather than from the database.
+ *
+ * Configured with system properties; clustering is off unless
+ * {@code vku.cluster.port} is set:
+ * {@code vku.cluster.host} (default localhost), {@code vku.cluster.seeds}
+ * (host:port,...), {@code vku.cluster.vnodes}, {@code vku.cluster.interval},
+ * {@code vku.cluster.failure} and {@code vku.cluster.tombstone.ttl}
+ * (milliseconds).
+ */
+final class ClusterNode implements Runnable {
+
+	private static final int MAGIC = 0x564B5543; // "VKUC"
+	private static final int CONNECT_TIMEOUT = 1000;
+	private static final int READ_TIMEOUT = 3000;
+
+	private static final byte OP_SYNC = 1;
+	private static final byte OP_CLAIM = 2;
+	private static final byte OP_RELEASE = 3;
+	private static final byte OP_LOOKUP = 4;
+	private static final byte OP_RECLAIM = 5;
+
+	record Config(String host, int port, List<String> seeds, int virtualNodes, long interval, long failureTimeout,
+			long tombstoneTtl) {
+
+		/**
+		 * Reads the cluster settings
+		 *
+		 * @return Settings, or null if clustering is disabled
+		 */
+		static Config fromProperties() {
+			Integer port = Integer.getInteger("vku.cluster.port");
+			if (port == null) {
+				return null;
+			}
+			List<String> seeds = new ArrayList<>();
+			for (String seed : System.getProperty("vku.cluster.seeds", "").split(",")) {
+				if (!seed.isBlank()) {
+					seeds.add(seed.trim());
+				}
+			}
+			return new Config(
+					System.getProperty("vku.cluster.host", "localhost"),
+					port,
+					seeds,
+					Integer.getInteger("vku.cluster.vnodes", 128),
+					Long.getLong("vku.cluster.interval", 1000),
+					Long.getLong("vku.cluster.failure", 15000),
+					Long.getLong("vku.cluster.tombstone.ttl", 600000));
+		}
+
+		String id() {
+			return host + ":" + port;
+		}
+	}
+
+	private static final class Member {
+		long heartbeat;
+		long updatedAt;
+		boolean failed;
+	}
+
+	private final Config config;
+	private final String self;
+	private final ClusterState state;
+	private final Map<String, Member> members = new HashMap<>();
+	private final List<ServerListener> listeners;
+	private volatile HashRing ring;
+	private ServerSocket gossipSocket;
+	private volatile boolean running = true;
+
+	ClusterNode(Config config, PeerRegistry registry, List<ServerListener> listeners) {
+		this.config = config;
+		this.self = config.id();
+		this.listeners = listeners;
+		this.state = new ClusterState(self, registry, config.tombstoneTtl());
+		this.ring = new HashRing(List.of(self), config.virtualNodes());
+	}
+
+	ClusterState getState() {
+		return state;
+	}
+
+	String getId() {
+		return self;
+	}
+
+	/**
+	 * Finds the node whose shard holds a username
+	 *
+	 * @param name Username
+	 * @return Owning node id
+	 */
+	String ownerOf(String name) {
+		return ring.ownerOf(name);
+	}
+
+	/**
+	 * Claims a name for a client logging in on this node, at the owning node
+	 *
+	 * @param peer New peer
+	 * @return false if the name is already online
+	 */
+	boolean claim(Peer peer) {
+		String owner = ownerOf(peer.getName());
+		state.attach(peer.getName());
+		boolean claimed;
+		if (owner.equals(self)) {
+			claimed = state.claim(peer, self);
+		} else {
+			try {
+				claimed = call(owner, OP_CLAIM, peer.getName(), peer, DataInputStream::readBoolean);
+			} catch (IOException e) {
+				// Owner unreachable: claim here and let the merge settle any conflict
+				claimed = state.claim(peer, self);
+			}
+		}
+		if (!claimed) {
+			state.detach(peer.getName());
+		}
+		return claimed;
+	}
+
+	/**
+	 * Logs out a peer at the owning node
+	 *
+	 * @param name Username
+	 * @return Removed peer, or null if it was not online
+	 */
+	Peer release(String name) {
+		String owner = ownerOf(name);
+		// First, so the owner's tombstone is not taken for a mistaken eviction
+		state.detach(name);
+		if (owner.equals(self)) {
+			return state.release(name, self);
+		}
+		Peer before = state.get(name);
+		try {
+			return call(owner, OP_RELEASE, name, null, DataInputStream::readBoolean) ? before : null;
+		} catch (IOException e) {
+			return state.release(name, self);
+		}
+	}
+
+	/**
+	 * Makes sure a resumed client's name is held and recorded as connected
+	 * to this node, at the owning node
+	 *
+	 * @param peer Resumed peer
+	 */
+	void reclaim(Peer peer) {
+		String owner = ownerOf(peer.getName());
+		state.attach(peer.getName());
+		if (owner.equals(self)) {
+			state.reclaim(peer, self);
+			return;
+		}
+		try {
+			call(owner, OP_RECLAIM, peer.getName(), peer, in -> null);
+		} catch (IOException e) {
+			state.reclaim(peer, self);
+		}
+	}
+
+	/**
+	 * Looks a name up at its owning node rather than in the replicated view
+	 *
+	 * @param name Username
+	 * @return Online peer, or null
+	 */
+	Peer lookup(String name) {
+		String owner = ownerOf(name);
+		if (owner.equals(self)) {
+			return state.get(name);
+		}
+		try {
+			return call(owner, OP_LOOKUP, name, null, in -> {
+				if (!in.readBoolean()) {
+					return null;
+				}
+				Peer peer = new Peer();
+				peer.setPeer(name, in.readUTF(), in.readInt());
+				return peer;
+			});
+		} catch (IOException e) {
+			return state.get(name);
+		}
+	}
+
+	/**
+	 * Gets the ids of the members currently believed alive, this node included
+	 *
+	 * @return Live member ids
+	 */
+	synchronized List<String> getLiveMembers() {
+		List<String> live = new ArrayList<>();
+		live.add(self);
+		members.forEach((id, m) -> {
+			if (!m.failed) {
+				live.add(id);
+			}
+		});
+		return live;
+	}
+
+	/**
+	 * Opens the gossip port, catches up from the seeds and starts gossiping
+	 *
+	 * @throws IOException If the gossip port cannot be opened
+	 */
+	void start() throws IOException {
+		gossipSocket = new ServerSocket(config.port());
+		Thread.ofPlatform().name("cluster-acceptor").daemon().start(this::acceptLoop);
+		for (String seed : config.seeds()) {
+			if (!seed.equals(self) && sync(seed)) {
+				for (ServerListener listener : listeners)
+					listener.onClusterSynced(seed, state.size());
+				break;
+			}
+		}
+		rebuildRing();
+		Thread t = new Thread(this, "cluster-gossip");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	void stop() {
+		running = false;
+		try {
+			gossipSocket.close();
+		} catch (IOException ignored) {
+			// Ignore cleanup exceptions
+		}
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				Thread.sleep(config.interval());
+			} catch (InterruptedException e) {
+				return;
+			}
+			String target = pickTarget();
+			if (target != null) {
+				sync(target);
+			}
+			detectFailures();
+			state.purgeTombstones();
+		}
+	}
+
+	// a random live member, or a seed while no member is known
+	private synchronized String pickTarget() {
+		List<String> candidates = new ArrayList<>();
+		members.forEach((id, m) -> {
+			if (!m.failed) {
+				candidates.add(id);
+			}
+		});
+		if (candidates.isEmpty()) {
+			for (String seed : config.seeds()) {
+				if (!seed.equals(self)) {
+					candidates.add(seed);
+				}
+			}
+		}
+		return candidates.isEmpty() ? null : candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+	}
+
+	private void detectFailures() {
+		long now = System.currentTimeMillis();
+		List<String> failed = new ArrayList<>();
+		synchronized (this) {
+			members.forEach((id, m) -> {
+				if (!m.failed && now - m.updatedAt > config.failureTimeout()) {
+					m.failed = true;
+					failed.add(id);
+				}
+			});
+		}
+		for (String id : failed) {
+			int lost = state.evict(id);
+			for (ServerListener listener : listeners)
+				listener.onNodeFailed(id, lost);
+		}
+		if (!failed.isEmpty()) {
+			rebuildRing();
+		}
+	}
+
+	// reshards after a membership change and takes over names that moved here
+	private void rebuildRing() {
+		List<String> live = getLiveMembers();
+		HashRing next = new HashRing(live, config.virtualNodes());
+		ring = next;
+		int moved = state.takeOver(next, live);
+		if (moved > 0) {
+			for (ServerListener listener : listeners)
+				listener.onShardsMoved(live.size(), moved);
+		}
+	}
+
+	@FunctionalInterface
+	private interface Reader<T> {
+		T read(DataInputStream in) throws IOException;
+	}
+
+	// one-shot request to the node owning a name
+	private <T> T call(String address, byte op, String name, Peer peer, Reader<T> reply) throws IOException {
+		try (Socket socket = connect(address)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out.writeInt(MAGIC);
+			out.writeByte(op);
+			out.writeUTF(name);
+			out.writeUTF(self);
+			if (peer != null) {
+				out.writeUTF(peer.getHost());
+				out.writeInt(peer.getPort());
+			}
+			out.flush();
+			if (in.readInt() != MAGIC) {
+				throw new IOException("Bad reply from " + address);
+			}
+			T result = reply.read(in);
+			// Apply the owner's write now instead of waiting for gossip
+			state.merge(readEntries(in));
+			return result;
+		}
+	}
+
+	private static Socket connect(String address) throws IOException {
+		int colon = address.lastIndexOf(':');
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(address.substring(0, colon),
+					Integer.parseInt(address.substring(colon + 1))), CONNECT_TIMEOUT);
+			socket.setSoTimeout(READ_TIMEOUT);
+			return socket;
+		} catch (IOException | RuntimeException e) {
+			socket.close();
+			throw e instanceof IOException io ? io : new IOException(e);
+		}
+	}
+
+	// owner side of a forwarded request
+	private void answer(byte op, DataInputStream in, DataOutputStream out) throws IOException {
+		String name = in.readUTF();
+		String server = in.readUTF();
+		out.writeInt(MAGIC);
+		switch (op) {
+			case OP_CLAIM -> {
+				Peer peer = new Peer();
+				peer.setPeer(name, in.readUTF(), in.readInt());
+				out.writeBoolean(state.claim(peer, server));
+			}
+			case OP_RECLAIM -> {
+				Peer peer = new Peer();
+				peer.setPeer(name, in.readUTF(), in.readInt());
+				state.reclaim(peer, server);
+			}
+			case OP_RELEASE -> out.writeBoolean(state.release(name, server) != null);
+			case OP_LOOKUP -> {
+				Peer peer = state.get(name);
+				out.writeBoolean(peer != null);
+				if (peer != null) {
+					out.writeUTF(peer.getHost());
+					out.writeInt(peer.getPort());
+				}
+			}
+			default -> throw new IOException("Unknown op " + op);
+		}
+		ClusterState.Entry entry = state.entryOf(name);
+		writeEntries(out, entry != null ? List.of(entry) : List.of());
+		out.flush();
+	}
+
+	// initiator side of one anti-entropy round
+	private boolean sync(String address) {
+		try (Socket socket = connect(address)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+			out.writeInt(MAGIC);
+			out.writeByte(OP_SYNC);
+			out.writeUTF(self);
+			writeMembers(out);
+			for (long digest : state.digests()) {
+				out.writeLong(digest);
+			}
+			out.flush();
+
+			if (in.readInt() != MAGIC) {
+				return false;
+			}
+			in.readUTF(); // sender id, also listed in its members
+			readMembers(in);
+			List<Integer> buckets = readBuckets(in);
+			state.merge(readEntries(in));
+			writeEntries(out, state.entriesIn(buckets));
+			out.flush();
+			return true;
+		} catch (IOException | RuntimeException e) {
+			return false;
+		}
+	}
+
+	private void acceptLoop() {
+		while (running) {
+			try {
+				Socket socket = gossipSocket.accept();
+				Thread.ofVirtual().start(() -> serve(socket));
+			} catch (IOException e) {
+				if (running) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	// responder side of one anti-entropy round, or of a forwarded request
+	private void serve(Socket socket) {
+		try (socket) {
+			socket.setSoTimeout(READ_TIMEOUT);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+			if (in.readInt() != MAGIC) {
+				return;
+			}
+			byte op = in.readByte();
+			if (op != OP_SYNC) {
+				answer(op, in, out);
+				return;
+			}
+			in.readUTF(); // sender id, also listed in its members
+			readMembers(in);
+			long[] local = state.digests();
+			List<Integer> buckets = new ArrayList<>();
+			for (int i = 0; i < ClusterState.BUCKETS; i++) {
+				if (in.readLong() != local[i]) {
+					buckets.add(i);
+				}
+			}
+
+			out.writeInt(MAGIC);
+			out.writeUTF(self);
+			writeMembers(out);
+			out.writeInt(buckets.size());
+			for (int b : buckets) {
+				out.writeInt(b);
+			}
+			writeEntries(out, state.entriesIn(buckets));
+			out.flush();
+
+			state.merge(readEntries(in));
+		} catch (IOException | RuntimeException e) {
+			// Round abandoned; the next one repairs it
+		}
+	}
+
+	// Socket I/O stays outside the lock, which claim and release also take:
+	// a slow gossip peer must not hold up logins and logouts
+	private void writeMembers(DataOutputStream out) throws IOException {
+		List<String> ids = new ArrayList<>();
+		List<Long> heartbeats = new ArrayList<>();
+		synchronized (this) {
+			for (Map.Entry<String, Member> e : members.entrySet()) {
+				ids.add(e.getKey());
+				heartbeats.add(e.getValue().heartbeat);
+			}
+		}
+		out.writeInt(ids.size() + 1);
+		out.writeUTF(self);
+		out.writeLong(System.currentTimeMillis());
+		for (int i = 0; i < ids.size(); i++) {
+			out.writeUTF(ids.get(i));
+			out.writeLong(heartbeats.get(i));
+		}
+	}
+
+	private void readMembers(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		List<String> ids = new ArrayList<>(Math.min(count, 4096));
+		List<Long> heartbeats = new ArrayList<>(Math.min(count, 4096));
+		for (int i = 0; i < count; i++) {
+			ids.add(in.readUTF());
+			heartbeats.add(in.readLong());
+		}
+		long now = System.currentTimeMillis();
+		boolean joined = false;
+		List<String> back = new ArrayList<>();
+		synchronized (this) {
+			for (int i = 0; i < count; i++) {
+				String id = ids.get(i);
+				long heartbeat = heartbeats.get(i);
+				if (id.equals(self)) {
+					continue;
+				}
+				Member m = members.computeIfAbsent(id, k -> new Member());
+				if (heartbeat > m.heartbeat) {
+					if (m.failed) {
+						back.add(id);
+					}
+					joined |= m.failed || m.heartbeat == 0;
+					m.heartbeat = heartbeat;
+					m.updatedAt = now;
+					m.failed = false;
+				}
+			}
+		}
+		for (String id : back) {
+			for (ServerListener listener : listeners)
+				listener.onNodeRecovered(id);
+		}
+		if (joined) {
+			rebuildRing();
+		}
+	}
+
+	private static List<Integer> readBuckets(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		List<Integer> buckets = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			int b = in.readInt();
+			if (b < 0 || b >= ClusterState.BUCKETS) {
+				throw new IOException("Invalid bucket " + b);
+			}
+			buckets.add(b);
+		}
+		return buckets;
+	}
+
+	private static void writeEntries(DataOutputStream out, List<ClusterState.Entry> entries) throws IOException {
+		out.writeInt(entries.size());
+		for (ClusterState.Entry e : entries) {
+			e.writeTo(out);
+		}
+	}
+
+	private static List<ClusterState.Entry> readEntries(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		List<ClusterState.Entry> entries = new ArrayList<>(Math.min(count, 4096));
+		for (int i = 0; i < count; i++) {
+			entries.add(ClusterState.Entry.readFrom(in));
+		}
+		return entries;
+	}
+}
@@ -0,0 +1,342 @@
+package server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+
+import data.Peer;
+
+/**
+ * Replicated record of who is online across the server cluster.
+ * Each username maps to its last write, stamped with a Lamport clock and the
+ * id of the node that made it, and naming the node the client is connected
+ * to; a logout is kept as a tombstone. Merging keeps
+ * the write with the highest (clock, node id), so every node converges to the
+ * same state whatever order updates arrive in. Winning writes are applied to
+ * the local {@link PeerRegistry}, which clients keep reading as before.
+ * Names are hashed into buckets with an order-independent digest, letting two
+ * nodes find the buckets that differ without exchanging every entry.
+ */
+final class ClusterState {
+
+	static final int BUCKETS = 64;
+
+	/**
+	 * One replicated write
+	 *
+	 * @param name      Username
+	 * @param clock     Lamport time of the write
+	 * @param owner     Node that made the write: the shard owner of the name,
+	 *                  or whichever node repaired the entry
+	 * @param server    Node holding the peer's control connection; the peer is
+	 *                  logged out if that node fails
+	 * @param host      Peer address, or null for a tombstone
+	 * @param port      Peer port
+	 * @param removedAt Time the tombstone was written, for garbage collection
+	 */
+	record Entry(String name, long clock, String owner, String server, String host, int port, long removedAt) {
+
+		boolean alive() {
+			return host != null;
+		}
+
+		boolean newerThan(Entry other) {
+			if (clock != other.clock) {
+				return clock > other.clock;
+			}
+			return owner.compareTo(other.owner) > 0;
+		}
+
+		long digest() {
+			long h = mix(name.hashCode());
+			h = mix(h ^ clock);
+			h = mix(h ^ owner.hashCode());
+			h = mix(h ^ server.hashCode());
+			return alive() ? mix(h ^ host.hashCode() ^ ((long) port << 32)) : h;
+		}
+
+		void writeTo(DataOutputStream out) throws IOException {
+			out.writeUTF(name);
+			out.writeLong(clock);
+			out.writeUTF(owner);
+			out.writeUTF(server);
+			out.writeBoolean(alive());
+			if (alive()) {
+				out.writeUTF(host);
+				out.writeInt(port);
+			} else {
+				out.writeLong(removedAt);
+			}
+		}
+
+		static Entry readFrom(DataInputStream in) throws IOException {
+			String name = in.readUTF();
+			long clock = in.readLong();
+			String owner = in.readUTF();
+			String server = in.readUTF();
+			if (in.readBoolean()) {
+				return new Entry(name, clock, owner, server, in.readUTF(), in.readInt(), 0);
+			}
+			return new Entry(name, clock, owner, server, null, 0, in.readLong());
+		}
+	}
+
+	private final String self;
+	private final PeerRegistry registry;
+	private final long tombstoneTtl;
+	private final HashMap<String, Entry> entries = new HashMap<>();
+	private final long[] digests = new long[BUCKETS];
+	// Names whose client is connected to this node, as far as this process knows
+	private final HashSet<String> attached = new HashSet<>();
+	private long clock = 0;
+
+	/**
+	 * @param self         Id of this node
+	 * @param registry     Registry the merged state is applied to
+	 * @param tombstoneTtl How long logouts are remembered
+	 */
+	ClusterState(String self, PeerRegistry registry, long tombstoneTtl) {
+		this.self = self;
+		this.registry = registry;
+		this.tombstoneTtl = tombstoneTtl;
+	}
+
+	/**
+	 * Records that a client is connected to this node. Called before its
+	 * claim, so the owner's reply is not taken for a leftover entry.
+	 *
+	 * @param name Username
+	 */
+	synchronized void attach(String name) {
+		attached.add(name);
+	}
+
+	/**
+	 * Records that a client has left this node
+	 *
+	 * @param name Username
+	 */
+	synchronized void detach(String name) {
+		attached.remove(name);
+	}
+
+	/**
+	 * Claims a name for a client logging in
+	 *
+	 * @param peer   New peer
+	 * @param server Node the client is connected to
+	 * @return false if the name is online anywhere in the cluster
+	 */
+	synchronized boolean claim(Peer peer, String server) {
+		if (registry.contains(peer.getName())) {
+			return false;
+		}
+		write(new Entry(peer.getName(), ++clock, self, server, peer.getHost(), peer.getPort(), 0));
+		return true;
+	}
+
+	/**
+	 * Keeps a name whose client has reconnected, possibly to another node
+	 *
+	 * @param peer   Resumed peer
+	 * @param server Node the client is connected to now
+	 */
+	synchronized void reclaim(Peer peer, String server) {
+		Entry current = entries.get(peer.getName());
+		if (current == null || !current.alive() || !current.server().equals(server)) {
+			write(new Entry(peer.getName(), ++clock, self, server, peer.getHost(), peer.getPort(), 0));
+		}
+	}
+
+	/**
+	 * Logs out a peer
+	 *
+	 * @param name   Username
+	 * @param server Node asking, which must be the one the client is connected to
+	 * @return Removed peer, or null if the name is not online there
+	 */
+	synchronized Peer release(String name, String server) {
+		Entry current = entries.get(name);
+		// A node the client has left must not log it out from its new one
+		if (current == null || !current.alive() || !current.server().equals(server)) {
+			return null;
+		}
+		Peer removed = registry.get(name);
+		write(new Entry(name, ++clock, self, server, null, 0, System.currentTimeMillis()));
+		return removed;
+	}
+
+	/**
+	 * Logs out every peer connected to a node that stopped responding,
+	 * whichever shard their names are in
+	 *
+	 * @param server Failed node
+	 * @return Number of peers removed
+	 */
+	synchronized int evict(String server) {
+		List<Entry> lost = new ArrayList<>();
+		for (Entry e : entries.values()) {
+			if (e.alive() && e.server().equals(server)) {
+				lost.add(e);
+			}
+		}
+		long now = System.currentTimeMillis();
+		for (Entry e : lost) {
+			write(new Entry(e.name(), ++clock, self, server, null, 0, now));
+		}
+		return lost.size();
+	}
+
+	/**
+	 * Merges writes received from another node
+	 *
+	 * @param incoming Remote entries
+	 * @return Number of entries that changed local state
+	 */
+	synchronized int merge(Collection<Entry> incoming) {
+		int changed = 0;
+		long expired = System.currentTimeMillis() - tombstoneTtl;
+		for (Entry e : incoming) {
+			clock = Math.max(clock, e.clock());
+			Entry current = entries.get(e.name());
+			if (current != null && !e.newerThan(current)) {
+				continue;
+			}
+			if (!e.alive() && e.removedAt() < expired) {
+				continue; // Already purged here, do not bring it back
+			}
+			if (e.alive() && e.server().equals(self) && !attached.contains(e.name())) {
+				// A client said to be connected here that we do not know about is
+				// left from before a restart: it is not connected here any more
+				write(new Entry(e.name(), ++clock, self, self, null, 0, System.currentTimeMillis()));
+			} else if (!e.alive() && current != null && current.alive() && current.server().equals(self)
+					&& attached.contains(e.name())) {
+				// Another node thought we were down, but our client is still here
+				write(new Entry(e.name(), ++clock, self, self, current.host(), current.port(), 0));
+			} else {
+				write(e);
+			}
+			changed++;
+		}
+		return changed;
+	}
+
+	/**
+	 * Drops tombstones old enough that every node has seen them
+	 */
+	synchronized void purgeTombstones() {
+		long olderThan = System.currentTimeMillis() - tombstoneTtl;
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			Entry e = it.next();
+			if (!e.alive() && e.removedAt() < olderThan) {
+				it.remove();
+				digests[bucketOf(e.name())] ^= e.digest();
+			}
+		}
+	}
+
+	/**
+	 * Moves names that a new ring assigns to this node away from their
+	 * previous, still live owner
+	 *
+	 * @param ring Current ring
+	 * @param live Live node ids
+	 * @return Number of names taken over
+	 */
+	synchronized int takeOver(HashRing ring, Collection<String> live) {
+		List<Entry> moved = new ArrayList<>();
+		for (Entry e : entries.values()) {
+			if (e.alive() && !e.owner().equals(self) && live.contains(e.owner())
+					&& self.equals(ring.ownerOf(e.name()))) {
+				moved.add(e);
+			}
+		}
+		for (Entry e : moved) {
+			write(new Entry(e.name(), ++clock, self, e.server(), e.host(), e.port(), 0));
+		}
+		return moved.size();
+	}
+
+	/**
+	 * Gets an online peer from this node's view
+	 *
+	 * @param name Username
+	 * @return Peer, or null if not online
+	 */
+	synchronized Peer get(String name) {
+		Entry e = entries.get(name);
+		if (e == null || !e.alive()) {
+			return null;
+		}
+		Peer peer = new Peer();
+		peer.setPeer(e.name(), e.host(), e.port());
+		return peer;
+	}
+
+	synchronized Entry entryOf(String name) {
+		return entries.get(name);
+	}
+
+	synchronized long[] digests() {
+		return digests.clone();
+	}
+
+	/**
+	 * Collects the entries of some buckets
+	 *
+	 * @param buckets Bucket indexes
+	 * @return Entries hashed to those buckets
+	 */
+	synchronized List<Entry> entriesIn(Collection<Integer> buckets) {
+		boolean[] wanted = new boolean[BUCKETS];
+		for (int b : buckets) {
+			wanted[b] = true;
+		}
+		List<Entry> result = new ArrayList<>();
+		for (Entry e : entries.values()) {
+			if (wanted[bucketOf(e.name())]) {
+				result.add(e);
+			}
+		}
+		return result;
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+
+	private void write(Entry e) {
+		Entry old = entries.put(e.name(), e);
+		int bucket = bucketOf(e.name());
+		if (old != null) {
+			digests[bucket] ^= old.digest();
+		}
+		digests[bucket] ^= e.digest();
+
+		if (e.alive()) {
+			Peer peer = new Peer();
+			peer.setPeer(e.name(), e.host(), e.port());
+			registry.put(peer);
+		} else {
+			registry.remove(e.name());
+		}
+	}
+
+	static int bucketOf(String name) {
+		return Math.floorMod(name.hashCode(), BUCKETS);
+	}
+
+	// SplitMix64 finalizer
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
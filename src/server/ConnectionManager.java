@@ -0,0 +1,129 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks every open client connection with its state and idle deadline,
+ * under a global cap on open sockets. Idle connections are reaped by a
+ * timing wheel, so a message costs one O(1) deadline update; connections
+ * over the cap are refused right after accept, which frees the descriptor
+ * at once and lets the client back off, instead of letting accept fail.
+ *
+ * Limits come from {@code vku.server.maxConnections} (default three
+ * quarters of the process descriptor limit, or 10000), and
+ * {@code vku.server.idle.handshake} / {@code vku.server.idle} in ms for
+ * connections that have not yet sent a message / have.
+ */
+final class ConnectionManager {
+
+	enum State {
+		/** Accepted, no message yet */
+		CONNECTED,
+		/** Has sent at least one request */
+		ACTIVE,
+		/** Control connection receiving pushed presence */
+		SUBSCRIBED
+	}
+
+	private static final long REAPER_TICK = 1000;
+	private static final int REAPER_WHEEL_SIZE = 64;
+
+	private final int maxConnections;
+	private final long handshakeTimeout;
+	private final TimingWheel<ClientConnection> reaper;
+	private final ConcurrentHashMap<ClientConnection, State> open = new ConcurrentHashMap<>();
+	private final AtomicLong refused = new AtomicLong();
+	private final AtomicLong reaped = new AtomicLong();
+
+	ConnectionManager() {
+		this.maxConnections = Integer.getInteger("vku.server.maxConnections", defaultCap());
+		this.handshakeTimeout = Long.getLong("vku.server.idle.handshake", 10000);
+		this.reaper = new TimingWheel<>("connection-reaper", REAPER_TICK, REAPER_WHEEL_SIZE,
+				Long.getLong("vku.server.idle", 45000), this::reap);
+	}
+
+	// leave a quarter of the descriptors for the database, files and the listener
+	private static int defaultCap() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.UnixOperatingSystemMXBean unix) {
+			return (int) Math.min(Integer.MAX_VALUE, unix.getMaxFileDescriptorCount() * 3 / 4);
+		}
+		return 10000;
+	}
+
+	void start() {
+		reaper.start();
+	}
+
+	void stop() {
+		reaper.stop();
+	}
+
+	/**
+	 * Admits a newly accepted connection if the budget allows
+	 *
+	 * @param connection New connection
+	 * @return false if it must be closed right away
+	 */
+	boolean open(ClientConnection connection) {
+		// Check-then-put may overshoot by a few under a burst; the cap is a budget, not a hard limit
+		if (open.size() >= maxConnections) {
+			refused.incrementAndGet();
+			return false;
+		}
+		open.put(connection, State.CONNECTED);
+		reaper.touchUntil(connection, System.currentTimeMillis() + handshakeTimeout);
+		return true;
+	}
+
+	/**
+	 * Records activity, pushing the idle deadline back
+	 *
+	 * @param connection Connection a message arrived on
+	 */
+	void touch(ClientConnection connection) {
+		if (open.replace(connection, State.CONNECTED, State.ACTIVE) || open.containsKey(connection)) {
+			reaper.touch(connection);
+		}
+	}
+
+	void subscribed(ClientConnection connection) {
+		open.computeIfPresent(connection, (c, s) -> State.SUBSCRIBED);
+	}
+
+	void closed(ClientConnection connection) {
+		if (open.remove(connection) != null) {
+			reaper.cancel(connection);
+		}
+	}
+
+	State stateOf(ClientConnection connection) {
+		return open.get(connection);
+	}
+
+	private void reap(ClientConnection connection) {
+		if (open.containsKey(connection)) {
+			reaped.incrementAndGet();
+			connection.abort();
+		}
+	}
+
+	int getOpenCount() {
+		return open.size();
+	}
+
+	int getMaxConnections() {
+		return maxConnections;
+	}
+
+	long getRefusedCount() {
+		return refused.get();
+	}
+
+	long getReapedCount() {
+		return reaped.get();
+	}
+}
@@ -0,0 +1,54 @@
+package server;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent-hash ring mapping usernames to server nodes.
+ * Each node is placed on the ring at many points (virtual nodes) so shards
+ * stay even, and adding or removing one of N nodes moves only about 1/N of
+ * the names. Rings are immutable; a membership change builds a new one.
+ */
+final class HashRing {
+
+	private final TreeMap<Long, String> points = new TreeMap<>();
+
+	/**
+	 * @param nodes        Node ids
+	 * @param virtualNodes Points per node
+	 */
+	HashRing(Collection<String> nodes, int virtualNodes) {
+		for (String node : nodes) {
+			for (int i = 0; i < virtualNodes; i++) {
+				points.put(hash(node + "#" + i), node);
+			}
+		}
+	}
+
+	/**
+	 * Finds the node owning a username
+	 *
+	 * @param name Username
+	 * @return Node id, or null if the ring is empty
+	 */
+	String ownerOf(String name) {
+		if (points.isEmpty()) {
+			return null;
+		}
+		Map.Entry<Long, String> point = points.ceilingEntry(hash(name));
+		return point != null ? point.getValue() : points.firstEntry().getValue();
+	}
+
+	// FNV-1a over the chars, then a SplitMix64 finalizer to spread nearby ids
+	static long hash(String s) {
+		long h = 0xCBF29CE484222325L;
+		for (int i = 0, n = s.length(); i < n; i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001B3L;
+		}
+		h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+		h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+		return h ^ (h >>> 31);
+	}
+}
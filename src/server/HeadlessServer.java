@@ -0,0 +1,133 @@
+package server;
+
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import data.Peer;
+
+/**
+ * Entry point that runs the server without Swing, logging events and a
+ * periodic status line to the console. Usage:
+ *
+ * <pre>
+ * java -Dvku.server.status.interval=60 server.HeadlessServer [port]
+ * </pre>
+ *
+ * The port defaults to {@code vku.server.port} or 3939; the status interval
+ * is in seconds, 0 to disable it.
+ */
+public final class HeadlessServer implements ServerListener {
+
+	private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+	private HeadlessServer() {
+	}
+
+	private static void log(String msg) {
+		System.out.println("[" + LocalTime.now().format(TIME) + "] " + msg);
+	}
+
+	@Override
+	public void onStarted(int port) {
+		log("VKU server started on port " + port + " (" + ServerCore.Mode.fromProperty() + ")");
+	}
+
+	@Override
+	public void onStopped() {
+		log("VKU server stopped");
+	}
+
+	@Override
+	public void onPeerJoined(Peer peer) {
+		log("Login: " + peer.getName() + " " + peer.getHost() + ":" + peer.getPort());
+	}
+
+	@Override
+	public void onPeerLeft(Peer peer, boolean expired) {
+		log((expired ? "Expired: " : "Logout: ") + peer.getName());
+	}
+
+	@Override
+	public void onLoginDenied(String name) {
+		log("Denied: " + name + " is already online");
+	}
+
+	@Override
+	public void onSnapshotRestored(int restored, int saved, long version, long nanos) {
+		log(String.format("Restored %d of %d peers from snapshot version %d in %.1f ms", restored, saved, version,
+				nanos / 1e6));
+	}
+
+	@Override
+	public void onClusterSynced(String seed, int entries) {
+		log("Cluster: caught up from " + seed + ", " + entries + " entries");
+	}
+
+	@Override
+	public void onNodeFailed(String node, int evicted) {
+		log("Cluster: node " + node + " failed, " + evicted + " peers logged out");
+	}
+
+	@Override
+	public void onNodeRecovered(String node) {
+		log("Cluster: node " + node + " is back");
+	}
+
+	@Override
+	public void onShardsMoved(int nodes, int moved) {
+		log("Cluster: " + nodes + " nodes, took over " + moved + " peers");
+	}
+
+	private static String status(ServerCore core) {
+		StringBuilder sb = new StringBuilder("Status: ")
+				.append(core.getRegistry().size()).append(" online, version ")
+				.append(core.getRegistry().getVersion())
+				.append(", connections ").append(core.getOpenConnections()).append("/")
+				.append(core.getMaxConnections()).append(" (")
+				.append(core.getRefusedConnections()).append(" refused, ")
+				.append(core.getReapedConnections()).append(" reaped)")
+				.append(", outbound ").append(core.getOutboundQueueDepth()).append(" frames / ")
+				.append(core.getOutboundQueueBytes()).append(" bytes, ")
+				.append(core.getDroppedFrames()).append(" dropped, ")
+				.append(core.getOverflowDisconnects()).append(" overflow disconnects, deflate ")
+				.append(core.getCompressionMetrics().getCompressedFrames()).append(" frames at ")
+				.append(String.format("%.2f", core.getCompressionMetrics().getRatio())).append(" in ")
+				.append(core.getCompressionMetrics().getDeflateNanos() / 1_000_000).append(" ms")
+				.append(", throttled ")
+				.append(core.getThrottledByIp()).append(" by IP / ")
+				.append(core.getThrottledByUser()).append(" by user");
+		if (core.getCluster() != null) {
+			sb.append(", cluster ").append(core.getCluster().getLiveMembers());
+		}
+		return sb.toString();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : Integer.getInteger("vku.server.port", 3939);
+		long interval = Long.getLong("vku.server.status.interval", 60);
+
+		ServerCore core = new ServerCore(port, new HeadlessServer());
+		core.start();
+
+		ScheduledExecutorService status = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "status-log");
+			t.setDaemon(true);
+			return t;
+		});
+		if (interval > 0) {
+			status.scheduleAtFixedRate(() -> log(status(core)), interval, interval, TimeUnit.SECONDS);
+		}
+
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			status.shutdownNow();
+			try {
+				core.stopserver();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}, "shutdown"));
+	}
+}
@@ -0,0 +1,35 @@
+package server;
+
+/**
+ * Receives complete protocol messages from a server engine.
+ * Messages of one connection are delivered in order, never concurrently.
+ */
+public interface MessageHandler {
+
+	/**
+	 * Called once when a connection is accepted, before any message
+	 *
+	 * @param connection New connection
+	 * @return false to refuse it; it is then closed without onClose
+	 */
+	default boolean onOpen(ClientConnection connection) {
+		return true;
+	}
+
+	/**
+	 * Handles one decoded message
+	 *
+	 * @param connection Connection the message arrived on
+	 * @param msg        Tag-encoded message
+	 * @throws Exception If handling fails; the connection is closed
+	 */
+	void onMessage(ClientConnection connection, String msg) throws Exception;
+
+	/**
+	 * Called once when a connection is closed
+	 *
+	 * @param connection Closed connection
+	 */
+	default void onClose(ClientConnection connection) {
+	}
+}
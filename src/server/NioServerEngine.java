@@ -0,0 +1,334 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import tags.BinaryCodec;
+import tags.FrameCompressor;
+import tags.Handshake;
+import tags.Tags;
+
+/**
+ * Non-blocking connection engine. One selector thread accepts, reads and
+ * writes every socket; complete messages are handed to a small worker pool
+ * so a slow handler never stalls I/O for other clients. Replies go through a
+ * bounded per-connection queue that the selector drains when writable.
+ */
+final class NioServerEngine implements ServerEngine, Runnable {
+
+	private static final int READ_BUFFER_SIZE = 8192;
+	// Modified UTF-8 needs at most 3 bytes per char
+	private static final int MAX_FRAME = Tags.MAX_MSG_SIZE * 3;
+	// Binary body limit plus the longest length prefix
+	private static final int BINARY_RECORD_SIZE = BinaryCodec.MAX_FRAME + 5;
+
+	private final Selector selector;
+	private final ServerSocketChannel serverChannel;
+	private final MessageHandler handler;
+	private final ExecutorService workers;
+	private final OutboundQueue.Config queueConfig;
+	private final OutboundQueue.Metrics queueMetrics;
+	private final Queue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+	private volatile boolean running = true;
+
+	NioServerEngine(int port, MessageHandler handler, int workerThreads, OutboundQueue.Config queueConfig,
+			OutboundQueue.Metrics queueMetrics) throws IOException {
+		this.handler = handler;
+		this.queueConfig = queueConfig;
+		this.queueMetrics = queueMetrics;
+		this.selector = Selector.open();
+		this.serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port));
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+		AtomicInteger threadId = new AtomicInteger();
+		this.workers = Executors.newFixedThreadPool(workerThreads, r -> {
+			Thread t = new Thread(r, "nio-worker-" + threadId.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	@Override
+	public void start() {
+		new Thread(this, "nio-selector").start();
+	}
+
+	@Override
+	public void stop() throws IOException {
+		running = false;
+		selector.wakeup();
+		serverChannel.close();
+		workers.shutdown();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (running) {
+				selector.select();
+
+				NioConnection pending;
+				while ((pending = pendingWrites.poll()) != null) {
+					if (pending.key.isValid()) {
+						pending.key.interestOps(pending.key.interestOps() | SelectionKey.OP_WRITE);
+					}
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					try {
+						if (!key.isValid()) {
+							continue;
+						}
+						if (key.isAcceptable()) {
+							accept();
+						} else {
+							NioConnection conn = (NioConnection) key.attachment();
+							if (key.isReadable()) {
+								conn.read();
+							}
+							if (key.isValid() && key.isWritable()) {
+								conn.write();
+							}
+						}
+					} catch (IOException e) {
+						if (key.attachment() instanceof NioConnection conn) {
+							conn.closeNow();
+						}
+					}
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			for (SelectionKey key : selector.keys()) {
+				if (key.attachment() instanceof NioConnection conn) {
+					conn.closeNow();
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException ignored) {
+				// Ignore cleanup exceptions
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		NioConnection conn = new NioConnection(channel);
+		if (!handler.onOpen(conn)) {
+			channel.close();
+			return;
+		}
+		conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+	}
+
+	/**
+	 * Connection state owned by the selector thread, except for the outbound
+	 * queue and inbox which worker threads touch.
+	 */
+	private final class NioConnection implements ClientConnection {
+
+		private final SocketChannel channel;
+		private final InetAddress address;
+		private final ObjectStreamFrames.Decoder decoder = new ObjectStreamFrames.Decoder(MAX_FRAME);
+		private final OutboundQueue outbound = new OutboundQueue(queueConfig, queueMetrics);
+		private final Queue<String> inbox = new ConcurrentLinkedQueue<>();
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+		private final AtomicBoolean closed = new AtomicBoolean(false);
+		private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private SelectionKey key;
+		private boolean headerSent = false;
+		// Framing per direction, switched by the handshake
+		private volatile boolean binaryIn = false;
+		private boolean binaryOut = false;
+		private volatile FrameCompressor compressor;
+		private volatile boolean closeAfterFlush = false;
+
+		NioConnection(SocketChannel channel) {
+			this.channel = channel;
+			this.address = channel.socket().getInetAddress();
+		}
+
+		@Override
+		public InetAddress getInetAddress() {
+			return address;
+		}
+
+		@Override
+		public void send(WireFrame frame) throws IOException {
+			enqueue(frame, OutboundQueue.Kind.CONTROL);
+		}
+
+		@Override
+		public void sendPresence(WireFrame frame) throws IOException {
+			enqueue(frame, OutboundQueue.Kind.PRESENCE);
+		}
+
+		@Override
+		public void upgrade(WireFrame reply, Handshake agreed, FrameCompressor compressor) throws IOException {
+			boolean binary = agreed.has(Handshake.Capability.BINARY);
+			// Before the reply leaves: the client answers it in the new framing
+			this.compressor = compressor;
+			binaryIn = binary;
+			synchronized (this) {
+				enqueue(reply, OutboundQueue.Kind.CONTROL);
+				binaryOut = binary;
+			}
+		}
+
+		private void enqueue(WireFrame message, OutboundQueue.Kind kind) throws IOException {
+			if (closed.get()) {
+				throw new IOException("Connection closed");
+			}
+			boolean accepted;
+			synchronized (this) {
+				byte[] frame = message.encode(binaryOut, compressor);
+				if (!headerSent && !binaryOut) {
+					frame = ObjectStreamFrames.withHeader(frame);
+					headerSent = true;
+				}
+				accepted = outbound.offer(frame, kind);
+			}
+			if (!accepted) {
+				closeNow();
+				throw new IOException("Outbound queue overflow");
+			}
+			requestWrite();
+		}
+
+		@Override
+		public void close() {
+			closeAfterFlush = true;
+			requestWrite();
+		}
+
+		@Override
+		public void abort() {
+			closeNow();
+		}
+
+		private void requestWrite() {
+			pendingWrites.add(this);
+			selector.wakeup();
+		}
+
+		void read() throws IOException {
+			int n = channel.read(readBuffer);
+			if (n == -1) {
+				closeNow();
+				return;
+			}
+
+			readBuffer.flip();
+			String msg;
+			while ((msg = nextMessage()) != null) {
+				inbox.add(msg);
+			}
+			readBuffer.compact();
+
+			if (!readBuffer.hasRemaining()) {
+				// A single record is larger than the buffer: grow up to the frame limit
+				int limit = binaryIn ? BINARY_RECORD_SIZE : decoder.maxRecordSize();
+				if (readBuffer.capacity() >= limit) {
+					throw new IOException("Frame exceeds limit");
+				}
+				int size = Math.min(readBuffer.capacity() * 2, limit);
+				ByteBuffer bigger = ByteBuffer.allocate(size);
+				readBuffer.flip();
+				bigger.put(readBuffer);
+				readBuffer = bigger;
+			}
+
+			if (!inbox.isEmpty() && scheduled.compareAndSet(false, true)) {
+				workers.execute(this::dispatch);
+			}
+		}
+
+		private String nextMessage() throws IOException {
+			if (!binaryIn) {
+				return decoder.next(readBuffer);
+			}
+			BinaryCodec.Frame frame;
+			while ((frame = BinaryCodec.next(readBuffer)) != null) {
+				FrameCompressor c = compressor;
+				frame = c != null ? c.inflate(frame) : FrameCompressor.requireUncompressed(frame);
+				// File chunks only travel between peers
+				if (frame.opcode() != BinaryCodec.Opcode.FILE_CHUNK) {
+					return frame.toTags();
+				}
+			}
+			return null;
+		}
+
+		void write() throws IOException {
+			ByteBuffer buf;
+			while ((buf = outbound.peek()) != null) {
+				channel.write(buf);
+				if (buf.hasRemaining()) {
+					return;
+				}
+				outbound.remove();
+			}
+			key.interestOps(SelectionKey.OP_READ);
+			if (closeAfterFlush) {
+				closeNow();
+			}
+		}
+
+		private void dispatch() {
+			do {
+				String msg;
+				while ((msg = inbox.poll()) != null) {
+					try {
+						handler.onMessage(this, msg);
+					} catch (Exception e) {
+						e.printStackTrace();
+						close();
+						inbox.clear();
+					}
+				}
+				scheduled.set(false);
+			} while (!inbox.isEmpty() && scheduled.compareAndSet(false, true));
+		}
+
+		void closeNow() {
+			if (!closed.compareAndSet(false, true)) {
+				return;
+			}
+			if (key != null) {
+				key.cancel();
+			}
+			try {
+				channel.close();
+			} catch (IOException ignored) {
+				// Ignore cleanup exceptions
+			}
+			outbound.clear();
+			handler.onClose(this);
+		}
+	}
+}
@@ -0,0 +1,213 @@
+package server;
+
+import java.io.StreamCorruptedException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Byte-level codec for the Java serialization stream spoken by the clients.
+ * Every message is written with {@code ObjectOutputStream.writeObject(String)},
+ * so the wire carries a stream header followed by TC_STRING / TC_LONGSTRING
+ * records. Encoding them directly lets the server frame and answer messages
+ * without blocking Object streams.
+ */
+final class ObjectStreamFrames {
+
+	private ObjectStreamFrames() {
+		// Utility class - prevent instantiation
+	}
+
+	static final byte[] STREAM_HEADER = { (byte) 0xAC, (byte) 0xED, 0x00, 0x05 };
+
+	private static final byte TC_NULL = 0x70;
+	private static final byte TC_REFERENCE = 0x71;
+	private static final byte TC_STRING = 0x74;
+	private static final byte TC_RESET = 0x79;
+	private static final byte TC_LONGSTRING = 0x7C;
+	private static final int BASE_WIRE_HANDLE = 0x7E0000;
+
+	/**
+	 * Encodes a string as a serialization record (without stream header)
+	 *
+	 * @param msg Message to encode
+	 * @return Record readable by ObjectInputStream.readObject()
+	 */
+	static byte[] encode(String msg) {
+		int utfLen = modifiedUtfLength(msg);
+		byte[] frame;
+		int off;
+		if (utfLen <= 0xFFFF) {
+			frame = new byte[3 + utfLen];
+			frame[0] = TC_STRING;
+			frame[1] = (byte) (utfLen >>> 8);
+			frame[2] = (byte) utfLen;
+			off = 3;
+		} else {
+			frame = new byte[9 + utfLen];
+			ByteBuffer.wrap(frame).put(TC_LONGSTRING).putLong(utfLen);
+			off = 9;
+		}
+		writeModifiedUtf(msg, frame, off);
+		return frame;
+	}
+
+	/**
+	 * Prepends the stream header to the first frame of a connection
+	 *
+	 * @param frame First frame
+	 * @return New array holding header and frame
+	 */
+	static byte[] withHeader(byte[] frame) {
+		byte[] first = new byte[STREAM_HEADER.length + frame.length];
+		System.arraycopy(STREAM_HEADER, 0, first, 0, STREAM_HEADER.length);
+		System.arraycopy(frame, 0, first, STREAM_HEADER.length, frame.length);
+		return first;
+	}
+
+	private static int modifiedUtfLength(String s) {
+		int len = 0;
+		for (int i = 0, n = s.length(); i < n; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				len++;
+			} else if (c > 0x07FF) {
+				len += 3;
+			} else {
+				len += 2;
+			}
+		}
+		return len;
+	}
+
+	private static void writeModifiedUtf(String s, byte[] dst, int off) {
+		for (int i = 0, n = s.length(); i < n; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				dst[off++] = (byte) c;
+			} else if (c > 0x07FF) {
+				dst[off++] = (byte) (0xE0 | ((c >> 12) & 0x0F));
+				dst[off++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				dst[off++] = (byte) (0x80 | (c & 0x3F));
+			} else {
+				dst[off++] = (byte) (0xC0 | ((c >> 6) & 0x1F));
+				dst[off++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+	}
+
+	private static String readModifiedUtf(ByteBuffer buf, int utfLen) throws UTFDataFormatException {
+		char[] chars = new char[utfLen];
+		int count = 0;
+		int end = buf.position() + utfLen;
+		while (buf.position() < end) {
+			int c = buf.get() & 0xFF;
+			switch (c >> 4) {
+				case 0, 1, 2, 3, 4, 5, 6, 7 -> chars[count++] = (char) c;
+				case 12, 13 -> {
+					if (buf.position() >= end)
+						throw new UTFDataFormatException("Truncated 2-byte sequence");
+					int c2 = buf.get();
+					if ((c2 & 0xC0) != 0x80)
+						throw new UTFDataFormatException("Malformed 2-byte sequence");
+					chars[count++] = (char) (((c & 0x1F) << 6) | (c2 & 0x3F));
+				}
+				case 14 -> {
+					if (buf.position() + 1 >= end)
+						throw new UTFDataFormatException("Truncated 3-byte sequence");
+					int c2 = buf.get();
+					int c3 = buf.get();
+					if ((c2 & 0xC0) != 0x80 || (c3 & 0xC0) != 0x80)
+						throw new UTFDataFormatException("Malformed 3-byte sequence");
+					chars[count++] = (char) (((c & 0x0F) << 12) | ((c2 & 0x3F) << 6) | (c3 & 0x3F));
+				}
+				default -> throw new UTFDataFormatException("Malformed input around byte " + buf.position());
+			}
+		}
+		return new String(chars, 0, count);
+	}
+
+	/**
+	 * Incremental decoder for one connection. Bytes are fed as they arrive
+	 * and complete string records are pulled out one at a time.
+	 */
+	static final class Decoder {
+
+		private final int maxFrame;
+		private final ArrayList<String> handles = new ArrayList<>();
+		private boolean headerRead = false;
+
+		Decoder(int maxFrame) {
+			this.maxFrame = maxFrame;
+		}
+
+		/**
+		 * Decodes the next complete message
+		 *
+		 * @param buf Buffer in read mode; consumed bytes are skipped
+		 * @return Next message, or null if more bytes are needed
+		 * @throws StreamCorruptedException If the stream is not a string stream
+		 */
+		String next(ByteBuffer buf) throws StreamCorruptedException, UTFDataFormatException {
+			while (true) {
+				int start = buf.position();
+				if (!headerRead) {
+					if (buf.remaining() < STREAM_HEADER.length)
+						return null;
+					if (buf.getShort() != (short) 0xACED || buf.getShort() != 5)
+						throw new StreamCorruptedException("Invalid stream header");
+					headerRead = true;
+					continue;
+				}
+				if (!buf.hasRemaining())
+					return null;
+
+				byte type = buf.get();
+				switch (type) {
+					case TC_RESET -> handles.clear();
+					case TC_NULL -> {
+						// Nothing to deliver
+					}
+					case TC_REFERENCE -> {
+						if (buf.remaining() < 4) {
+							buf.position(start);
+							return null;
+						}
+						int index = buf.getInt() - BASE_WIRE_HANDLE;
+						if (index < 0 || index >= handles.size())
+							throw new StreamCorruptedException("Invalid handle");
+						return handles.get(index);
+					}
+					case TC_STRING, TC_LONGSTRING -> {
+						int lenBytes = type == TC_STRING ? 2 : 8;
+						if (buf.remaining() < lenBytes) {
+							buf.position(start);
+							return null;
+						}
+						long utfLen = type == TC_STRING ? buf.getShort() & 0xFFFF : buf.getLong();
+						if (utfLen < 0 || utfLen > maxFrame)
+							throw new StreamCorruptedException("Frame too large: " + utfLen);
+						if (buf.remaining() < utfLen) {
+							buf.position(start);
+							return null;
+						}
+						String msg = readModifiedUtf(buf, (int) utfLen);
+						handles.add(msg);
+						return msg;
+					}
+					default -> throw new StreamCorruptedException(
+							String.format("Unsupported type code: %02X", type));
+				}
+			}
+		}
+
+		/**
+		 * Gets the largest record this decoder accepts, including its prefix
+		 *
+		 * @return Maximum record size in bytes
+		 */
+		int maxRecordSize() {
+			return maxFrame + 9;
+		}
+	}
+}
@@ -0,0 +1,129 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.table.AbstractTableModel;
+
+import data.Peer;
+
+/**
+ * Table of online users for the server window. It is refreshed from the
+ * registry's change log, so a burst of logins between two refreshes costs
+ * one batch of row updates instead of one redraw per login. EDT only.
+ */
+@SuppressWarnings("serial") // Serializable only through AbstractTableModel; never serialized
+final class OnlineUserTableModel extends AbstractTableModel {
+
+	private static final String[] COLUMNS = { "No", "Username", "Address" };
+
+	private final List<Peer> rows = new ArrayList<>();
+	private final Map<String, Integer> rowOf = new HashMap<>();
+	private long version = -1;
+
+	/**
+	 * Brings the table up to date with the registry
+	 *
+	 * @param registry Registry to show
+	 * @return true if anything changed
+	 */
+	boolean refresh(PeerRegistry registry) {
+		long current = registry.getVersion();
+		if (current == version) {
+			return false;
+		}
+		PeerRegistry.Delta delta = version < 0 ? null : registry.changesSince(version);
+		if (delta == null) {
+			// First refresh or too far behind: reload; changes made during the
+			// copy are applied again by the next delta, which is harmless
+			rows.clear();
+			rowOf.clear();
+			for (Peer peer : registry.snapshot()) {
+				rowOf.put(peer.getName(), rows.size());
+				rows.add(peer);
+			}
+			version = current;
+			fireTableDataChanged();
+			return true;
+		}
+
+		int firstInsert = rows.size();
+		boolean onlyInserts = true;
+		for (Map.Entry<String, Peer> change : delta.changes().entrySet()) {
+			Integer row = rowOf.get(change.getKey());
+			if (change.getValue() == null) {
+				if (row != null) {
+					removeRow(row);
+					onlyInserts = false;
+				}
+			} else if (row != null) {
+				rows.set(row, change.getValue());
+				onlyInserts = false;
+			} else {
+				rowOf.put(change.getKey(), rows.size());
+				rows.add(change.getValue());
+			}
+		}
+		version = delta.version();
+		if (onlyInserts) {
+			if (rows.size() > firstInsert) {
+				fireTableRowsInserted(firstInsert, rows.size() - 1);
+			}
+		} else {
+			fireTableDataChanged();
+		}
+		return true;
+	}
+
+	/**
+	 * Empties the table, e.g. when the server stops
+	 */
+	void clear() {
+		rows.clear();
+		rowOf.clear();
+		version = -1;
+		fireTableDataChanged();
+	}
+
+	// O(1) removal: the last row takes the removed row's place
+	private void removeRow(int row) {
+		Peer last = rows.remove(rows.size() - 1);
+		rowOf.remove(rows.size() == row ? last.getName() : rows.get(row).getName());
+		if (row < rows.size()) {
+			rows.set(row, last);
+			rowOf.put(last.getName(), row);
+		}
+	}
+
+	@Override
+	public int getRowCount() {
+		return rows.size();
+	}
+
+	@Override
+	public int getColumnCount() {
+		return COLUMNS.length;
+	}
+
+	@Override
+	public String getColumnName(int column) {
+		return COLUMNS[column];
+	}
+
+	@Override
+	public Class<?> getColumnClass(int column) {
+		return column == 0 ? Integer.class : String.class;
+	}
+
+	@Override
+	public Object getValueAt(int row, int column) {
+		Peer peer = rows.get(row);
+		return switch (column) {
+			case 0 -> row + 1;
+			case 1 -> peer.getName();
+			default -> peer.getHost() + ":" + peer.getPort();
+		};
+	}
+}
@@ -0,0 +1,183 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue of frames waiting to be written to one connection.
+ * Handlers only enqueue; the engine's I/O side drains the queue, so a slow
+ * reader never blocks writes to other clients. When the queue is full the
+ * frame kind's overflow policy decides what gives.
+ */
+final class OutboundQueue {
+
+	/** What a frame carries, which decides its overflow policy */
+	enum Kind {
+		/** Replies to the client's own requests */
+		CONTROL,
+		/** Pushed presence deltas; a lost one is repaired by the next keep-alive */
+		PRESENCE
+	}
+
+	enum OverflowPolicy {
+		/** Drop the oldest queued frame of the same kind to make room */
+		DROP_OLDEST,
+		/** The client is stuck: close the connection */
+		DISCONNECT
+	}
+
+	/**
+	 * Queue limits, read from system properties at startup:
+	 * {@code vku.server.queue.frames}, {@code vku.server.queue.bytes},
+	 * {@code vku.server.queue.presence} and {@code vku.server.queue.control}
+	 * (policies: drop_oldest | disconnect).
+	 */
+	record Config(int maxFrames, long maxBytes, OverflowPolicy presencePolicy, OverflowPolicy controlPolicy) {
+
+		static Config fromProperties() {
+			return new Config(
+					Integer.getInteger("vku.server.queue.frames", 256),
+					Long.getLong("vku.server.queue.bytes", 4L * 1024 * 1024),
+					OverflowPolicy.valueOf(System.getProperty("vku.server.queue.presence", "drop_oldest").toUpperCase()),
+					OverflowPolicy.valueOf(System.getProperty("vku.server.queue.control", "disconnect").toUpperCase()));
+		}
+
+		OverflowPolicy policyFor(Kind kind) {
+			return kind == Kind.PRESENCE ? presencePolicy : controlPolicy;
+		}
+	}
+
+	/** Counters shared by all queues of one server */
+	static final class Metrics {
+		final AtomicLong queuedFrames = new AtomicLong();
+		final AtomicLong queuedBytes = new AtomicLong();
+		final AtomicLong droppedFrames = new AtomicLong();
+		final AtomicLong overflowDisconnects = new AtomicLong();
+	}
+
+	private record Frame(ByteBuffer buf, Kind kind) {
+	}
+
+	private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+	private final Config config;
+	private final Metrics metrics;
+	private long bytes = 0;
+
+	OutboundQueue(Config config, Metrics metrics) {
+		this.config = config;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Enqueues a frame
+	 *
+	 * @param frame Encoded frame; it is wrapped, not copied
+	 * @param kind  Frame kind
+	 * @return false if the connection must be closed because of overflow
+	 */
+	synchronized boolean offer(byte[] frame, Kind kind) {
+		while (frames.size() >= config.maxFrames() || (bytes + frame.length > config.maxBytes() && !frames.isEmpty())) {
+			if (config.policyFor(kind) == OverflowPolicy.DISCONNECT) {
+				metrics.overflowDisconnects.incrementAndGet();
+				return false;
+			}
+			if (!dropOldest(kind)) {
+				// Nothing of this kind left to drop: drop the new frame instead
+				metrics.droppedFrames.incrementAndGet();
+				return true;
+			}
+		}
+		frames.add(new Frame(ByteBuffer.wrap(frame), kind));
+		bytes += frame.length;
+		metrics.queuedFrames.incrementAndGet();
+		metrics.queuedBytes.addAndGet(frame.length);
+		notifyAll();
+		return true;
+	}
+
+	// Drops the oldest frame of a kind, never the head if it is partly written
+	private boolean dropOldest(Kind kind) {
+		Iterator<Frame> it = frames.iterator();
+		while (it.hasNext()) {
+			Frame f = it.next();
+			if (f.kind() == kind && f.buf().position() == 0) {
+				it.remove();
+				release(f);
+				metrics.droppedFrames.incrementAndGet();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the frame being written without removing it
+	 *
+	 * @return Head buffer, or null if empty
+	 */
+	synchronized ByteBuffer peek() {
+		Frame head = frames.peek();
+		return head == null ? null : head.buf();
+	}
+
+	/**
+	 * Removes the head frame once it has been fully written
+	 */
+	synchronized void remove() {
+		Frame head = frames.poll();
+		if (head != null) {
+			release(head);
+		}
+	}
+
+	/**
+	 * Waits for a frame and removes it
+	 *
+	 * @param timeoutMillis Maximum wait
+	 * @return Frame buffer, or null on timeout
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	synchronized ByteBuffer take(long timeoutMillis) throws InterruptedException {
+		if (frames.isEmpty()) {
+			wait(timeoutMillis);
+		}
+		Frame head = frames.poll();
+		if (head == null) {
+			return null;
+		}
+		release(head);
+		return head.buf();
+	}
+
+	synchronized boolean isEmpty() {
+		return frames.isEmpty();
+	}
+
+	synchronized int size() {
+		return frames.size();
+	}
+
+	/**
+	 * Discards everything still queued, e.g. when the connection closes
+	 */
+	synchronized void clear() {
+		for (Frame f : frames) {
+			release(f);
+		}
+		frames.clear();
+		notifyAll();
+	}
+
+	synchronized void wakeUp() {
+		notifyAll();
+	}
+
+	private void release(Frame f) {
+		int len = f.buf().capacity();
+		bytes -= len;
+		metrics.queuedFrames.decrementAndGet();
+		metrics.queuedBytes.addAndGet(-len);
+	}
+}
@@ -0,0 +1,169 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import data.Peer;
+
+/**
+ * Thread-safe index of online peers keyed by username.
+ * Lookups and iteration are lock-free; membership changes are serialized so
+ * that every change gets its own, strictly increasing version number.
+ * The most recent changes are kept in a ring so clients can ask for a delta.
+ */
+public final class PeerRegistry {
+
+	private static final int CHANGE_LOG_SIZE = 4096;
+
+	/**
+	 * Net membership changes between two versions
+	 *
+	 * @param version Version the changes lead to
+	 * @param changes Changed names in order; a null value means the peer left
+	 */
+	public record Delta(long version, Map<String, Peer> changes) {
+	}
+
+	private final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<>();
+	// Versions start from the clock so a client never mistakes a version
+	// from an earlier server run for a current one
+	private final long baseVersion = System.currentTimeMillis() << 20;
+	private volatile long version = baseVersion;
+	private final String[] logNames = new String[CHANGE_LOG_SIZE];
+	private final Peer[] logPeers = new Peer[CHANGE_LOG_SIZE];
+	private final List<Runnable> changeListeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Registers a callback run after every membership change. It is called
+	 * while the registry is locked, so it must only signal, never block.
+	 *
+	 * @param listener Callback
+	 */
+	public void addChangeListener(Runnable listener) {
+		changeListeners.add(listener);
+	}
+
+	/**
+	 * Registers a peer if its name is free
+	 *
+	 * @param peer Peer to add
+	 * @return true if added, false if the name is already online
+	 */
+	public synchronized boolean add(Peer peer) {
+		if (peers.putIfAbsent(peer.getName(), peer) != null) {
+			return false;
+		}
+		record(peer.getName(), peer);
+		return true;
+	}
+
+	/**
+	 * Removes a peer by name
+	 *
+	 * @param name Username
+	 * @return Removed peer, or null if it was not online
+	 */
+	public synchronized Peer remove(String name) {
+		Peer removed = peers.remove(name);
+		if (removed != null) {
+			record(name, null);
+		}
+		return removed;
+	}
+
+	/**
+	 * Registers or replaces a peer, e.g. when applying a change made on
+	 * another server node
+	 *
+	 * @param peer Peer to store
+	 */
+	public synchronized void put(Peer peer) {
+		Peer old = peers.put(peer.getName(), peer);
+		if (!peer.equals(old)) {
+			record(peer.getName(), peer);
+		}
+	}
+
+	private void record(String name, Peer peer) {
+		long next = version + 1;
+		int slot = (int) (next % CHANGE_LOG_SIZE);
+		logNames[slot] = name;
+		logPeers[slot] = peer;
+		version = next;
+		for (Runnable listener : changeListeners) {
+			listener.run();
+		}
+	}
+
+	/**
+	 * Collects the net changes made after a given version
+	 *
+	 * @param since Version the caller already has
+	 * @return Changes up to the current version, or null if {@code since} is
+	 *         unknown or older than the retained change log
+	 */
+	public synchronized Delta changesSince(long since) {
+		long retained = Math.min(version - baseVersion, CHANGE_LOG_SIZE);
+		if (since > version || since < version - retained) {
+			return null;
+		}
+		Map<String, Peer> changes = new LinkedHashMap<>();
+		for (long v = since + 1; v <= version; v++) {
+			int slot = (int) (v % CHANGE_LOG_SIZE);
+			changes.remove(logNames[slot]);
+			changes.put(logNames[slot], logPeers[slot]);
+		}
+		return new Delta(version, changes);
+	}
+
+	/**
+	 * Gets an online peer by name
+	 *
+	 * @param name Username
+	 * @return Peer, or null if not online
+	 */
+	public Peer get(String name) {
+		return peers.get(name);
+	}
+
+	public boolean contains(String name) {
+		return peers.containsKey(name);
+	}
+
+	public int size() {
+		return peers.size();
+	}
+
+	/**
+	 * Gets the current membership version; it changes on every add or remove
+	 *
+	 * @return Version number
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Gets a weakly consistent, read-only view of the online peers
+	 *
+	 * @return Live view, safe to iterate while the registry changes
+	 */
+	public Collection<Peer> peers() {
+		return Collections.unmodifiableCollection(peers.values());
+	}
+
+	/**
+	 * Copies the online peers into a new list
+	 *
+	 * @return Point-in-time list of peers
+	 */
+	public List<Peer> snapshot() {
+		return new ArrayList<>(peers.values());
+	}
+}
@@ -0,0 +1,89 @@
+package server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pushes presence deltas to subscribed control connections.
+ * Changes are coalesced: the publisher thread wakes after a change and sends
+ * one delta covering everything since the last push, so a login burst costs
+ * a few frames per subscriber rather than one per login.
+ */
+final class PresencePublisher implements Runnable {
+
+	private final PeerRegistry registry;
+	private final SnapshotCache cache;
+	private final Set<ClientConnection> subscribers = ConcurrentHashMap.newKeySet();
+	private final Object signal = new Object();
+	private boolean dirty = false;
+	private volatile boolean running = true;
+	private long published;
+
+	PresencePublisher(PeerRegistry registry, SnapshotCache cache) {
+		this.registry = registry;
+		this.cache = cache;
+		this.published = registry.getVersion();
+		registry.addChangeListener(this::changed);
+	}
+
+	void start() {
+		Thread t = new Thread(this, "presence-publisher");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	void stop() {
+		running = false;
+		changed();
+	}
+
+	void subscribe(ClientConnection connection) {
+		subscribers.add(connection);
+	}
+
+	void unsubscribe(ClientConnection connection) {
+		subscribers.remove(connection);
+	}
+
+	int getSubscriberCount() {
+		return subscribers.size();
+	}
+
+	private void changed() {
+		synchronized (signal) {
+			dirty = true;
+			signal.notifyAll();
+		}
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			synchronized (signal) {
+				while (!dirty && running) {
+					try {
+						signal.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				dirty = false;
+			}
+
+			long version = registry.getVersion();
+			if (version == published) {
+				continue;
+			}
+			WireFrame frame = cache.getDelta(published);
+			published = version;
+			for (ClientConnection subscriber : subscribers) {
+				try {
+					subscriber.sendPresence(frame);
+				} catch (Exception e) {
+					subscribers.remove(subscriber);
+					subscriber.close();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import database.PeerDAO;
+import database.PeerDAO.PeerStatus;
+
+/**
+ * Write-behind queue for the peers presence table.
+ * Updates are coalesced per username, so a peer that logs in and out
+ * repeatedly costs one row write per flush, and flushed in JDBC batches
+ * from a background thread. The queue is bounded: when the database falls
+ * behind, new usernames are dropped (and counted) instead of slowing logins.
+ */
+final class PresenceWriter implements Runnable {
+
+	private static final int MAX_PENDING = 10000;
+	private static final int BATCH_SIZE = 500;
+	private static final long FLUSH_INTERVAL = 200;
+	private static final long RETRY_DELAY = 2000;
+
+	private final LinkedHashMap<String, PeerStatus> pending = new LinkedHashMap<>();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private volatile boolean running = true;
+
+	void start() {
+		Thread t = new Thread(this, "presence-writer");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	void stop() {
+		running = false;
+		synchronized (pending) {
+			pending.notifyAll();
+		}
+	}
+
+	/**
+	 * Queues a presence update, replacing any pending one for the same user
+	 *
+	 * @param status New presence row
+	 * @return false if the queue was full and the update was dropped
+	 */
+	boolean offer(PeerStatus status) {
+		synchronized (pending) {
+			if (!pending.containsKey(status.username()) && pending.size() >= MAX_PENDING) {
+				dropped.incrementAndGet();
+				return false;
+			}
+			pending.put(status.username(), status);
+			pending.notifyAll();
+			return true;
+		}
+	}
+
+	long getDroppedCount() {
+		return dropped.get();
+	}
+
+	long getWrittenCount() {
+		return written.get();
+	}
+
+	int getPendingCount() {
+		synchronized (pending) {
+			return pending.size();
+		}
+	}
+
+	@Override
+	public void run() {
+		while (running || getPendingCount() > 0) {
+			List<PeerStatus> batch;
+			synchronized (pending) {
+				while (pending.isEmpty() && running) {
+					try {
+						pending.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				batch = new ArrayList<>(pending.values());
+				pending.clear();
+			}
+
+			for (int from = 0; from < batch.size(); from += BATCH_SIZE) {
+				List<PeerStatus> chunk = batch.subList(from, Math.min(from + BATCH_SIZE, batch.size()));
+				try {
+					PeerDAO.upsertPeers(chunk);
+					written.addAndGet(chunk.size());
+				} catch (Exception e) {
+					System.err.println("Presence write failed, retrying: " + e.getMessage());
+					if (!running) {
+						return; // Shutting down: give up instead of spinning on a dead database
+					}
+					requeue(batch.subList(from, batch.size()));
+					sleep(RETRY_DELAY);
+					break;
+				}
+			}
+			// Let updates accumulate so the next batch coalesces them
+			sleep(FLUSH_INTERVAL);
+		}
+	}
+
+	// Puts failed rows back unless a newer update for the user arrived meanwhile
+	private void requeue(List<PeerStatus> failed) {
+		synchronized (pending) {
+			for (PeerStatus status : failed) {
+				if (!pending.containsKey(status.username()) && pending.size() < MAX_PENDING) {
+					pending.put(status.username(), status);
+				}
+			}
+		}
+	}
+
+	private void sleep(long millis) {
+		if (!running) {
+			return;
+		}
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package server;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import tags.Tags;
+
+/**
+ * Token-bucket limits on client messages, per IP address and per username.
+ * Checked before a message is parsed: the address costs nothing and the
+ * username is cut out with two indexOf calls, so a flooding client is
+ * turned away before its message is decoded, changes the registry or
+ * queues a database write.
+ * Idle buckets are swept so random usernames cannot grow the maps forever.
+ */
+final class RateLimiter {
+
+	private static final long SWEEP_INTERVAL = 30_000_000_000L; // 30 s in nanos
+
+	/**
+	 * Limits, read from system properties at startup:
+	 * {@code vku.server.rate.ip} and {@code vku.server.rate.user} in messages
+	 * per second (0 disables), and {@code vku.server.rate.ip.burst} and
+	 * {@code vku.server.rate.user.burst}.
+	 */
+	record Config(double ipRate, double ipBurst, double userRate, double userBurst) {
+
+		static Config fromProperties() {
+			return new Config(
+					Double.parseDouble(System.getProperty("vku.server.rate.ip", "50")),
+					Double.parseDouble(System.getProperty("vku.server.rate.ip.burst", "100")),
+					Double.parseDouble(System.getProperty("vku.server.rate.user", "5")),
+					Double.parseDouble(System.getProperty("vku.server.rate.user.burst", "20")));
+		}
+	}
+
+	private static final class Bucket {
+		private double tokens;
+		private long refilledAt;
+
+		Bucket(double burst, long now) {
+			this.tokens = burst;
+			this.refilledAt = now;
+		}
+
+		synchronized boolean tryAcquire(double rate, double burst, long now) {
+			refill(rate, burst, now);
+			if (tokens < 1) {
+				return false;
+			}
+			tokens -= 1;
+			return true;
+		}
+
+		synchronized boolean isFull(double rate, double burst, long now) {
+			refill(rate, burst, now);
+			return tokens >= burst;
+		}
+
+		private void refill(double rate, double burst, long now) {
+			tokens = Math.min(burst, tokens + (now - refilledAt) * rate / 1e9);
+			refilledAt = now;
+		}
+	}
+
+	private final Config config;
+	private final ConcurrentHashMap<InetAddress, Bucket> byIp = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Bucket> byUser = new ConcurrentHashMap<>();
+	private final AtomicLong throttledByIp = new AtomicLong();
+	private final AtomicLong throttledByUser = new AtomicLong();
+	private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+	RateLimiter(Config config) {
+		this.config = config;
+	}
+
+	/**
+	 * Takes a token for a message from its address and, if it names a user,
+	 * from that user
+	 *
+	 * @param address Client address
+	 * @param msg     Raw message
+	 * @return false if the message must be dropped
+	 */
+	boolean allow(InetAddress address, String msg) {
+		long now = System.nanoTime();
+		sweepIfDue(now);
+		if (config.ipRate() > 0 && !byIp.computeIfAbsent(address, k -> new Bucket(config.ipBurst(), now))
+				.tryAcquire(config.ipRate(), config.ipBurst(), now)) {
+			throttledByIp.incrementAndGet();
+			return false;
+		}
+		String name = config.userRate() > 0 ? extractName(msg) : null;
+		if (name != null && !byUser.computeIfAbsent(name, k -> new Bucket(config.userBurst(), now))
+				.tryAcquire(config.userRate(), config.userBurst(), now)) {
+			throttledByUser.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	long getThrottledByIp() {
+		return throttledByIp.get();
+	}
+
+	long getThrottledByUser() {
+		return throttledByUser.get();
+	}
+
+	/**
+	 * Finds the username of a login or keep-alive without parsing it
+	 *
+	 * @param msg Raw message
+	 * @return Text of the first PEER_NAME tag, or null if there is none
+	 */
+	static String extractName(String msg) {
+		int start = msg.indexOf(Tags.PEER_NAME_OPEN_TAG);
+		if (start < 0) {
+			return null;
+		}
+		start += Tags.PEER_NAME_OPEN_TAG.length();
+		int end = msg.indexOf(Tags.PEER_NAME_CLOSE_TAG, start);
+		return end < 0 ? null : msg.substring(start, end);
+	}
+
+	// drops buckets that have refilled completely, i.e. clients that went quiet
+	private void sweepIfDue(long now) {
+		long last = lastSweep.get();
+		if (now - last < SWEEP_INTERVAL || !lastSweep.compareAndSet(last, now)) {
+			return;
+		}
+		byIp.values().removeIf(b -> b.isFull(config.ipRate(), config.ipBurst(), now));
+		byUser.values().removeIf(b -> b.isFull(config.userRate(), config.userBurst(), now));
+	}
+}
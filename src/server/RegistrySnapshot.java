@@ -0,0 +1,184 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import data.Peer;
+
+/**
+ * Periodic on-disk copy of the online peers and their liveness deadlines,
+ * so a restarted server can show presence again at once instead of waiting
+ * for every client to reconnect. The file is rewritten atomically and read
+ * back in one piece:
+ *
+ * <pre>
+ * magic u32, format u32, registry version u64, written at u64, count u32,
+ * then per peer: name, host (u16 length + UTF-8), port u32, deadline u64
+ * </pre>
+ *
+ * Path and interval come from {@code vku.server.snapshot} (default
+ * registry.snapshot) and {@code vku.server.snapshot.interval} (ms, 0 disables).
+ */
+final class RegistrySnapshot implements Runnable {
+
+	private static final int MAGIC = 0x564B5552; // "VKUR"
+	private static final int FORMAT = 1;
+
+	/**
+	 * One peer as saved
+	 *
+	 * @param peer     Peer
+	 * @param deadline Wall-clock time its liveness ran out, -1 if untracked
+	 */
+	record Entry(Peer peer, long deadline) {
+	}
+
+	/**
+	 * Contents of a snapshot file
+	 *
+	 * @param version   Registry version when written
+	 * @param writtenAt Wall-clock write time
+	 * @param entries   Saved peers
+	 */
+	record Contents(long version, long writtenAt, List<Entry> entries) {
+	}
+
+	private final Path path;
+	private final long interval;
+	private final PeerRegistry registry;
+	private final TimingWheel<String> liveness;
+	private volatile boolean running = true;
+
+	RegistrySnapshot(PeerRegistry registry, TimingWheel<String> liveness) {
+		this.path = Path.of(System.getProperty("vku.server.snapshot", "registry.snapshot"));
+		this.interval = Long.getLong("vku.server.snapshot.interval", 5000);
+		this.registry = registry;
+		this.liveness = liveness;
+	}
+
+	boolean isEnabled() {
+		return interval > 0;
+	}
+
+	void start() {
+		if (!isEnabled()) {
+			return;
+		}
+		Thread t = new Thread(this, "registry-snapshot");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	void stop() {
+		running = false;
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				write();
+			} catch (IOException e) {
+				System.err.println("Registry snapshot failed: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Writes the current registry next to the old file and swaps it in
+	 *
+	 * @throws IOException If the file cannot be written
+	 */
+	void write() throws IOException {
+		long version = registry.getVersion();
+		List<Peer> peers = new ArrayList<>();
+		for (Peer peer : registry.snapshot()) {
+			// Lengths are stored in 16 bits; longer names cannot have logged in anyway
+			if (utf8Length(peer.getName()) <= 0xFFFF && utf8Length(peer.getHost()) <= 0xFFFF) {
+				peers.add(peer);
+			}
+		}
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT);
+			out.writeLong(version);
+			out.writeLong(System.currentTimeMillis());
+			out.writeInt(peers.size());
+			for (Peer peer : peers) {
+				writeString(out, peer.getName());
+				writeString(out, peer.getHost());
+				out.writeInt(peer.getPort());
+				out.writeLong(liveness.getDeadline(peer.getName()));
+			}
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reads and decodes the snapshot file
+	 *
+	 * @return Contents, or null if there is no usable file
+	 */
+	Contents load() {
+		if (!Files.isRegularFile(path)) {
+			return null;
+		}
+		try {
+			// Read whole, not mapped: a first map costs tens of ms of one-time
+			// JDK setup, more than reading a file of a few MB takes
+			ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(path));
+			if (buf.getInt() != MAGIC || buf.getInt() != FORMAT) {
+				return null;
+			}
+			long version = buf.getLong();
+			long writtenAt = buf.getLong();
+			int count = buf.getInt();
+			List<Entry> entries = new ArrayList<>(Math.min(count, 65536));
+			for (int i = 0; i < count; i++) {
+				Peer peer = new Peer();
+				peer.setPeer(readString(buf), readString(buf), buf.getInt());
+				entries.add(new Entry(peer, buf.getLong()));
+			}
+			return new Contents(version, writtenAt, entries);
+		} catch (IOException | BufferUnderflowException e) {
+			System.err.println("Ignoring unreadable registry snapshot: " + e);
+			return null;
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	private static int utf8Length(String s) {
+		return s.length() * 3 <= 0xFFFF ? s.length() : s.getBytes(StandardCharsets.UTF_8).length;
+	}
+
+	private static String readString(ByteBuffer buf) {
+		int length = buf.getShort() & 0xFFFF;
+		if (length > buf.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		// Decoded straight from the backing array, no copy per string
+		String s = new String(buf.array(), buf.position(), length, StandardCharsets.UTF_8);
+		buf.position(buf.position() + length);
+		return s;
+	}
+}
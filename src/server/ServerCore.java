@@ -1,127 +1,433 @@
 package server;
 
+import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.*;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import data.Peer;
-import database.DBUtil;
+import database.PeerDAO.PeerStatus;
 import tags.Decode;
+import tags.Encode;
+import tags.FrameCompressor;
+import tags.Handshake;
 import tags.Tags;
 
-public class ServerCore {
+public class ServerCore implements MessageHandler {
 
-	private ArrayList<Peer> dataPeer = null;
+	/**
+	 * Connection engine used to serve clients. Selected at startup with
+	 * {@code -Dvku.server.mode=nio|virtual|blocking}.
+	 */
+	public enum Mode {
+		BLOCKING, VIRTUAL, NIO;
+
+		public static Mode fromProperty() {
+			String mode = System.getProperty("vku.server.mode", "nio");
+			return Mode.valueOf(mode.trim().toUpperCase());
+		}
+	}
+
+	private static final int WORKER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+	// Clients send a keep-alive every 10 s; a peer silent for three of them is gone
+	private static final long PEER_TIMEOUT = 35000;
+	private static final long LIVENESS_TICK = 1000;
+	private static final int LIVENESS_WHEEL_SIZE = 64;
+
+	private final PeerRegistry dataPeer = new PeerRegistry();
+	private final SnapshotCache sessionAccept = new SnapshotCache(dataPeer);
+	private final PresencePublisher publisher = new PresencePublisher(dataPeer, sessionAccept);
+	private final PresenceWriter presenceWriter = new PresenceWriter();
+	private final OutboundQueue.Config queueConfig = OutboundQueue.Config.fromProperties();
+	private final OutboundQueue.Metrics queueMetrics = new OutboundQueue.Metrics();
+	private final RateLimiter rateLimiter = new RateLimiter(RateLimiter.Config.fromProperties());
+	private final ConnectionManager connections = new ConnectionManager();
+	private final Handshake protocol = Handshake.local();
+	private final FrameCompressor.Metrics compressionMetrics = new FrameCompressor.Metrics();
+	// null when this server runs alone
+	private ClusterNode cluster;
+	private final List<ServerListener> listeners = new CopyOnWriteArrayList<>();
+	private final TimingWheel<String> liveness = new TimingWheel<>("peer-liveness", LIVENESS_TICK,
+			LIVENESS_WHEEL_SIZE, PEER_TIMEOUT, this::expirePeer);
+	private final RegistrySnapshot snapshot = new RegistrySnapshot(dataPeer, liveness);
+	// the login each open control connection made, so its keep-alives can
+	// bring the peer back after the wheel expired it while the link stayed up
+	private final ConcurrentHashMap<ClientConnection, Peer> logins = new ConcurrentHashMap<>();
 	private ServerSocket server;
+	private final Mode mode;
+	private ServerEngine engine;
 	private Socket connection;
-	private ObjectOutputStream obOutputClient;
 	private ObjectInputStream obInputStream;
-	public boolean isStop = false, isExit = false;
+	public boolean isStop = false;
 	private static int portServer;
 
-	ArrayList<Peer> getListUser() {
+	List<Peer> getListUser() {
+		return dataPeer.snapshot();
+	}
+
+	PeerRegistry getRegistry() {
 		return dataPeer;
 	}
 
+	/**
+	 * Gets the gossip node replicating the registry
+	 *
+	 * @return Cluster node, or null if this server runs alone
+	 */
+	ClusterNode getCluster() {
+		return cluster;
+	}
+
+	/**
+	 * Gets the number of frames queued for all clients
+	 *
+	 * @return Outbound queue depth
+	 */
+	long getOutboundQueueDepth() {
+		return queueMetrics.queuedFrames.get();
+	}
+
+	/**
+	 * Gets the number of bytes queued for all clients
+	 *
+	 * @return Outbound queue size in bytes
+	 */
+	long getOutboundQueueBytes() {
+		return queueMetrics.queuedBytes.get();
+	}
+
+	/**
+	 * Gets the number of frames dropped because a client fell behind
+	 *
+	 * @return Dropped frames
+	 */
+	long getDroppedFrames() {
+		return queueMetrics.droppedFrames.get();
+	}
+
+	/**
+	 * Gets the number of clients closed because their queue overflowed
+	 *
+	 * @return Overflow disconnects
+	 */
+	long getOverflowDisconnects() {
+		return queueMetrics.overflowDisconnects.get();
+	}
+
+	/**
+	 * Gets the compression counters of all connections
+	 *
+	 * @return Compression ratio, frame counts and CPU time
+	 */
+	FrameCompressor.Metrics getCompressionMetrics() {
+		return compressionMetrics;
+	}
+
+	/**
+	 * Gets the number of messages dropped by the per-IP limit
+	 *
+	 * @return Throttled messages
+	 */
+	long getThrottledByIp() {
+		return rateLimiter.getThrottledByIp();
+	}
+
+	/**
+	 * Gets the number of messages dropped by the per-username limit
+	 *
+	 * @return Throttled messages
+	 */
+	long getThrottledByUser() {
+		return rateLimiter.getThrottledByUser();
+	}
+
+	/**
+	 * Gets the number of open client connections
+	 *
+	 * @return Open connections
+	 */
+	int getOpenConnections() {
+		return connections.getOpenCount();
+	}
+
+	int getMaxConnections() {
+		return connections.getMaxConnections();
+	}
+
+	/**
+	 * Gets the number of connections refused because the budget was used up
+	 *
+	 * @return Refused connections
+	 */
+	long getRefusedConnections() {
+		return connections.getRefusedCount();
+	}
+
+	/**
+	 * Gets the number of idle connections closed by the reaper
+	 *
+	 * @return Reaped connections
+	 */
+	long getReapedConnections() {
+		return connections.getReapedCount();
+	}
+
+	/**
+	 * Registers an observer of server events
+	 *
+	 * @param listener Listener to add
+	 */
+	public void addListener(ServerListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(ServerListener listener) {
+		listeners.remove(listener);
+	}
+
 	// Intial server socket
-	public ServerCore(int port) throws Exception {
-		server = new ServerSocket(port);
-		dataPeer = new ArrayList<Peer>();
+	public ServerCore(int port, ServerListener... listeners) {
+		this(port, Mode.fromProperty(), listeners);
+	}
+
+	public ServerCore(int port, Mode mode, ServerListener... listeners) {
 		portServer = port;
-		(new WaitForConnect()).start();
+		this.mode = mode;
+		this.listeners.addAll(List.of(listeners));
 	}
 
-	// show status of state
-	private String sendSessionAccept() throws Exception {
-		String msg = Tags.SESSION_ACCEPT_OPEN_TAG;
-		int size = dataPeer.size();
-		for (int i = 0; i < size; i++) {
-			Peer peer = dataPeer.get(i);
-			msg += Tags.PEER_OPEN_TAG;
-			msg += Tags.PEER_NAME_OPEN_TAG;
-			msg += peer.getName();
-			msg += Tags.PEER_NAME_CLOSE_TAG;
-			msg += Tags.IP_OPEN_TAG;
-			msg += peer.getHost();
-			msg += Tags.IP_CLOSE_TAG;
-			msg += Tags.PORT_OPEN_TAG;
-			msg += peer.getPort();
-			msg += Tags.PORT_CLOSE_TAG;
-			msg += Tags.PEER_CLOSE_TAG;
+	/**
+	 * Restores or syncs the registry and starts serving clients. Separate from
+	 * the constructor so the engines never see a half-built server.
+	 *
+	 * @throws Exception If the port cannot be bound
+	 */
+	public void start() throws Exception {
+		int port = portServer;
+		ClusterNode.Config clusterConfig = ClusterNode.Config.fromProperties();
+		if (clusterConfig != null) {
+			// Catch up on the cluster's peers before serving clients
+			cluster = new ClusterNode(clusterConfig, dataPeer, this.listeners);
+			cluster.start();
+		} else {
+			restoreSnapshot();
+		}
+		switch (mode) {
+			case NIO -> engine = new NioServerEngine(port, this, WORKER_THREADS, queueConfig, queueMetrics);
+			case VIRTUAL -> engine = new VirtualThreadServerEngine(port, this, queueConfig, queueMetrics);
+			case BLOCKING -> server = new ServerSocket(port);
+		}
+		publisher.start();
+		presenceWriter.start();
+		liveness.start();
+		connections.start();
+		snapshot.start();
+		if (engine != null) {
+			engine.start();
+		} else {
+			(new WaitForConnect()).start();
 		}
-		msg += Tags.SESSION_ACCEPT_CLOSE_TAG;
-		return msg;
+		for (ServerListener listener : this.listeners)
+			listener.onStarted(port);
+	}
+
+	// warm restart: peers from the last snapshot stay online until their saved
+	// liveness deadline, unless their clients keep alive or resume meanwhile
+	private void restoreSnapshot() {
+		if (!snapshot.isEnabled())
+			return;
+		long start = System.nanoTime();
+		RegistrySnapshot.Contents contents = snapshot.load();
+		if (contents == null)
+			return;
+		long now = System.currentTimeMillis();
+		int restored = 0;
+		for (RegistrySnapshot.Entry entry : contents.entries()) {
+			if (entry.deadline() > now && dataPeer.add(entry.peer())) {
+				liveness.touchUntil(entry.peer().getName(), entry.deadline());
+				restored++;
+			}
+		}
+		long nanos = System.nanoTime() - start;
+		for (ServerListener listener : listeners)
+			listener.onSnapshotRestored(restored, contents.entries().size(), contents.version(), nanos);
+	}
+
+	// show status of state
+	private WireFrame sendSessionAccept() {
+		return sessionAccept.get();
 	}
 
 	// close server
 	public void stopserver() throws Exception {
 		isStop = true;
-		server.close();
-		connection.close();
+		publisher.stop();
+		liveness.stop();
+		connections.stop();
+		snapshot.stop();
+		if (snapshot.isEnabled()) {
+			try {
+				snapshot.write();
+			} catch (IOException e) {
+				System.err.println("Registry snapshot failed: " + e.getMessage());
+			}
+		}
+		presenceWriter.stop();
+		if (cluster != null)
+			cluster.stop();
+		if (engine != null) {
+			engine.stop();
+		} else {
+			server.close();
+			if (connection != null)
+				connection.close();
+		}
+		for (ServerListener listener : listeners)
+			listener.onStopped();
 	}
 
-	// client connect to server
-	private boolean waitForConnection() throws Exception {
-		connection = server.accept();
-		obInputStream = new ObjectInputStream(connection.getInputStream());
-		String msg = (String) obInputStream.readObject();
+	@Override
+	public boolean onOpen(ClientConnection client) {
+		return connections.open(client);
+	}
 
+	// handle one message from a client, whichever engine delivered it
+	@Override
+	public void onMessage(ClientConnection client, String msg) throws Exception {
+		connections.touch(client);
+		// Over the limit: drop without parsing, but tell a login to come back
+		// later so the client backs off at once instead of timing out
+		if (!rateLimiter.allow(client.getInetAddress(), msg)) {
+			if (msg.startsWith(Tags.SESSION_OPEN_TAG))
+				client.send(Tags.SESSION_BUSY_TAG);
+			return;
+		}
+		Handshake hello = Decode.getHello(msg);
+		// The one-shot blocking loop cannot switch framing; it answers HELLO
+		// like an older server, with the peer list, and the client stays on text
+		if (hello != null && engine != null) {
+			Handshake agreed = protocol.negotiate(hello);
+			FrameCompressor compressor = agreed.has(Handshake.Capability.BINARY)
+					&& agreed.has(Handshake.Capability.DEFLATE) ? new FrameCompressor(compressionMetrics) : null;
+			client.upgrade(new WireFrame(Encode.sendHello(agreed)), agreed, compressor);
+			return;
+		}
 		ArrayList<String> getData = Decode.getUser(msg);
 		if (getData != null) {
-			if (!isExsistName(getData.get(0))) {
-				saveNewPeer(getData.get(0), connection.getInetAddress().toString(), Integer.parseInt(getData.get(1)));
-				ServerFrame.updateNumberClient();
-			} else
-				return false;
+			String name = getData.get(0);
+			String ip = client.getInetAddress().toString();
+			int port = Integer.parseInt(getData.get(1));
+			if (isResumedSession(name, ip, port)) {
+				if (cluster != null)
+					cluster.reclaim(newPeer(name, ip, port));
+				liveness.touch(name);
+				logins.put(client, newPeer(name, ip, port));
+				client.send(sendSessionAccept());
+				return;
+			}
+			Peer joined = saveNewPeer(name, ip, port);
+			if (joined == null) {
+				for (ServerListener listener : listeners)
+					listener.onLoginDenied(name);
+				client.send(Tags.SESSION_DENY_TAG);
+				return;
+			}
+			liveness.touch(name);
+			logins.put(client, joined);
+			for (ServerListener listener : listeners)
+				listener.onPeerJoined(joined);
 		} else {
-			int size = dataPeer.size();
-
-			Decode.updatePeerOnline(dataPeer, msg);
-			if (size != dataPeer.size()) {
-				isExit = true;
-				ServerFrame.decreaseNumberClient();
+			Decode.KeepAlivePayload keepAlive = Decode.getKeepAlivePayload(msg);
+			if (keepAlive != null && !keepAlive.online()) {
+				logins.remove(client);
+				liveness.cancel(keepAlive.name());
+				if (removePeer(keepAlive.name(), false))
+					return;
+			} else if (keepAlive != null && dataPeer.contains(keepAlive.name())) {
+				liveness.touch(keepAlive.name());
+			} else if (keepAlive != null) {
+				rejoin(client, keepAlive.name());
+			}
+			if (keepAlive != null && keepAlive.version() >= 0) {
+				client.send(sessionAccept.getDelta(keepAlive.version()));
+				return;
+			}
+			long subscribeVersion = Decode.getSubscribeVersion(msg);
+			if (subscribeVersion >= 0) {
+				publisher.subscribe(client);
+				connections.subscribed(client);
+				client.send(sessionAccept.getDelta(subscribeVersion));
+				return;
 			}
 		}
+		client.send(sendSessionAccept());
+	}
+
+	@Override
+	public void onClose(ClientConnection client) {
+		publisher.unsubscribe(client);
+		connections.closed(client);
+		logins.remove(client);
+	}
+
+	// A keep-alive for a peer the registry no longer holds: it expired, or a
+	// keep-alive raced the wheel, while its control connection stayed open.
+	// Register it again from that connection's login; a one-shot connection
+	// has no login and is answered as before.
+	private void rejoin(ClientConnection client, String name) {
+		Peer login = logins.get(client);
+		if (login == null || !login.getName().equals(name))
+			return;
+		Peer joined = saveNewPeer(name, login.getHost(), login.getPort());
+		if (joined == null)
+			return;
+		liveness.touch(name);
+		for (ServerListener listener : listeners)
+			listener.onPeerJoined(joined);
+	}
+
+	// peer went offline, by explicit exit or by missing its keep-alives
+	private boolean removePeer(String name, boolean expired) {
+		Peer removed = cluster != null ? cluster.release(name) : dataPeer.remove(name);
+		if (removed == null)
+			return false;
+		presenceWriter.offer(new PeerStatus(name, removed.getHost(), removed.getPort(), false));
+		for (ServerListener listener : listeners)
+			listener.onPeerLeft(removed, expired);
 		return true;
 	}
 
-	private void saveNewPeer(String user, String ip, int port) throws Exception {
-		Connection conn = DBUtil.getConnection();
-		String sql = "INSERT INTO peers(username, ip, port, status) " +
-				"VALUES (?, ?, ?, 'ONLINE') " +
-				"ON DUPLICATE KEY UPDATE ip=?, port=?, status='ONLINE'";
+	private void expirePeer(String name) {
+		removePeer(name, true);
+	}
 
-		PreparedStatement ps = conn.prepareStatement(sql);
-		ps.setString(1, user);
-		ps.setString(2, ip);
-		ps.setInt(3, port);
-		ps.setString(4, ip);
-		ps.setInt(5, port);
+	// a client reconnecting its control connection logs in again from the same address
+	private boolean isResumedSession(String user, String ip, int port) {
+		Peer existing = cluster != null ? cluster.lookup(user) : dataPeer.get(user);
+		return existing != null && existing.getHost().equals(ip) && existing.getPort() == port;
+	}
 
-		ps.executeUpdate();
+	// claim the name in the registry and queue it for persistence; null if the name is taken
+	private Peer saveNewPeer(String user, String ip, int port) {
+		Peer newPeer = newPeer(user, ip, port);
+		boolean claimed = cluster != null ? cluster.claim(newPeer) : dataPeer.add(newPeer);
+		if (!claimed)
+			return null;
 
-		Peer newPeer = new Peer();
-		if (dataPeer.size() == 0)
-			dataPeer = new ArrayList<Peer>();
-		newPeer.setPeer(user, ip, port);
-		dataPeer.add(newPeer);
+		presenceWriter.offer(new PeerStatus(user, ip, port, true));
+		return newPeer;
 	}
 
-	private boolean isExsistName(String name) throws Exception {
-		if (dataPeer == null)
-			return false;
-		int size = dataPeer.size();
-		for (int i = 0; i < size; i++) {
-			Peer peer = dataPeer.get(i);
-			if (peer.getName().equals(name))
-				return true;
-		}
-		return false;
+	private static Peer newPeer(String user, String ip, int port) {
+		Peer peer = new Peer();
+		peer.setPeer(user, ip, port);
+		return peer;
 	}
 
+	// legacy engine: one connection at a time, blocking reads
 	public class WaitForConnect extends Thread {
 
 		@Override
@@ -129,23 +435,22 @@ public class ServerCore {
 			super.run();
 			try {
 				while (!isStop) {
-					if (waitForConnection()) {
-						if (isExit) {
-							isExit = false;
-						} else {
-							obOutputClient = new ObjectOutputStream(connection.getOutputStream());
-							obOutputClient.flush(); // Flush to write stream header
-							obOutputClient.writeObject(sendSessionAccept());
-							obOutputClient.flush();
-							// Keep the stream open - do NOT close it
-							// The connection will handle multiple messages
-						}
-					} else {
-						obOutputClient = new ObjectOutputStream(connection.getOutputStream());
-						obOutputClient.flush();
-						obOutputClient.writeObject(Tags.SESSION_DENY_TAG);
-						obOutputClient.flush();
-						// Keep the stream open
+					connection = server.accept();
+					StreamConnection client = new StreamConnection(connection, queueConfig, queueMetrics);
+					if (!onOpen(client)) {
+						client.abort();
+						continue;
+					}
+					try {
+						obInputStream = new ObjectInputStream(connection.getInputStream());
+						String msg = (String) obInputStream.readObject();
+						// One request per connection: clients reconnect for the next one
+						onMessage(client, msg);
+					} catch (Exception e) {
+						// Broken or reaped client: drop it and serve the next one
+					} finally {
+						client.close();
+						onClose(client);
 					}
 				}
 			} catch (Exception e) {
@@ -153,4 +458,4 @@ public class ServerCore {
 			}
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,13 @@
+package server;
+
+import java.io.IOException;
+
+/**
+ * Accepts client connections and feeds their messages to a {@link MessageHandler}.
+ */
+interface ServerEngine {
+
+	void start();
+
+	void stop() throws IOException;
+}
@@ -6,11 +6,8 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.net.*;
-import java.util.ArrayList;
 import java.util.Enumeration;
 
-import data.Peer;
-
 public class ServerFrame extends JFrame {
 
 	private JTextField txtIP;
@@ -19,7 +16,11 @@ public class ServerFrame extends JFrame {
 	private static JTextArea txtMessage;
 	public static JLabel lblUserOnline;
 	public static int port = 3939;
+	// The user table is refreshed from the registry at this rate, not per login
+	private static final int REFRESH_INTERVAL = 250;
 	static ServerCore server;
+	private final OnlineUserTableModel userModel = new OnlineUserTableModel();
+	private final Timer refreshTimer = new Timer(REFRESH_INTERVAL, e -> refreshUsers());
 	private JButton btnStartServer, btnStopServer;
 
 	public ServerFrame() {
@@ -170,17 +171,28 @@ public class ServerFrame extends JFrame {
 				" Online Users List ", TitledBorder.LEFT, TitledBorder.TOP,
 				new Font("Segoe UI", Font.BOLD, 16), new Color(0, 102, 204)));
 
-		txtMessage = new JTextArea();
+		JTable userTable = new JTable(userModel);
+		userTable.setFont(new Font("Consolas", Font.PLAIN, 17));
+		userTable.setRowHeight(24);
+		userTable.setBackground(new Color(30, 30, 40));
+		userTable.setForeground(new Color(0, 255, 150));
+		userTable.setGridColor(new Color(60, 60, 75));
+		userTable.setFillsViewportHeight(true);
+		userTable.getColumnModel().getColumn(0).setMaxWidth(60);
+
+		JScrollPane scroll = new JScrollPane(userTable);
+		scroll.setBorder(BorderFactory.createEmptyBorder());
+		scroll.getViewport().setBackground(new Color(30, 30, 40));
+		rightPanel.add(scroll, BorderLayout.CENTER);
+
+		txtMessage = new JTextArea(4, 0);
 		txtMessage.setEditable(false);
-		txtMessage.setFont(new Font("Consolas", Font.PLAIN, 17));
+		txtMessage.setFont(new Font("Consolas", Font.PLAIN, 15));
 		txtMessage.setBackground(new Color(30, 30, 40));
 		txtMessage.setForeground(new Color(0, 255, 150));
 		txtMessage.setCaretColor(Color.WHITE);
-		txtMessage.setMargin(new Insets(10, 10, 10, 10));
-
-		JScrollPane scroll = new JScrollPane(txtMessage);
-		scroll.setBorder(BorderFactory.createEmptyBorder());
-		rightPanel.add(scroll, BorderLayout.CENTER);
+		txtMessage.setMargin(new Insets(6, 10, 6, 10));
+		rightPanel.add(new JScrollPane(txtMessage), BorderLayout.SOUTH);
 
 		main.add(rightPanel, BorderLayout.CENTER);
 
@@ -195,7 +207,10 @@ public class ServerFrame extends JFrame {
 			public void actionPerformed(ActionEvent e) {
 				try {
 					port = Integer.valueOf(txtPort.getText());
-					server = new ServerCore(port);
+					ServerCore core = new ServerCore(port, new SwingListener());
+					core.start();
+					server = core;
+					refreshTimer.start();
 					ServerFrame.updateMessage("START VKU SERVER ON PORT " + port);
 					lblStatus.setText("<html><font color='blue'>ON</font></html>");
 					btnStopServer.setEnabled(true);
@@ -210,6 +225,8 @@ public class ServerFrame extends JFrame {
 		btnStopServer.addActionListener(new ActionListener() {
 			@Override
 			public void actionPerformed(ActionEvent e) {
+				refreshTimer.stop();
+				userModel.clear();
 				lblUserOnline.setText("0");
 				try {
 					server.stopserver();
@@ -286,38 +303,38 @@ public class ServerFrame extends JFrame {
 		});
 	}
 
-	// GIỮ NGUYÊN 100% CÁC HÀM CỦA BẠN
-	public static void updateMessage(String msg) {
-		txtMessage.append("» " + msg + "\n");
-		txtMessage.setCaretPosition(txtMessage.getDocument().getLength());
-	}
+	// server events arrive on network threads; the window is only touched on the EDT
+	private static final class SwingListener implements ServerListener {
 
-	public static void updateNumberClient() {
-		int number = Integer.parseInt(lblUserOnline.getText());
-		lblUserOnline.setText(String.valueOf(number + 1));
-		displayUser();
-	}
+		@Override
+		public void onLoginDenied(String name) {
+			SwingUtilities.invokeLater(() -> updateMessage("DENIED " + name + " (already online)"));
+		}
 
-	public static void decreaseNumberClient() {
-		int number = Integer.parseInt(lblUserOnline.getText());
-		if (number > 0) lblUserOnline.setText(String.valueOf(number - 1));
-		displayUser();
-	}
+		@Override
+		public void onNodeFailed(String node, int evicted) {
+			SwingUtilities.invokeLater(() -> updateMessage("NODE DOWN " + node + " (" + evicted + " logged out)"));
+		}
 
-	static void displayUser() {
-		txtMessage.setText("");
-		if (server == null) return;
-		ArrayList<Peer> list = server.getListUser();
-		txtMessage.append("  NO │ USERNAME\n");
-		txtMessage.append(" ───┼────────────────\n");
-		for (int i = 0; i < list.size(); i++) {
-			txtMessage.append(String.format(" %3d │ %s\n", i + 1, list.get(i).getName()));
+		@Override
+		public void onNodeRecovered(String node) {
+			SwingUtilities.invokeLater(() -> updateMessage("NODE BACK " + node));
 		}
-		if (list.isEmpty()) {
-			txtMessage.append("   (No users online)\n");
+	}
+
+	// applies the registry changes since the last tick as one batch
+	private void refreshUsers() {
+		if (server != null && userModel.refresh(server.getRegistry())) {
+			lblUserOnline.setText(String.valueOf(userModel.getRowCount()));
 		}
 	}
 
+	// appends a line to the server log pane
+	public static void updateMessage(String msg) {
+		txtMessage.append("» " + msg + "\n");
+		txtMessage.setCaretPosition(txtMessage.getDocument().getLength());
+	}
+
 	public static void main(String[] args) {
 		SwingUtilities.invokeLater(() -> {
 			try {
@@ -0,0 +1,99 @@
+package server;
+
+import data.Peer;
+
+/**
+ * Observer of a running {@link ServerCore}, e.g. the Swing window or the
+ * console log of the headless launcher. Callbacks arrive on network and timer
+ * threads, so implementations must return quickly and hand UI work to their
+ * own thread.
+ */
+public interface ServerListener {
+
+	/**
+	 * Called once the server accepts connections
+	 *
+	 * @param port Client port
+	 */
+	default void onStarted(int port) {
+	}
+
+	/**
+	 * Called after the server has been stopped
+	 */
+	default void onStopped() {
+	}
+
+	/**
+	 * Called when a peer logs in on this server
+	 *
+	 * @param peer New peer
+	 */
+	default void onPeerJoined(Peer peer) {
+	}
+
+	/**
+	 * Called when a peer of this server goes offline
+	 *
+	 * @param peer    Removed peer
+	 * @param expired true if it stopped sending keep-alives, false if it exited
+	 */
+	default void onPeerLeft(Peer peer, boolean expired) {
+	}
+
+	/**
+	 * Called when a login is refused because the name is already online
+	 *
+	 * @param name Requested username
+	 */
+	default void onLoginDenied(String name) {
+	}
+
+	/**
+	 * Called when a standalone server has put the peers of its last registry
+	 * snapshot back online, before it accepts connections
+	 *
+	 * @param restored Peers restored
+	 * @param saved    Peers in the snapshot, including those whose deadline passed
+	 * @param version  Registry version the snapshot was written at
+	 * @param nanos    Time taken to load and apply it
+	 */
+	default void onSnapshotRestored(int restored, int saved, long version, long nanos) {
+	}
+
+	/**
+	 * Called when a cluster node has caught up from a seed on startup
+	 *
+	 * @param seed    Seed node id
+	 * @param entries Presence entries now known
+	 */
+	default void onClusterSynced(String seed, int entries) {
+	}
+
+	/**
+	 * Called when a cluster node stops responding and the clients connected
+	 * to it are logged out
+	 *
+	 * @param node    Failed node id
+	 * @param evicted Number of peers logged out
+	 */
+	default void onNodeFailed(String node, int evicted) {
+	}
+
+	/**
+	 * Called when a node declared failed is heard from again
+	 *
+	 * @param node Node id
+	 */
+	default void onNodeRecovered(String node) {
+	}
+
+	/**
+	 * Called when a membership change moved names into this node's shard
+	 *
+	 * @param nodes Live nodes in the cluster
+	 * @param moved Number of names taken over
+	 */
+	default void onShardsMoved(int nodes, int moved) {
+	}
+}
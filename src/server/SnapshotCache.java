@@ -0,0 +1,104 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import data.Peer;
+import tags.Encode;
+
+/**
+ * Pre-encoded presence replies tied to the registry version.
+ * The SESSION_ACCEPT frame is rebuilt at most once per membership change
+ * and the same bytes are written to every client until the next change.
+ * Delta replies are cached per starting version the same way.
+ */
+final class SnapshotCache {
+
+	// Bounds the per-version delta cache against clients sending random versions
+	private static final int MAX_CACHED_DELTAS = 256;
+
+	private record Snapshot(long version, WireFrame frame) {
+	}
+
+	private record DeltaFrames(long version, Map<Long, WireFrame> frames) {
+	}
+
+	private final PeerRegistry registry;
+	private volatile Snapshot current;
+	private volatile DeltaFrames deltas = new DeltaFrames(-1, new ConcurrentHashMap<>());
+
+	SnapshotCache(PeerRegistry registry) {
+		this.registry = registry;
+	}
+
+	/**
+	 * Gets the encoded snapshot for the current registry version
+	 *
+	 * @return Shared frame
+	 */
+	WireFrame get() {
+		Snapshot snapshot = current;
+		if (snapshot != null && snapshot.version() == registry.getVersion()) {
+			return snapshot.frame();
+		}
+		synchronized (this) {
+			// Read the version before iterating: a change racing with the build
+			// leaves the snapshot stale-tagged and it is simply rebuilt next time
+			long version = registry.getVersion();
+			snapshot = current;
+			if (snapshot == null || snapshot.version() != version) {
+				String msg = Encode.getSessionAccept(registry.peers());
+				snapshot = new Snapshot(version, new WireFrame(msg));
+				current = snapshot;
+			}
+			return snapshot.frame();
+		}
+	}
+
+	/**
+	 * Gets the encoded delta from a client's known version to the current one
+	 *
+	 * @param since Version the client has applied
+	 * @return Shared SESSION_DELTA frame; a full reset if {@code since} is too old
+	 */
+	WireFrame getDelta(long since) {
+		long version = registry.getVersion();
+		DeltaFrames cache = deltas;
+		if (cache.version() != version) {
+			cache = new DeltaFrames(version, new ConcurrentHashMap<>());
+			deltas = cache;
+		}
+		WireFrame frame = cache.frames().get(since);
+		if (frame == null) {
+			frame = buildDelta(since);
+			if (cache.frames().size() < MAX_CACHED_DELTAS) {
+				cache.frames().putIfAbsent(since, frame);
+			}
+		}
+		return frame;
+	}
+
+	private WireFrame buildDelta(long since) {
+		PeerRegistry.Delta delta = registry.changesSince(since);
+		if (delta == null) {
+			// Re-applying changes the client already has is harmless, so the
+			// version may lag the iterated contents
+			long version = registry.getVersion();
+			String msg = Encode.getPresenceDelta(-1, version, registry.peers(), List.of());
+			return new WireFrame(msg);
+		}
+
+		List<Peer> joined = new ArrayList<>();
+		List<String> left = new ArrayList<>();
+		for (Map.Entry<String, Peer> change : delta.changes().entrySet()) {
+			if (change.getValue() != null) {
+				joined.add(change.getValue());
+			} else {
+				left.add(change.getKey());
+			}
+		}
+		return new WireFrame(Encode.getPresenceDelta(since, delta.version(), joined, left));
+	}
+}
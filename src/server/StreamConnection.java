@@ -0,0 +1,150 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import tags.BinaryCodec;
+import tags.FrameCompressor;
+import tags.Handshake;
+
+/**
+ * Connection over a blocking socket. Senders only enqueue; a writer virtual
+ * thread drains the bounded queue to the socket stream, so a client that
+ * stops reading stalls nobody but itself.
+ */
+final class StreamConnection implements ClientConnection {
+
+	// How often an idle writer re-checks for close
+	private static final long WRITER_POLL = 1000;
+
+	private final Socket socket;
+	private final OutboundQueue outbound;
+	private boolean headerSent = false;
+	// Framing per direction, switched by the handshake
+	private volatile boolean binaryIn = false;
+	private boolean binaryOut = false;
+	private volatile FrameCompressor compressor;
+	private volatile boolean closing = false;
+	private volatile boolean closed = false;
+
+	StreamConnection(Socket socket, OutboundQueue.Config queueConfig, OutboundQueue.Metrics queueMetrics) {
+		this.socket = socket;
+		this.outbound = new OutboundQueue(queueConfig, queueMetrics);
+		Thread.ofVirtual().name("conn-writer-", socket.getPort()).start(this::drain);
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return socket.getInetAddress();
+	}
+
+	@Override
+	public void send(WireFrame frame) throws IOException {
+		enqueue(frame, OutboundQueue.Kind.CONTROL);
+	}
+
+	@Override
+	public void sendPresence(WireFrame frame) throws IOException {
+		enqueue(frame, OutboundQueue.Kind.PRESENCE);
+	}
+
+	@Override
+	public void upgrade(WireFrame reply, Handshake agreed, FrameCompressor compressor) throws IOException {
+		boolean binary = agreed.has(Handshake.Capability.BINARY);
+		this.compressor = compressor;
+		binaryIn = binary;
+		synchronized (this) {
+			enqueue(reply, OutboundQueue.Kind.CONTROL);
+			binaryOut = binary;
+		}
+	}
+
+	/**
+	 * Checks whether the reader must switch to binary frames
+	 *
+	 * @return true once the handshake agreed on binary framing
+	 */
+	boolean isBinaryInput() {
+		return binaryIn;
+	}
+
+	/**
+	 * Restores a frame the client compressed
+	 *
+	 * @param frame Binary frame as read
+	 * @return Uncompressed frame
+	 * @throws IOException If the frame is corrupt or compression was not agreed
+	 */
+	BinaryCodec.Frame inflate(BinaryCodec.Frame frame) throws IOException {
+		FrameCompressor c = compressor;
+		return c != null ? c.inflate(frame) : FrameCompressor.requireUncompressed(frame);
+	}
+
+	private void enqueue(WireFrame message, OutboundQueue.Kind kind) throws IOException {
+		boolean accepted;
+		synchronized (this) {
+			if (closing || closed) {
+				throw new IOException("Connection closed");
+			}
+			byte[] frame = message.encode(binaryOut, compressor);
+			if (!headerSent && !binaryOut) {
+				frame = ObjectStreamFrames.withHeader(frame);
+				headerSent = true;
+			}
+			accepted = outbound.offer(frame, kind);
+		}
+		if (!accepted) {
+			closeNow();
+			throw new IOException("Outbound queue overflow");
+		}
+	}
+
+	@Override
+	public void close() {
+		closing = true;
+		outbound.wakeUp();
+	}
+
+	@Override
+	public void abort() {
+		closeNow();
+	}
+
+	private void drain() {
+		try {
+			OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+			while (!closed) {
+				ByteBuffer buf = outbound.take(WRITER_POLL);
+				if (buf == null) {
+					if (closing) {
+						break;
+					}
+					continue;
+				}
+				out.write(buf.array(), buf.arrayOffset(), buf.limit());
+				if (outbound.isEmpty()) {
+					out.flush();
+				}
+			}
+			out.flush();
+		} catch (IOException | InterruptedException e) {
+			// Client went away
+		} finally {
+			closeNow();
+		}
+	}
+
+	private void closeNow() {
+		closed = true;
+		outbound.clear();
+		try {
+			socket.close();
+		} catch (IOException ignored) {
+			// Ignore cleanup exceptions
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel for large numbers of resettable deadlines.
+ * Touching a key only moves its deadline; entries are re-slotted lazily when
+ * their slot comes around, so both touch and expiry are O(1) per entry and a
+ * tick only visits the entries hashed to the current slot.
+ *
+ * @param <K> Key type, e.g. a username
+ */
+final class TimingWheel<K> implements Runnable {
+
+	private static final class Entry<K> {
+		final K key;
+		long deadlineTick;
+
+		Entry(K key, long deadlineTick) {
+			this.key = key;
+			this.deadlineTick = deadlineTick;
+		}
+	}
+
+	private final long tickMillis;
+	private final long timeoutTicks;
+	private final List<List<Entry<K>>> slots;
+	private final HashMap<K, Entry<K>> entries = new HashMap<>();
+	private final Consumer<K> onExpire;
+	private final String name;
+	private final long startMillis = System.currentTimeMillis();
+	private long currentTick = 0;
+	private volatile boolean running = true;
+
+	/**
+	 * @param name          Thread name
+	 * @param tickMillis    Wheel resolution
+	 * @param wheelSize     Number of slots
+	 * @param timeoutMillis Default time a key lives after a touch
+	 * @param onExpire      Called from the wheel thread for each expired key
+	 */
+	TimingWheel(String name, long tickMillis, int wheelSize, long timeoutMillis, Consumer<K> onExpire) {
+		this.name = name;
+		this.tickMillis = tickMillis;
+		this.timeoutTicks = Math.max(1, (timeoutMillis + tickMillis - 1) / tickMillis);
+		this.onExpire = onExpire;
+		this.slots = new ArrayList<>(wheelSize);
+		for (int i = 0; i < wheelSize; i++) {
+			slots.add(new ArrayList<>());
+		}
+	}
+
+	void start() {
+		Thread t = new Thread(this, name);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	void stop() {
+		running = false;
+	}
+
+	/**
+	 * Starts or extends a key's deadline by the default timeout
+	 *
+	 * @param key Key to keep alive
+	 */
+	void touch(K key) {
+		schedule(key, tickOf(System.currentTimeMillis()) + timeoutTicks);
+	}
+
+	/**
+	 * Sets a key's deadline to an absolute time
+	 *
+	 * @param key            Key to schedule
+	 * @param deadlineMillis Wall-clock deadline
+	 */
+	void touchUntil(K key, long deadlineMillis) {
+		schedule(key, Math.max(tickOf(deadlineMillis), currentTick + 1));
+	}
+
+	/**
+	 * Stops tracking a key without expiring it
+	 *
+	 * @param key Key to forget
+	 */
+	synchronized void cancel(K key) {
+		Entry<K> entry = entries.remove(key);
+		if (entry != null) {
+			// Marks the slotted entry as dead; it is dropped when its slot is visited
+			entry.deadlineTick = Long.MIN_VALUE;
+		}
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Gets the wall-clock deadline of a key
+	 *
+	 * @param key Key
+	 * @return Deadline in milliseconds, or -1 if the key is not tracked
+	 */
+	synchronized long getDeadline(K key) {
+		Entry<K> entry = entries.get(key);
+		return entry == null ? -1 : startMillis + entry.deadlineTick * tickMillis;
+	}
+
+	private synchronized void schedule(K key, long deadlineTick) {
+		Entry<K> entry = entries.get(key);
+		if (entry != null) {
+			entry.deadlineTick = deadlineTick;
+			return;
+		}
+		entry = new Entry<>(key, deadlineTick);
+		entries.put(key, entry);
+		slots.get(slotOf(deadlineTick)).add(entry);
+	}
+
+	private long tickOf(long millis) {
+		return (millis - startMillis) / tickMillis;
+	}
+
+	private int slotOf(long tick) {
+		return (int) Math.floorMod(tick, (long) slots.size());
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			try {
+				Thread.sleep(tickMillis);
+			} catch (InterruptedException e) {
+				return;
+			}
+			long target = tickOf(System.currentTimeMillis());
+			while (currentTick < target) {
+				for (K key : advance()) {
+					try {
+						onExpire.accept(key);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+	}
+
+	// Moves to the next tick and collects the keys whose deadline has passed
+	private synchronized List<K> advance() {
+		currentTick++;
+		List<Entry<K>> slot = slots.get(slotOf(currentTick));
+		List<K> expired = new ArrayList<>();
+		List<Entry<K>> keep = new ArrayList<>();
+		for (Entry<K> entry : slot) {
+			if (entry.deadlineTick == Long.MIN_VALUE) {
+				continue;
+			}
+			if (entry.deadlineTick <= currentTick) {
+				entries.remove(entry.key);
+				expired.add(entry.key);
+			} else if (slotOf(entry.deadlineTick) == slotOf(currentTick)) {
+				keep.add(entry); // Deadline is one or more rotations away
+			} else {
+				slots.get(slotOf(entry.deadlineTick)).add(entry);
+			}
+		}
+		slot.clear();
+		slot.addAll(keep);
+		return expired;
+	}
+}
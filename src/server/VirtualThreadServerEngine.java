@@ -0,0 +1,90 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+
+import tags.BinaryCodec;
+
+/**
+ * Thread-per-connection engine on virtual threads. Each accepted socket is
+ * owned for its whole lifetime by one virtual thread that blocks on its
+ * ObjectInputStream, so connections are served concurrently without the
+ * shared stream fields of the legacy loop.
+ */
+final class VirtualThreadServerEngine implements ServerEngine {
+
+	private final ServerSocket server;
+	private final MessageHandler handler;
+	private final OutboundQueue.Config queueConfig;
+	private final OutboundQueue.Metrics queueMetrics;
+	private volatile boolean running = true;
+
+	VirtualThreadServerEngine(int port, MessageHandler handler, OutboundQueue.Config queueConfig,
+			OutboundQueue.Metrics queueMetrics) throws IOException {
+		this.server = new ServerSocket(port);
+		this.handler = handler;
+		this.queueConfig = queueConfig;
+		this.queueMetrics = queueMetrics;
+	}
+
+	@Override
+	public void start() {
+		Thread.ofPlatform().name("vt-acceptor").start(this::acceptLoop);
+	}
+
+	@Override
+	public void stop() throws IOException {
+		running = false;
+		server.close();
+	}
+
+	private void acceptLoop() {
+		try {
+			while (running) {
+				Socket socket = server.accept();
+				socket.setTcpNoDelay(true);
+				Thread.ofVirtual().name("vt-conn-", socket.getPort()).start(() -> serve(socket));
+			}
+		} catch (IOException e) {
+			if (running) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		StreamConnection conn = new StreamConnection(socket, queueConfig, queueMetrics);
+		if (!handler.onOpen(conn)) {
+			conn.abort();
+			return;
+		}
+		try (InputStream raw = new BufferedInputStream(socket.getInputStream());
+				ObjectInputStream in = new ObjectInputStream(raw)) {
+			while (running) {
+				// Both readers share the buffered stream, so switching after the
+				// handshake loses no bytes
+				if (conn.isBinaryInput()) {
+					BinaryCodec.Frame frame = conn.inflate(BinaryCodec.read(raw));
+					if (frame.opcode() != BinaryCodec.Opcode.FILE_CHUNK) {
+						handler.onMessage(conn, frame.toTags());
+					}
+				} else if (in.readObject() instanceof String msg) {
+					handler.onMessage(conn, msg);
+				}
+			}
+		} catch (EOFException | SocketException e) {
+			// Client went away
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			conn.close();
+			handler.onClose(conn);
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package server;
+
+import tags.BinaryCodec;
+import tags.FrameCompressor;
+
+/**
+ * One outgoing message, encoded for each framing on first use and then
+ * shared by every connection that sends it, so a snapshot or presence delta
+ * is encoded at most once per framing however many clients receive it.
+ * Compression is shared the same way, as every frame is compressed on its own.
+ */
+final class WireFrame {
+
+	private final String msg;
+	private volatile byte[] text;
+	private volatile byte[] binary;
+	private volatile byte[] deflated;
+
+	WireFrame(String msg) {
+		this.msg = msg;
+	}
+
+	/**
+	 * Gets the message as a serialization record (see {@link ObjectStreamFrames})
+	 *
+	 * @return Shared bytes; callers must not modify them
+	 */
+	byte[] text() {
+		byte[] frame = text;
+		if (frame == null) {
+			// Racing encoders produce equal bytes, so either may win
+			frame = ObjectStreamFrames.encode(msg);
+			text = frame;
+		}
+		return frame;
+	}
+
+	/**
+	 * Gets the message as a {@link BinaryCodec} frame
+	 *
+	 * @return Shared bytes; callers must not modify them
+	 */
+	byte[] binary() {
+		byte[] frame = binary;
+		if (frame == null) {
+			frame = BinaryCodec.encode(msg);
+			binary = frame;
+		}
+		return frame;
+	}
+
+	/**
+	 * Gets the message for a connection
+	 *
+	 * @param binaryFraming Whether the connection uses binary frames
+	 * @param compressor    The connection's compressor, null if compression
+	 *                      was not agreed
+	 * @return Shared bytes; callers must not modify them
+	 */
+	byte[] encode(boolean binaryFraming, FrameCompressor compressor) {
+		if (!binaryFraming) {
+			return text();
+		}
+		if (compressor == null) {
+			return binary();
+		}
+		byte[] frame = deflated;
+		if (frame == null) {
+			frame = compressor.compress(binary());
+			deflated = frame;
+		}
+		return frame;
+	}
+}
@@ -0,0 +1,936 @@
+package tags;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary framing for protocol messages, replacing tag strings sent
+ * through Java serialization. A frame is
+ *
+ * <pre>
+ * body length varint, opcode u8, fields
+ * </pre>
+ *
+ * where a string field is a varint byte length followed by UTF-8 and a number
+ * field is a varint. Every message type of {@link Tags} has its own opcode,
+ * so the tags themselves never travel; a message the codec does not
+ * recognise goes as {@link Opcode#TEXT} holding the whole tag string.
+ * Converting a tag string to a frame and back gives the original string
+ * (bar unpaired surrogates, which UTF-8 cannot carry), so handlers written
+ * against tag strings keep working unchanged.
+ */
+public final class BinaryCodec {
+
+	private BinaryCodec() {
+		// Utility class - prevent instantiation
+	}
+
+	/** Largest body accepted: a full-size message in worst-case UTF-8 */
+	public static final int MAX_FRAME = Tags.MAX_MSG_SIZE * 3;
+
+	private static final String[] NO_FIELDS = {};
+	private static final String LONG_MAX = Long.toString(Long.MAX_VALUE);
+
+	private static final String PEER_HEAD = Tags.PEER_OPEN_TAG + Tags.PEER_NAME_OPEN_TAG;
+	private static final String PEER_NAME_TO_IP = Tags.PEER_NAME_CLOSE_TAG + Tags.IP_OPEN_TAG;
+	private static final String PEER_IP_TO_PORT = Tags.IP_CLOSE_TAG + Tags.PORT_OPEN_TAG;
+	private static final String PEER_TAIL = Tags.PORT_CLOSE_TAG + Tags.PEER_CLOSE_TAG;
+	private static final String DELTA_HEAD = Tags.SESSION_DELTA_OPEN_TAG + Tags.VERSION_OPEN_TAG;
+
+	/**
+	 * Message types. Fixed messages are a single literal; templated ones are
+	 * literal pieces with a field between each pair, S for a string and N for
+	 * a non-negative decimal number sent as a varint. TEXT, SESSION_ACCEPT,
+	 * SESSION_DELTA, FILE_CHUNK and DEFLATED have their own layouts. Codes are part of
+	 * the wire format and must never be reused.
+	 */
+	public enum Opcode {
+		/** Any other message; field 0 is the tag string */
+		TEXT(0x00, null),
+
+		SESSION_REQ(0x01, "SN",
+				Tags.SESSION_OPEN_TAG + Tags.PEER_NAME_OPEN_TAG,
+				Tags.PEER_NAME_CLOSE_TAG + Tags.PORT_OPEN_TAG,
+				Tags.PORT_CLOSE_TAG + Tags.SESSION_CLOSE_TAG),
+		KEEP_ALIVE(0x02, "SN",
+				Tags.SESSION_KEEP_ALIVE_OPEN_TAG + Tags.PEER_NAME_OPEN_TAG,
+				Tags.PEER_NAME_CLOSE_TAG + Tags.STATUS_OPEN_TAG + Tags.SERVER_ONLINE + Tags.STATUS_CLOSE_TAG
+						+ Tags.VERSION_OPEN_TAG,
+				Tags.VERSION_CLOSE_TAG + Tags.SESSION_KEEP_ALIVE_CLOSE_TAG),
+		KEEP_ALIVE_UNVERSIONED(0x03, "S",
+				Tags.SESSION_KEEP_ALIVE_OPEN_TAG + Tags.PEER_NAME_OPEN_TAG,
+				Tags.PEER_NAME_CLOSE_TAG + Tags.STATUS_OPEN_TAG + Tags.SERVER_ONLINE + Tags.STATUS_CLOSE_TAG
+						+ Tags.SESSION_KEEP_ALIVE_CLOSE_TAG),
+		EXIT(0x04, "S",
+				Tags.SESSION_KEEP_ALIVE_OPEN_TAG + Tags.PEER_NAME_OPEN_TAG,
+				Tags.PEER_NAME_CLOSE_TAG + Tags.STATUS_OPEN_TAG + Tags.SERVER_OFFLINE + Tags.STATUS_CLOSE_TAG
+						+ Tags.SESSION_KEEP_ALIVE_CLOSE_TAG),
+		/** Fields are name, host, port for each peer */
+		SESSION_ACCEPT(0x05, null),
+		SESSION_DENY(0x06, "", Tags.SESSION_DENY_TAG),
+		/** Fields are version, since (-1 for reset), joined count, name/host/port per joined peer, left names */
+		SESSION_DELTA(0x07, null),
+		PRESENCE_SUBSCRIBE(0x08, "N",
+				Tags.PRESENCE_SUBSCRIBE_OPEN_TAG + Tags.VERSION_OPEN_TAG,
+				Tags.VERSION_CLOSE_TAG + Tags.PRESENCE_SUBSCRIBE_CLOSE_TAG),
+		REGISTER(0x09, "SS", Tags.REGISTER_TAG + "|", "|", ""),
+		REGISTER_OK(0x0A, "", Tags.REGISTER_OK),
+		REGISTER_DENY(0x0B, "", Tags.REGISTER_DENY),
+		SESSION_BUSY(0x0C, "", Tags.SESSION_BUSY_TAG),
+
+		CHAT_REQ(0x10, "S",
+				Tags.CHAT_REQ_OPEN_TAG + Tags.PEER_NAME_OPEN_TAG,
+				Tags.PEER_NAME_CLOSE_TAG + Tags.CHAT_REQ_CLOSE_TAG),
+		CHAT_ACCEPT(0x11, "", Tags.CHAT_ACCEPT_TAG),
+		CHAT_DENY(0x12, "", Tags.CHAT_DENY_TAG),
+		CHAT_CLOSE(0x13, "", Tags.CHAT_CLOSE_TAG),
+		CHAT_MSG(0x14, "S", Tags.CHAT_MSG_OPEN_TAG, Tags.CHAT_MSG_CLOSE_TAG),
+		CHAT_EDIT(0x15, "SS",
+				Tags.CHAT_EDIT_OPEN_TAG + Tags.CHAT_EDIT_OLD_OPEN_TAG,
+				Tags.CHAT_EDIT_OLD_CLOSE_TAG + Tags.CHAT_EDIT_NEW_OPEN_TAG,
+				Tags.CHAT_EDIT_NEW_CLOSE_TAG + Tags.CHAT_EDIT_CLOSE_TAG),
+		CHAT_DELETE(0x16, "S",
+				Tags.CHAT_DELETE_OPEN_TAG + Tags.CHAT_DELETE_BODY_OPEN_TAG,
+				Tags.CHAT_DELETE_BODY_CLOSE_TAG + Tags.CHAT_DELETE_CLOSE_TAG),
+		TYPING_ON(0x17, "", Tags.TYPING_OPEN_TAG + Tags.TYPING_STATE_OPEN_TAG + "ON"
+				+ Tags.TYPING_STATE_CLOSE_TAG + Tags.TYPING_CLOSE_TAG),
+		TYPING_OFF(0x18, "", Tags.TYPING_OPEN_TAG + Tags.TYPING_STATE_OPEN_TAG + "OFF"
+				+ Tags.TYPING_STATE_CLOSE_TAG + Tags.TYPING_CLOSE_TAG),
+		CHAT_CLEAR(0x19, "", Tags.CHAT_CLEAR_TAG),
+		CHAT_REACTION(0x1A, "SS",
+				Tags.CHAT_REACTION_OPEN_TAG + Tags.CHAT_REACTION_TARGET_OPEN_TAG,
+				Tags.CHAT_REACTION_TARGET_CLOSE_TAG + Tags.CHAT_REACTION_EMOJI_OPEN_TAG,
+				Tags.CHAT_REACTION_EMOJI_CLOSE_TAG + Tags.CHAT_REACTION_CLOSE_TAG),
+		MSG(0x1B, "S", Tags.MSG_OPEN_TAG, Tags.MSG_CLOSE_TAG),
+
+		FILE_REQ(0x20, "S", Tags.FILE_REQ_OPEN_TAG, Tags.FILE_REQ_CLOSE_TAG),
+		FILE_REQ_ACK(0x21, "S", Tags.FILE_REQ_ACK_OPEN_TAG, Tags.FILE_REQ_ACK_CLOSE_TAG),
+		FILE_REQ_NOACK(0x22, "", Tags.FILE_REQ_NOACK_TAG),
+		FILE_DATA_BEGIN(0x23, "", Tags.FILE_DATA_BEGIN_TAG),
+		FILE_DATA(0x24, "S", Tags.FILE_DATA_OPEN_TAG, Tags.FILE_DATA_CLOSE_TAG),
+		FILE_DATA_CLOSE(0x25, "", Tags.FILE_DATA_CLOSE_TAG),
+		FILE_DATA_END(0x26, "", Tags.FILE_DATA_END_TAG),
+		/** Raw file bytes, the binary form of a {@code DataFile} */
+		FILE_CHUNK(0x27, null),
+
+		GROUP_CREATE(0x30, "SS",
+				Tags.GROUP_CREATE_OPEN_TAG + Tags.GROUP_NAME_OPEN_TAG,
+				Tags.GROUP_NAME_CLOSE_TAG + Tags.GROUP_CREATOR_OPEN_TAG,
+				Tags.GROUP_CREATOR_CLOSE_TAG + Tags.GROUP_CREATE_CLOSE_TAG),
+		GROUP_INVITE(0x31, "NSS",
+				Tags.GROUP_INVITE_OPEN_TAG + Tags.GROUP_ID_OPEN_TAG,
+				Tags.GROUP_ID_CLOSE_TAG + Tags.GROUP_NAME_OPEN_TAG,
+				Tags.GROUP_NAME_CLOSE_TAG + Tags.INVITEE_OPEN_TAG,
+				Tags.INVITEE_CLOSE_TAG + Tags.GROUP_INVITE_CLOSE_TAG),
+		GROUP_MSG(0x32, "NSS",
+				Tags.GROUP_MSG_OPEN_TAG + Tags.GROUP_ID_OPEN_TAG,
+				Tags.GROUP_ID_CLOSE_TAG + Tags.GROUP_SENDER_OPEN_TAG,
+				Tags.GROUP_SENDER_CLOSE_TAG + Tags.GROUP_CONTENT_OPEN_TAG,
+				Tags.GROUP_CONTENT_CLOSE_TAG + Tags.GROUP_MSG_CLOSE_TAG),
+		GROUP_JOIN(0x33, "NS",
+				Tags.GROUP_JOIN_OPEN_TAG + Tags.GROUP_ID_OPEN_TAG,
+				Tags.GROUP_ID_CLOSE_TAG + Tags.GROUP_MEMBER_OPEN_TAG,
+				Tags.GROUP_MEMBER_CLOSE_TAG + Tags.GROUP_JOIN_CLOSE_TAG),
+
+		VOICE_CALL_REQ(0x40, "", Tags.VOICE_CALL_REQ),
+		VOICE_CALL_ACCEPT(0x41, "", Tags.VOICE_CALL_REQ_END),
+		VOICE_CALL_REJECT(0x42, "", Tags.VOICE_CALL_REJECT),
+		VOICE_DATA(0x43, "", Tags.VOICE_DATA),
+		/** Also {@link Tags#VOICE_CALL_DENY}, which is the same string */
+		VOICE_CALL_END(0x44, "", Tags.VOICE_CALL_END),
+		VOICE_CALL_REQUEST(0x45, "", Tags.VOICE_CALL_REQUEST),
+		VOICE_CALL_ACCEPTED(0x46, "", Tags.VOICE_CALL_ACCEPTED),
+		VOICE_CALL_REJECTED(0x47, "", Tags.VOICE_CALL_REJECTED),
+		VOICE_CALL_ENDED(0x48, "", Tags.VOICE_CALL_ENDED),
+		VOICE_REQUEST(0x49, "S", Tags.VOICE_REQUEST_OPEN, Tags.VOICE_REQUEST_CLOSE),
+		VOICE_ACCEPT(0x4A, "S", Tags.VOICE_ACCEPT_OPEN, Tags.VOICE_ACCEPT_CLOSE),
+		VOICE_REJECT(0x4B, "", Tags.VOICE_REJECT_TAG),
+		VIDEO_CALL_START(0x50, "", Tags.VIDEO_CALL_START_TAG),
+		VIDEO_CALL_END(0x51, "", Tags.VIDEO_CALL_END_TAG),
+
+		/**
+		 * Another frame's body compressed with raw DEFLATE, see
+		 * {@link FrameCompressor}; field 0 is the inflated size
+		 */
+		DEFLATED(0x60, null);
+
+		private static final Opcode[] BY_CODE = new Opcode[256];
+
+		static {
+			for (Opcode op : values()) {
+				BY_CODE[op.code] = op;
+			}
+		}
+
+		private final int code;
+		private final String kinds;
+		private final String[] pieces;
+		private final TagParser.Layout layout;
+
+		Opcode(int code, String kinds, String... pieces) {
+			this.code = code;
+			this.kinds = kinds;
+			this.pieces = pieces;
+			this.layout = pieces.length > 1 ? new TagParser.Layout(pieces) : null;
+		}
+
+		/**
+		 * Gets the byte sent on the wire
+		 *
+		 * @return Opcode value
+		 */
+		public int code() {
+			return code;
+		}
+
+		/**
+		 * Finds the opcode for a wire value
+		 *
+		 * @param code Opcode byte
+		 * @return Opcode, or null if unknown
+		 */
+		public static Opcode of(int code) {
+			return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+		}
+
+		private boolean isFixed() {
+			return kinds != null && kinds.isEmpty();
+		}
+
+		private boolean isTemplate() {
+			return kinds != null && !kinds.isEmpty();
+		}
+	}
+
+	/**
+	 * One decoded message
+	 *
+	 * @param opcode Message type
+	 * @param fields Field values in order as they appear between the tags (text
+	 *               still escaped), numbers in decimal
+	 * @param data   Payload of a FILE_CHUNK or DEFLATED, null otherwise
+	 */
+	public record Frame(Opcode opcode, String[] fields, byte[] data) {
+
+		public Frame(Opcode opcode, String... fields) {
+			this(opcode, fields, null);
+		}
+
+		/**
+		 * Gets one field
+		 *
+		 * @param i Field index
+		 * @return Field value
+		 */
+		public String field(int i) {
+			return fields[i];
+		}
+
+		/**
+		 * Renders the message as the tag string it stands for
+		 *
+		 * @return Tag-encoded message
+		 * @throws IllegalStateException For a FILE_CHUNK, which has no tag form,
+		 *                               or a DEFLATED frame not yet inflated
+		 */
+		public String toTags() {
+			return BinaryCodec.toTags(this);
+		}
+	}
+
+	private static final Map<String, Opcode> FIXED = new HashMap<>();
+	private static final Map<String, List<Opcode>> TEMPLATES = new HashMap<>();
+	private static final int MAX_FIXED_LENGTH;
+
+	static {
+		int maxFixed = 0;
+		for (Opcode op : Opcode.values()) {
+			if (op.isFixed()) {
+				FIXED.putIfAbsent(op.pieces[0], op);
+				maxFixed = Math.max(maxFixed, op.pieces[0].length());
+			} else if (op.isTemplate()) {
+				TEMPLATES.computeIfAbsent(leadingTag(op.pieces[0]), k -> new ArrayList<>()).add(op);
+			}
+		}
+		MAX_FIXED_LENGTH = maxFixed;
+	}
+
+	// first tag of a message, or the command word of a pipe-separated one
+	private static String leadingTag(String msg) {
+		if (msg.startsWith("<")) {
+			int end = msg.indexOf('>');
+			return end < 0 ? null : msg.substring(0, end + 1);
+		}
+		int end = msg.indexOf('|');
+		return end < 0 ? null : msg.substring(0, end + 1);
+	}
+
+	/**
+	 * Parses a tag string into a frame; unrecognised or irregular messages
+	 * become TEXT
+	 *
+	 * @param msg Tag-encoded message
+	 * @return Frame whose {@link Frame#toTags()} gives back msg
+	 */
+	public static Frame toFrame(String msg) {
+		// long messages are never fixed, and hashing them would cost a full pass
+		Opcode fixed = msg.length() <= MAX_FIXED_LENGTH ? FIXED.get(msg) : null;
+		if (fixed != null) {
+			return new Frame(fixed, NO_FIELDS);
+		}
+		String tag = leadingTag(msg);
+		if (tag != null) {
+			Frame frame = null;
+			if (tag.equals(Tags.SESSION_ACCEPT_OPEN_TAG)) {
+				frame = parseSessionAccept(msg);
+			} else if (tag.equals(Tags.SESSION_DELTA_OPEN_TAG)) {
+				frame = parseDelta(msg);
+			} else {
+				List<Opcode> candidates = TEMPLATES.get(tag);
+				for (int i = 0; candidates != null && frame == null && i < candidates.size(); i++) {
+					frame = parseTemplate(candidates.get(i), msg);
+				}
+			}
+			if (frame != null) {
+				return frame;
+			}
+		}
+		return new Frame(Opcode.TEXT, msg);
+	}
+
+	private static Frame parseTemplate(Opcode op, String msg) {
+		int[] bounds = new int[2 * op.layout.fields()];
+		if (!op.layout.match(msg, bounds)) {
+			return null;
+		}
+		// fields stay escaped: the frame must give back the exact string
+		String[] fields = new String[op.layout.fields()];
+		for (int i = 0; i < fields.length; i++) {
+			fields[i] = msg.substring(bounds[2 * i], bounds[2 * i + 1]);
+			if (op.kinds.charAt(i) == 'N' && !isCanonicalNumber(fields[i])) {
+				return null;
+			}
+		}
+		return new Frame(op, fields);
+	}
+
+	private static Frame parseSessionAccept(String msg) {
+		int end = msg.length() - Tags.SESSION_ACCEPT_CLOSE_TAG.length();
+		if (end < Tags.SESSION_ACCEPT_OPEN_TAG.length() || !msg.endsWith(Tags.SESSION_ACCEPT_CLOSE_TAG)) {
+			return null;
+		}
+		List<String> fields = new ArrayList<>();
+		int pos = Tags.SESSION_ACCEPT_OPEN_TAG.length();
+		while (pos < end) {
+			pos = parsePeer(msg, pos, end, fields);
+			if (pos < 0) {
+				return null;
+			}
+		}
+		return new Frame(Opcode.SESSION_ACCEPT, fields.toArray(NO_FIELDS));
+	}
+
+	private static Frame parseDelta(String msg) {
+		int end = msg.length() - Tags.SESSION_DELTA_CLOSE_TAG.length();
+		if (end < DELTA_HEAD.length() || !msg.startsWith(DELTA_HEAD) || !msg.endsWith(Tags.SESSION_DELTA_CLOSE_TAG)) {
+			return null;
+		}
+		List<String> fields = new ArrayList<>();
+		int pos = DELTA_HEAD.length();
+		int at = msg.indexOf(Tags.VERSION_CLOSE_TAG, pos);
+		if (at < 0 || at > end || !isCanonicalNumber(msg.substring(pos, at))) {
+			return null;
+		}
+		fields.add(msg.substring(pos, at));
+		pos = at + Tags.VERSION_CLOSE_TAG.length();
+
+		if (msg.startsWith(Tags.DELTA_RESET_TAG, pos)) {
+			fields.add("-1");
+			pos += Tags.DELTA_RESET_TAG.length();
+		} else if (msg.startsWith(Tags.SINCE_OPEN_TAG, pos)) {
+			pos += Tags.SINCE_OPEN_TAG.length();
+			at = msg.indexOf(Tags.SINCE_CLOSE_TAG, pos);
+			if (at < 0 || at > end || !isCanonicalNumber(msg.substring(pos, at))) {
+				return null;
+			}
+			fields.add(msg.substring(pos, at));
+			pos = at + Tags.SINCE_CLOSE_TAG.length();
+		} else {
+			return null;
+		}
+
+		int countAt = fields.size();
+		fields.add(null);
+		int joined = 0;
+		while (pos < end && msg.startsWith(PEER_HEAD, pos)) {
+			pos = parsePeer(msg, pos, end, fields);
+			if (pos < 0) {
+				return null;
+			}
+			joined++;
+		}
+		fields.set(countAt, Integer.toString(joined));
+
+		while (pos < end) {
+			if (!msg.startsWith(Tags.LEAVE_OPEN_TAG, pos)) {
+				return null;
+			}
+			pos += Tags.LEAVE_OPEN_TAG.length();
+			at = msg.indexOf(Tags.LEAVE_CLOSE_TAG, pos);
+			if (at < 0 || at + Tags.LEAVE_CLOSE_TAG.length() > end) {
+				return null;
+			}
+			fields.add(msg.substring(pos, at));
+			pos = at + Tags.LEAVE_CLOSE_TAG.length();
+		}
+		return new Frame(Opcode.SESSION_DELTA, fields.toArray(NO_FIELDS));
+	}
+
+	// parses one PEER element at pos, adding name, host and port; returns the position after it or -1
+	private static int parsePeer(String msg, int pos, int end, List<String> fields) {
+		if (!msg.startsWith(PEER_HEAD, pos)) {
+			return -1;
+		}
+		pos += PEER_HEAD.length();
+		int ip = msg.indexOf(PEER_NAME_TO_IP, pos);
+		if (ip < 0 || ip > end) {
+			return -1;
+		}
+		int port = msg.indexOf(PEER_IP_TO_PORT, ip + PEER_NAME_TO_IP.length());
+		if (port < 0 || port > end) {
+			return -1;
+		}
+		int tail = msg.indexOf(PEER_TAIL, port + PEER_IP_TO_PORT.length());
+		if (tail < 0 || tail + PEER_TAIL.length() > end) {
+			return -1;
+		}
+		String portText = msg.substring(port + PEER_IP_TO_PORT.length(), tail);
+		if (!isCanonicalNumber(portText)) {
+			return -1;
+		}
+		fields.add(msg.substring(pos, ip));
+		fields.add(msg.substring(ip + PEER_NAME_TO_IP.length(), port));
+		fields.add(portText);
+		return tail + PEER_TAIL.length();
+	}
+
+	// digits only, no leading zero, fits a long: exactly what Long.toString gives back
+	private static boolean isCanonicalNumber(String s) {
+		int n = s.length();
+		// Presence versions are 19 digits, as many as a long holds
+		if (n == 0 || n > LONG_MAX.length() || (n > 1 && s.charAt(0) == '0')) {
+			return false;
+		}
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c < '0' || c > '9') {
+				return false;
+			}
+		}
+		// Same length and all digits: string order is numeric order
+		return n < LONG_MAX.length() || s.compareTo(LONG_MAX) <= 0;
+	}
+
+	private static String toTags(Frame frame) {
+		Opcode op = frame.opcode();
+		String[] f = frame.fields();
+		switch (op) {
+			case TEXT:
+				return f[0];
+			case FILE_CHUNK:
+				throw new IllegalStateException("A file chunk has no tag form");
+			case DEFLATED:
+				throw new IllegalStateException("A compressed frame must be inflated first");
+			case SESSION_ACCEPT: {
+				StringBuilder sb = new StringBuilder(Tags.SESSION_ACCEPT_OPEN_TAG);
+				appendPeers(sb, f, 0, f.length / 3);
+				return sb.append(Tags.SESSION_ACCEPT_CLOSE_TAG).toString();
+			}
+			case SESSION_DELTA: {
+				StringBuilder sb = new StringBuilder(DELTA_HEAD).append(f[0]).append(Tags.VERSION_CLOSE_TAG);
+				if (f[1].equals("-1")) {
+					sb.append(Tags.DELTA_RESET_TAG);
+				} else {
+					sb.append(Tags.SINCE_OPEN_TAG).append(f[1]).append(Tags.SINCE_CLOSE_TAG);
+				}
+				int joined = Integer.parseInt(f[2]);
+				appendPeers(sb, f, 3, joined);
+				for (int i = 3 + joined * 3; i < f.length; i++) {
+					sb.append(Tags.LEAVE_OPEN_TAG).append(f[i]).append(Tags.LEAVE_CLOSE_TAG);
+				}
+				return sb.append(Tags.SESSION_DELTA_CLOSE_TAG).toString();
+			}
+			default: {
+				String[] p = op.pieces;
+				StringBuilder sb = new StringBuilder(p[0]);
+				for (int i = 1; i < p.length; i++) {
+					sb.append(f[i - 1]).append(p[i]);
+				}
+				return sb.toString();
+			}
+		}
+	}
+
+	private static void appendPeers(StringBuilder sb, String[] f, int from, int count) {
+		for (int i = 0; i < count; i++) {
+			int at = from + i * 3;
+			sb.append(PEER_HEAD).append(f[at])
+					.append(PEER_NAME_TO_IP).append(f[at + 1])
+					.append(PEER_IP_TO_PORT).append(f[at + 2])
+					.append(PEER_TAIL);
+		}
+	}
+
+	/**
+	 * Encodes a tag string as a length-prefixed frame
+	 *
+	 * @param msg Tag-encoded message
+	 * @return Frame bytes
+	 */
+	public static byte[] encode(String msg) {
+		return encode(toFrame(msg));
+	}
+
+	/**
+	 * Encodes a file chunk as a length-prefixed frame
+	 *
+	 * @param data Buffer holding the chunk
+	 * @param off  Chunk offset
+	 * @param len  Chunk length
+	 * @return Frame bytes
+	 */
+	public static byte[] encodeChunk(byte[] data, int off, int len) {
+		Writer w = new Writer(len + 16);
+		w.u8(Opcode.FILE_CHUNK.code);
+		w.varint(len);
+		w.bytes(data, off, len);
+		return w.finish();
+	}
+
+	/**
+	 * Encodes a frame with its length prefix
+	 *
+	 * @param frame Message
+	 * @return Frame bytes
+	 * @throws IllegalArgumentException If a number field is not a valid number
+	 */
+	public static byte[] encode(Frame frame) {
+		Opcode op = frame.opcode();
+		if (op == Opcode.FILE_CHUNK) {
+			return encodeChunk(frame.data(), 0, frame.data().length);
+		}
+		if (op == Opcode.DEFLATED) {
+			return encodeDeflated(Integer.parseInt(frame.field(0)), frame.data(), frame.data().length);
+		}
+		String[] f = frame.fields();
+		Writer w = new Writer(estimate(f));
+		w.u8(op.code);
+		switch (op) {
+			case TEXT -> w.string(f[0]);
+			case SESSION_ACCEPT -> {
+				w.varint(f.length / 3);
+				writePeers(w, f, 0, f.length / 3);
+			}
+			case SESSION_DELTA -> {
+				int joined = Integer.parseInt(f[2]);
+				w.varint(number(f[0]));
+				w.varint(Long.parseLong(f[1]) + 1);
+				w.varint(joined);
+				writePeers(w, f, 3, joined);
+				w.varint(f.length - 3 - joined * 3);
+				for (int i = 3 + joined * 3; i < f.length; i++) {
+					w.string(f[i]);
+				}
+			}
+			default -> {
+				for (int i = 0; i < f.length; i++) {
+					if (op.kinds.charAt(i) == 'N') {
+						w.varint(number(f[i]));
+					} else {
+						w.string(f[i]);
+					}
+				}
+			}
+		}
+		return w.finish();
+	}
+
+	// DEFLATED frame around compressed bytes of a body of the given size
+	static byte[] encodeDeflated(int size, byte[] data, int len) {
+		Writer w = new Writer(len + 16);
+		w.u8(Opcode.DEFLATED.code);
+		w.varint(size);
+		w.varint(len);
+		w.bytes(data, 0, len);
+		return w.finish();
+	}
+
+	// where the body of an encoded frame starts, after its length prefix
+	static int bodyOffset(byte[] frame) {
+		int off = 0;
+		while ((frame[off] & 0x80) != 0) {
+			off++;
+		}
+		return off + 1;
+	}
+
+	private static void writePeers(Writer w, String[] f, int from, int count) {
+		for (int i = 0; i < count; i++) {
+			int at = from + i * 3;
+			w.string(f[at]);
+			w.string(f[at + 1]);
+			w.varint(number(f[at + 2]));
+		}
+	}
+
+	private static long number(String s) {
+		long n = Long.parseLong(s);
+		if (n < 0) {
+			throw new IllegalArgumentException("Negative number field: " + s);
+		}
+		return n;
+	}
+
+	private static int estimate(String[] fields) {
+		int size = 16;
+		for (String f : fields) {
+			size += f.length() + 2;
+		}
+		return size;
+	}
+
+	/**
+	 * Decodes one complete frame
+	 *
+	 * @param frame Frame bytes, length prefix included
+	 * @return Decoded message
+	 * @throws StreamCorruptedException If the bytes are not a valid frame
+	 */
+	public static Frame decode(byte[] frame) throws StreamCorruptedException {
+		ByteBuffer buf = ByteBuffer.wrap(frame);
+		Frame decoded = next(buf);
+		if (decoded == null || buf.hasRemaining()) {
+			throw new StreamCorruptedException("Not a single frame");
+		}
+		return decoded;
+	}
+
+	/**
+	 * Decodes the next frame from bytes that arrive in pieces
+	 *
+	 * @param buf Buffer in read mode; a decoded frame is consumed
+	 * @return Next message, or null if the frame is not complete yet
+	 * @throws StreamCorruptedException If the bytes are not a valid frame
+	 */
+	public static Frame next(ByteBuffer buf) throws StreamCorruptedException {
+		int start = buf.position();
+		long len = 0;
+		for (int shift = 0;; shift += 7) {
+			if (!buf.hasRemaining()) {
+				buf.position(start);
+				return null;
+			}
+			byte b = buf.get();
+			len |= (long) (b & 0x7F) << shift;
+			if (b >= 0) {
+				break;
+			}
+			if (shift >= 28) {
+				throw new StreamCorruptedException("Frame length too long");
+			}
+		}
+		if (len < 1 || len > MAX_FRAME) {
+			throw new StreamCorruptedException("Invalid frame length: " + len);
+		}
+		if (buf.remaining() < len) {
+			buf.position(start);
+			return null;
+		}
+		byte[] body;
+		int off;
+		if (buf.hasArray()) {
+			body = buf.array();
+			off = buf.arrayOffset() + buf.position();
+			buf.position(buf.position() + (int) len);
+		} else {
+			body = new byte[(int) len];
+			off = 0;
+			buf.get(body);
+		}
+		return decodeBody(body, off, (int) len);
+	}
+
+	/**
+	 * Reads one frame from a blocking stream
+	 *
+	 * @param in Stream positioned at a frame boundary
+	 * @return Decoded message
+	 * @throws EOFException If the stream ends before a frame
+	 * @throws IOException  If reading fails or the frame is invalid
+	 */
+	public static Frame read(InputStream in) throws IOException {
+		int len = 0;
+		for (int shift = 0;; shift += 7) {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException();
+			}
+			len |= (b & 0x7F) << shift;
+			if (b < 0x80) {
+				break;
+			}
+			if (shift >= 28) {
+				throw new StreamCorruptedException("Frame length too long");
+			}
+		}
+		if (len < 1 || len > MAX_FRAME) {
+			throw new StreamCorruptedException("Invalid frame length: " + len);
+		}
+		byte[] body = in.readNBytes(len);
+		if (body.length < len) {
+			throw new EOFException("Truncated frame");
+		}
+		return decodeBody(body, 0, len);
+	}
+
+	static Frame decodeBody(byte[] body, int off, int len) throws StreamCorruptedException {
+		Reader r = new Reader(body, off, off + len);
+		try {
+			Opcode op = Opcode.of(r.u8());
+			if (op == null) {
+				throw new StreamCorruptedException("Unknown opcode: " + (body[off] & 0xFF));
+			}
+			Frame frame;
+			switch (op) {
+				case TEXT -> frame = new Frame(op, r.string());
+				case FILE_CHUNK -> frame = new Frame(op, NO_FIELDS, r.bytes());
+				case DEFLATED -> {
+					String size = Long.toString(r.varint());
+					frame = new Frame(op, new String[] { size }, r.bytes());
+				}
+				case SESSION_ACCEPT -> {
+					int peers = r.count(3);
+					String[] f = new String[peers * 3];
+					readPeers(r, f, 0, peers);
+					frame = new Frame(op, f);
+				}
+				case SESSION_DELTA -> {
+					String version = Long.toString(r.varint());
+					String since = Long.toString(r.varint() - 1);
+					int joined = r.count(3);
+					String[] peers = new String[joined * 3];
+					readPeers(r, peers, 0, joined);
+					int left = r.count(1);
+					String[] f = new String[3 + peers.length + left];
+					f[0] = version;
+					f[1] = since;
+					f[2] = Integer.toString(joined);
+					System.arraycopy(peers, 0, f, 3, peers.length);
+					for (int i = 3 + peers.length; i < f.length; i++) {
+						f[i] = r.string();
+					}
+					frame = new Frame(op, f);
+				}
+				default -> {
+					String[] f = op.kinds.isEmpty() ? NO_FIELDS : new String[op.kinds.length()];
+					for (int i = 0; i < f.length; i++) {
+						f[i] = op.kinds.charAt(i) == 'N' ? Long.toString(r.varint()) : r.string();
+					}
+					frame = new Frame(op, f);
+				}
+			}
+			if (r.pos != r.limit) {
+				throw new StreamCorruptedException("Trailing bytes in " + op + " frame");
+			}
+			return frame;
+		} catch (BufferUnderflowException e) {
+			throw new StreamCorruptedException("Truncated frame");
+		}
+	}
+
+	private static void readPeers(Reader r, String[] f, int from, int count) throws StreamCorruptedException {
+		for (int i = 0; i < count; i++) {
+			int at = from + i * 3;
+			f[at] = r.string();
+			f[at + 1] = r.string();
+			f[at + 2] = Long.toString(r.varint());
+		}
+	}
+
+	/**
+	 * Growable output buffer; the body is written after room for the
+	 * longest length prefix, which is filled in by finish()
+	 */
+	private static final class Writer {
+		private static final int PREFIX = 5;
+
+		private byte[] buf;
+		private int len = PREFIX;
+
+		Writer(int capacity) {
+			buf = new byte[PREFIX + capacity];
+		}
+
+		private void ensure(int extra) {
+			if (len + extra > buf.length) {
+				buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+			}
+		}
+
+		void u8(int b) {
+			ensure(1);
+			buf[len++] = (byte) b;
+		}
+
+		void varint(long v) {
+			ensure(10);
+			while ((v & ~0x7FL) != 0) {
+				buf[len++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			buf[len++] = (byte) v;
+		}
+
+		void bytes(byte[] src, int off, int n) {
+			ensure(n);
+			System.arraycopy(src, off, buf, len, n);
+			len += n;
+		}
+
+		// UTF-8 straight from the chars; unpaired surrogates become '?' as in String.getBytes
+		void string(String s) {
+			int n = s.length();
+			int utfLen = 0;
+			for (int i = 0; i < n; i++) {
+				char c = s.charAt(i);
+				if (c < 0x80) {
+					utfLen++;
+				} else if (c < 0x800) {
+					utfLen += 2;
+				} else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+					utfLen += 4;
+					i++;
+				} else if (Character.isSurrogate(c)) {
+					utfLen++;
+				} else {
+					utfLen += 3;
+				}
+			}
+			varint(utfLen);
+			ensure(utfLen);
+			byte[] b = buf;
+			int p = len;
+			for (int i = 0; i < n; i++) {
+				char c = s.charAt(i);
+				if (c < 0x80) {
+					b[p++] = (byte) c;
+				} else if (c < 0x800) {
+					b[p++] = (byte) (0xC0 | (c >> 6));
+					b[p++] = (byte) (0x80 | (c & 0x3F));
+				} else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, s.charAt(++i));
+					b[p++] = (byte) (0xF0 | (cp >> 18));
+					b[p++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+					b[p++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+					b[p++] = (byte) (0x80 | (cp & 0x3F));
+				} else if (Character.isSurrogate(c)) {
+					b[p++] = '?';
+				} else {
+					b[p++] = (byte) (0xE0 | (c >> 12));
+					b[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+					b[p++] = (byte) (0x80 | (c & 0x3F));
+				}
+			}
+			len = p;
+		}
+
+		byte[] finish() {
+			int body = len - PREFIX;
+			int prefix = 1;
+			for (int v = body >>> 7; v != 0; v >>>= 7) {
+				prefix++;
+			}
+			int start = PREFIX - prefix;
+			int p = start;
+			int v = body;
+			while ((v & ~0x7F) != 0) {
+				buf[p++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			buf[p] = (byte) v;
+			return Arrays.copyOfRange(buf, start, len);
+		}
+	}
+
+	private static final class Reader {
+		private final byte[] buf;
+		private final int limit;
+		private int pos;
+
+		Reader(byte[] buf, int pos, int limit) {
+			this.buf = buf;
+			this.pos = pos;
+			this.limit = limit;
+		}
+
+		int u8() {
+			if (pos >= limit) {
+				throw new BufferUnderflowException();
+			}
+			return buf[pos++] & 0xFF;
+		}
+
+		long varint() throws StreamCorruptedException {
+			long v = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				int b = u8();
+				v |= (long) (b & 0x7F) << shift;
+				if (b < 0x80) {
+					return v;
+				}
+			}
+			throw new StreamCorruptedException("Varint too long");
+		}
+
+		// element count that cannot exceed what is left, so a bad count cannot force a huge allocation
+		int count(int minBytesEach) throws StreamCorruptedException {
+			long n = varint();
+			if (n > (limit - pos) / minBytesEach) {
+				throw new StreamCorruptedException("Invalid count: " + n);
+			}
+			return (int) n;
+		}
+
+		private int length() throws StreamCorruptedException {
+			long n = varint();
+			if (n > limit - pos) {
+				throw new BufferUnderflowException();
+			}
+			return (int) n;
+		}
+
+		String string() throws StreamCorruptedException {
+			int n = length();
+			String s = new String(buf, pos, n, StandardCharsets.UTF_8);
+			pos += n;
+			return s;
+		}
+
+		byte[] bytes() throws StreamCorruptedException {
+			int n = length();
+			byte[] b = Arrays.copyOfRange(buf, pos, pos + n);
+			pos += n;
+			return b;
+		}
+	}
+}
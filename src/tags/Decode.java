@@ -1,10 +1,10 @@
 package tags;
 
 import java.util.ArrayList;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.EnumSet;
 
 import data.Peer;
+import data.PeerList;
 
 /**
  * Protocol message decoder for VKU Chat application.
@@ -16,74 +16,90 @@ public final class Decode {
 		// Utility class - prevent instantiation
 	}
 
-	// Compiled regex patterns
-	private static final Pattern CREATE_ACCOUNT = Pattern.compile(
-			Tags.SESSION_OPEN_TAG + Tags.PEER_NAME_OPEN_TAG + ".*"
-					+ Tags.PEER_NAME_CLOSE_TAG + Tags.PORT_OPEN_TAG + ".*"
-					+ Tags.PORT_CLOSE_TAG + Tags.SESSION_CLOSE_TAG);
-
-	private static final Pattern USERS = Pattern.compile(
-			Tags.SESSION_ACCEPT_OPEN_TAG + "(" + Tags.PEER_OPEN_TAG
-					+ Tags.PEER_NAME_OPEN_TAG + ".+" + Tags.PEER_NAME_CLOSE_TAG
-					+ Tags.IP_OPEN_TAG + ".+" + Tags.IP_CLOSE_TAG
-					+ Tags.PORT_OPEN_TAG + "[0-9]+" + Tags.PORT_CLOSE_TAG
-					+ Tags.PEER_CLOSE_TAG + ")*" + Tags.SESSION_ACCEPT_CLOSE_TAG);
-
-	private static final Pattern REQUEST = Pattern.compile(
-			Tags.SESSION_KEEP_ALIVE_OPEN_TAG + Tags.PEER_NAME_OPEN_TAG
-					+ "[^<>]+" + Tags.PEER_NAME_CLOSE_TAG + Tags.STATUS_OPEN_TAG
-					+ "(" + Tags.SERVER_ONLINE + "|" + Tags.SERVER_OFFLINE + ")"
-					+ Tags.STATUS_CLOSE_TAG + Tags.SESSION_KEEP_ALIVE_CLOSE_TAG);
-
-	private static final Pattern MESSAGE = Pattern.compile(
-			Tags.CHAT_MSG_OPEN_TAG + ".*" + Tags.CHAT_MSG_CLOSE_TAG);
-
-	private static final Pattern EDIT = Pattern.compile(
-			Tags.CHAT_EDIT_OPEN_TAG + Tags.CHAT_EDIT_OLD_OPEN_TAG + ".*" + Tags.CHAT_EDIT_OLD_CLOSE_TAG
-					+ Tags.CHAT_EDIT_NEW_OPEN_TAG + ".*" + Tags.CHAT_EDIT_NEW_CLOSE_TAG
-					+ Tags.CHAT_EDIT_CLOSE_TAG);
-
-	private static final Pattern DELETE = Pattern.compile(
-			Tags.CHAT_DELETE_OPEN_TAG + Tags.CHAT_DELETE_BODY_OPEN_TAG + ".*" + Tags.CHAT_DELETE_BODY_CLOSE_TAG
-					+ Tags.CHAT_DELETE_CLOSE_TAG);
-
-	private static final Pattern TYPING = Pattern.compile(
-			Tags.TYPING_OPEN_TAG + Tags.TYPING_STATE_OPEN_TAG + "(ON|OFF)" + Tags.TYPING_STATE_CLOSE_TAG
-					+ Tags.TYPING_CLOSE_TAG);
-
-	private static final Pattern REACTION = Pattern.compile(
-			Tags.CHAT_REACTION_OPEN_TAG + Tags.CHAT_REACTION_TARGET_OPEN_TAG + ".*"
-					+ Tags.CHAT_REACTION_TARGET_CLOSE_TAG
-					+ Tags.CHAT_REACTION_EMOJI_OPEN_TAG + "[^<>]+" + Tags.CHAT_REACTION_EMOJI_CLOSE_TAG
-					+ Tags.CHAT_REACTION_CLOSE_TAG);
-
-	private static final Pattern GROUP_CREATE = Pattern.compile(
-			Tags.GROUP_CREATE_OPEN_TAG + Tags.GROUP_NAME_OPEN_TAG + ".*" + Tags.GROUP_NAME_CLOSE_TAG
-					+ Tags.GROUP_CREATOR_OPEN_TAG + ".*" + Tags.GROUP_CREATOR_CLOSE_TAG
-					+ Tags.GROUP_CREATE_CLOSE_TAG);
-
-	private static final Pattern GROUP_INVITE = Pattern.compile(
-			Tags.GROUP_INVITE_OPEN_TAG + Tags.GROUP_ID_OPEN_TAG + "[0-9]+" + Tags.GROUP_ID_CLOSE_TAG
-					+ Tags.GROUP_NAME_OPEN_TAG + ".*" + Tags.GROUP_NAME_CLOSE_TAG
-					+ Tags.INVITEE_OPEN_TAG + ".*" + Tags.INVITEE_CLOSE_TAG
-					+ Tags.GROUP_INVITE_CLOSE_TAG);
-
-	private static final Pattern GROUP_MSG = Pattern.compile(
-			Tags.GROUP_MSG_OPEN_TAG + Tags.GROUP_ID_OPEN_TAG + "[0-9]+" + Tags.GROUP_ID_CLOSE_TAG
-					+ Tags.GROUP_SENDER_OPEN_TAG + ".*" + Tags.GROUP_SENDER_CLOSE_TAG
-					+ Tags.GROUP_CONTENT_OPEN_TAG + ".*" + Tags.GROUP_CONTENT_CLOSE_TAG
-					+ Tags.GROUP_MSG_CLOSE_TAG);
-
-	private static final Pattern GROUP_JOIN = Pattern.compile(
-			Tags.GROUP_JOIN_OPEN_TAG + Tags.GROUP_ID_OPEN_TAG + "[0-9]+" + Tags.GROUP_ID_CLOSE_TAG
-					+ Tags.GROUP_MEMBER_OPEN_TAG + ".*" + Tags.GROUP_MEMBER_CLOSE_TAG
-					+ Tags.GROUP_JOIN_CLOSE_TAG);
-
-	private static final Pattern FILE_NAME = Pattern.compile(
-			Tags.FILE_REQ_OPEN_TAG + ".*" + Tags.FILE_REQ_CLOSE_TAG);
-
-	private static final Pattern FEEDBACK = Pattern.compile(
-			Tags.FILE_REQ_ACK_OPEN_TAG + ".*" + Tags.FILE_REQ_ACK_CLOSE_TAG);
+	private static final String PEER_HEAD = Tags.PEER_OPEN_TAG + Tags.PEER_NAME_OPEN_TAG;
+	private static final String PEER_NAME_TO_IP = Tags.PEER_NAME_CLOSE_TAG + Tags.IP_OPEN_TAG;
+	private static final String PEER_IP_TO_PORT = Tags.IP_CLOSE_TAG + Tags.PORT_OPEN_TAG;
+	private static final String PEER_TAIL = Tags.PORT_CLOSE_TAG + Tags.PEER_CLOSE_TAG;
+	private static final String DELTA_HEAD = Tags.SESSION_DELTA_OPEN_TAG + Tags.VERSION_OPEN_TAG;
+
+	// Single-pass layouts; see TagParser
+	private static final TagParser.Layout CREATE_ACCOUNT = new TagParser.Layout(
+			Tags.SESSION_OPEN_TAG + Tags.PEER_NAME_OPEN_TAG,
+			Tags.PEER_NAME_CLOSE_TAG + Tags.PORT_OPEN_TAG,
+			Tags.PORT_CLOSE_TAG + Tags.SESSION_CLOSE_TAG);
+
+	private static final TagParser.Layout CHAT_REQUEST = new TagParser.Layout(
+			Tags.CHAT_REQ_OPEN_TAG + Tags.PEER_NAME_OPEN_TAG,
+			Tags.PEER_NAME_CLOSE_TAG + Tags.CHAT_REQ_CLOSE_TAG);
+
+	private static final TagParser.Layout HELLO = new TagParser.Layout(
+			Tags.HELLO_OPEN_TAG + Tags.VERSION_OPEN_TAG,
+			Tags.VERSION_CLOSE_TAG + Tags.CAPS_OPEN_TAG,
+			Tags.CAPS_CLOSE_TAG + Tags.HELLO_CLOSE_TAG);
+
+	private static final TagParser.Layout KEEP_ALIVE_VERSIONED = new TagParser.Layout(
+			Tags.SESSION_KEEP_ALIVE_OPEN_TAG + Tags.PEER_NAME_OPEN_TAG,
+			Tags.PEER_NAME_CLOSE_TAG + Tags.STATUS_OPEN_TAG,
+			Tags.STATUS_CLOSE_TAG + Tags.VERSION_OPEN_TAG,
+			Tags.VERSION_CLOSE_TAG + Tags.SESSION_KEEP_ALIVE_CLOSE_TAG);
+
+	private static final TagParser.Layout KEEP_ALIVE = new TagParser.Layout(
+			Tags.SESSION_KEEP_ALIVE_OPEN_TAG + Tags.PEER_NAME_OPEN_TAG,
+			Tags.PEER_NAME_CLOSE_TAG + Tags.STATUS_OPEN_TAG,
+			Tags.STATUS_CLOSE_TAG + Tags.SESSION_KEEP_ALIVE_CLOSE_TAG);
+
+	private static final TagParser.Layout SUBSCRIBE = new TagParser.Layout(
+			Tags.PRESENCE_SUBSCRIBE_OPEN_TAG + Tags.VERSION_OPEN_TAG,
+			Tags.VERSION_CLOSE_TAG + Tags.PRESENCE_SUBSCRIBE_CLOSE_TAG);
+
+	private static final TagParser.Layout MESSAGE = new TagParser.Layout(
+			Tags.CHAT_MSG_OPEN_TAG, Tags.CHAT_MSG_CLOSE_TAG);
+
+	private static final TagParser.Layout EDIT = new TagParser.Layout(
+			Tags.CHAT_EDIT_OPEN_TAG + Tags.CHAT_EDIT_OLD_OPEN_TAG,
+			Tags.CHAT_EDIT_OLD_CLOSE_TAG + Tags.CHAT_EDIT_NEW_OPEN_TAG,
+			Tags.CHAT_EDIT_NEW_CLOSE_TAG + Tags.CHAT_EDIT_CLOSE_TAG);
+
+	private static final TagParser.Layout DELETE = new TagParser.Layout(
+			Tags.CHAT_DELETE_OPEN_TAG + Tags.CHAT_DELETE_BODY_OPEN_TAG,
+			Tags.CHAT_DELETE_BODY_CLOSE_TAG + Tags.CHAT_DELETE_CLOSE_TAG);
+
+	private static final TagParser.Layout TYPING = new TagParser.Layout(
+			Tags.TYPING_OPEN_TAG + Tags.TYPING_STATE_OPEN_TAG,
+			Tags.TYPING_STATE_CLOSE_TAG + Tags.TYPING_CLOSE_TAG);
+
+	private static final TagParser.Layout REACTION = new TagParser.Layout(
+			Tags.CHAT_REACTION_OPEN_TAG + Tags.CHAT_REACTION_TARGET_OPEN_TAG,
+			Tags.CHAT_REACTION_TARGET_CLOSE_TAG + Tags.CHAT_REACTION_EMOJI_OPEN_TAG,
+			Tags.CHAT_REACTION_EMOJI_CLOSE_TAG + Tags.CHAT_REACTION_CLOSE_TAG);
+
+	private static final TagParser.Layout GROUP_CREATE = new TagParser.Layout(
+			Tags.GROUP_CREATE_OPEN_TAG + Tags.GROUP_NAME_OPEN_TAG,
+			Tags.GROUP_NAME_CLOSE_TAG + Tags.GROUP_CREATOR_OPEN_TAG,
+			Tags.GROUP_CREATOR_CLOSE_TAG + Tags.GROUP_CREATE_CLOSE_TAG);
+
+	private static final TagParser.Layout GROUP_INVITE = new TagParser.Layout(
+			Tags.GROUP_INVITE_OPEN_TAG + Tags.GROUP_ID_OPEN_TAG,
+			Tags.GROUP_ID_CLOSE_TAG + Tags.GROUP_NAME_OPEN_TAG,
+			Tags.GROUP_NAME_CLOSE_TAG + Tags.INVITEE_OPEN_TAG,
+			Tags.INVITEE_CLOSE_TAG + Tags.GROUP_INVITE_CLOSE_TAG);
+
+	private static final TagParser.Layout GROUP_MSG = new TagParser.Layout(
+			Tags.GROUP_MSG_OPEN_TAG + Tags.GROUP_ID_OPEN_TAG,
+			Tags.GROUP_ID_CLOSE_TAG + Tags.GROUP_SENDER_OPEN_TAG,
+			Tags.GROUP_SENDER_CLOSE_TAG + Tags.GROUP_CONTENT_OPEN_TAG,
+			Tags.GROUP_CONTENT_CLOSE_TAG + Tags.GROUP_MSG_CLOSE_TAG);
+
+	private static final TagParser.Layout GROUP_JOIN = new TagParser.Layout(
+			Tags.GROUP_JOIN_OPEN_TAG + Tags.GROUP_ID_OPEN_TAG,
+			Tags.GROUP_ID_CLOSE_TAG + Tags.GROUP_MEMBER_OPEN_TAG,
+			Tags.GROUP_MEMBER_CLOSE_TAG + Tags.GROUP_JOIN_CLOSE_TAG);
+
+	private static final TagParser.Layout FILE_NAME = new TagParser.Layout(
+			Tags.FILE_REQ_OPEN_TAG, Tags.FILE_REQ_CLOSE_TAG);
+
+	private static final TagParser.Layout FEEDBACK = new TagParser.Layout(
+			Tags.FILE_REQ_ACK_OPEN_TAG, Tags.FILE_REQ_ACK_CLOSE_TAG);
 
 	/**
 	 * Extracts username and port from account creation message
@@ -93,27 +109,16 @@ public final class Decode {
 	 *         invalid
 	 */
 	public static ArrayList<String> getUser(String msg) {
-		ArrayList<String> user = new ArrayList<>();
-		if (!CREATE_ACCOUNT.matcher(msg).matches()) {
+		int[] b = new int[4];
+		// A name with tag characters would break every peer list it appears in
+		if (!CREATE_ACCOUNT.match(msg, b) || b[0] == b[1] || hasTag(msg, b[0], b[1])
+				|| !TagParser.isDigits(msg, b[2], b[3])) {
 			return null;
 		}
-
-		Pattern findName = Pattern.compile(Tags.PEER_NAME_OPEN_TAG + ".*" + Tags.PEER_NAME_CLOSE_TAG);
-		Pattern findPort = Pattern.compile(Tags.PORT_OPEN_TAG + "[0-9]*" + Tags.PORT_CLOSE_TAG);
-
-		Matcher find = findName.matcher(msg);
-		if (find.find()) {
-			String name = find.group(0);
-			user.add(extractContent(name, Tags.PEER_NAME_OPEN_TAG, Tags.PEER_NAME_CLOSE_TAG));
-
-			find = findPort.matcher(msg);
-			if (find.find()) {
-				String port = find.group(0);
-				user.add(extractContent(port, Tags.PORT_OPEN_TAG, Tags.PORT_CLOSE_TAG));
-				return user;
-			}
-		}
-		return null;
+		ArrayList<String> user = new ArrayList<>(2);
+		user.add(msg.substring(b[0], b[1]));
+		user.add(msg.substring(b[2], b[3]));
+		return user;
 	}
 
 	/**
@@ -123,46 +128,78 @@ public final class Decode {
 	 * @return ArrayList of Peer objects, or null if invalid
 	 */
 	public static ArrayList<Peer> getAllUser(String msg) {
-		ArrayList<Peer> users = new ArrayList<>();
-		if (!USERS.matcher(msg).matches()) {
-			return null;
-		}
-
-		Pattern findPeer = Pattern.compile(Tags.PEER_OPEN_TAG + Tags.PEER_NAME_OPEN_TAG + "[^<>]*"
-				+ Tags.PEER_NAME_CLOSE_TAG + Tags.IP_OPEN_TAG + "[^<>]*" + Tags.IP_CLOSE_TAG
-				+ Tags.PORT_OPEN_TAG + "[0-9]*" + Tags.PORT_CLOSE_TAG + Tags.PEER_CLOSE_TAG);
-
-		Matcher find = findPeer.matcher(msg);
-		while (find.find()) {
-			String peer = find.group(0);
-			Peer dataPeer = new Peer();
-
-			// Extract name
-			Pattern findName = Pattern.compile(Tags.PEER_NAME_OPEN_TAG + ".*" + Tags.PEER_NAME_CLOSE_TAG);
-			Matcher matcher = findName.matcher(peer);
-			if (matcher.find()) {
-				dataPeer.setName(extractContent(matcher.group(0), Tags.PEER_NAME_OPEN_TAG, Tags.PEER_NAME_CLOSE_TAG));
-			}
+		PeerList peers = new PeerList();
+		return getAllUser(msg, peers) ? peers.toPeers() : null;
+	}
 
-			// Extract IP (with sanitization to remove leading slashes)
-			Pattern findIP = Pattern.compile(Tags.IP_OPEN_TAG + ".+" + Tags.IP_CLOSE_TAG);
-			matcher = findIP.matcher(peer);
-			if (matcher.find()) {
-				String ipAddress = extractContent(matcher.group(0), Tags.IP_OPEN_TAG, Tags.IP_CLOSE_TAG);
-				dataPeer.setHost(sanitizeIPAddress(ipAddress));
+	/**
+	 * Decodes a peer list in one pass into a reusable list, allocating only
+	 * the name and host strings
+	 * 
+	 * @param msg   SESSION_ACCEPT message
+	 * @param peers List to fill; cleared first, and left empty if msg is invalid
+	 * @return true if msg is a valid peer list
+	 */
+	public static boolean getAllUser(String msg, PeerList peers) {
+		peers.clear();
+		int end = msg.length() - Tags.SESSION_ACCEPT_CLOSE_TAG.length();
+		int pos = Tags.SESSION_ACCEPT_OPEN_TAG.length();
+		if (end < pos || !msg.startsWith(Tags.SESSION_ACCEPT_OPEN_TAG)
+				|| !msg.endsWith(Tags.SESSION_ACCEPT_CLOSE_TAG)) {
+			return false;
+		}
+		while (pos < end) {
+			pos = parsePeer(msg, pos, end, peers);
+			if (pos < 0) {
+				peers.clear();
+				return false;
 			}
+		}
+		return true;
+	}
 
-			// Extract port
-			Pattern findPort = Pattern.compile(Tags.PORT_OPEN_TAG + "[0-9]*" + Tags.PORT_CLOSE_TAG);
-			matcher = findPort.matcher(peer);
-			if (matcher.find()) {
-				String portStr = extractContent(matcher.group(0), Tags.PORT_OPEN_TAG, Tags.PORT_CLOSE_TAG);
-				dataPeer.setPort(Integer.parseInt(portStr));
+	/**
+	 * Parses one PEER element: name and host run to the next tag, the port
+	 * is read digit by digit. A malformed element is skipped, as the old
+	 * regex parser did, so one bad entry cannot blank the whole list.
+	 * 
+	 * @return Position after the element, or -1 if there is none at pos
+	 */
+	private static int parsePeer(String msg, int pos, int end, PeerList peers) {
+		if (!msg.startsWith(PEER_HEAD, pos)) {
+			return -1;
+		}
+		int tail = msg.indexOf(PEER_TAIL, pos);
+		if (tail < 0 || tail + PEER_TAIL.length() > end) {
+			return -1;
+		}
+		int next = tail + PEER_TAIL.length();
+		int nameStart = pos + PEER_HEAD.length();
+		int nameEnd = msg.indexOf('<', nameStart);
+		if (nameEnd <= nameStart || nameEnd > tail || !msg.startsWith(PEER_NAME_TO_IP, nameEnd)) {
+			return next;
+		}
+		int hostStart = nameEnd + PEER_NAME_TO_IP.length();
+		int hostEnd = msg.indexOf('<', hostStart);
+		if (hostEnd <= hostStart || hostEnd > tail || !msg.startsWith(PEER_IP_TO_PORT, hostEnd)) {
+			return next;
+		}
+		int portStart = hostEnd + PEER_IP_TO_PORT.length();
+		int i = portStart;
+		int port = 0;
+		while (i < tail && i - portStart < 9) {
+			char c = msg.charAt(i);
+			if (c < '0' || c > '9') {
+				break;
 			}
-
-			users.add(dataPeer);
+			port = port * 10 + (c - '0');
+			i++;
 		}
-		return users;
+		if (i == portStart || i != tail) {
+			return next;
+		}
+		peers.add(msg.substring(nameStart, nameEnd), sanitizeIPAddress(msg, hostStart, hostEnd), port);
+		return next;
 	}
 
 	/**
@@ -173,24 +210,27 @@ public final class Decode {
 	 * @return Updated peer list
 	 */
 	public static ArrayList<Peer> updatePeerOnline(ArrayList<Peer> peerList, String msg) {
-		if (!REQUEST.matcher(msg).matches()) {
-			return peerList;
-		}
-
-		Pattern alive = Pattern.compile(Tags.STATUS_OPEN_TAG + Tags.SERVER_ONLINE + Tags.STATUS_CLOSE_TAG);
-		if (alive.matcher(msg).find()) {
-			return peerList; // Peer is online, no changes
+		KeepAlivePayload keepAlive = getKeepAlivePayload(msg);
+		if (keepAlive == null || keepAlive.online()) {
+			return peerList; // Not a keep-alive, or peer is online: no changes
 		}
+		peerList.removeIf(p -> p.getName().equals(keepAlive.name()));
+		return peerList;
+	}
 
-		// Extract peer name to remove if offline
-		Pattern killUser = Pattern.compile(Tags.PEER_NAME_OPEN_TAG + "[^<>]*" + Tags.PEER_NAME_CLOSE_TAG);
-		Matcher findState = killUser.matcher(msg);
-		if (findState.find()) {
-			String peerName = extractContent(findState.group(0), Tags.PEER_NAME_OPEN_TAG, Tags.PEER_NAME_CLOSE_TAG);
-			peerList.removeIf(p -> p.getName().equals(peerName));
+	/**
+	 * Gets the first tag of a message, which names its type, without scanning
+	 * past it
+	 * 
+	 * @param msg Message
+	 * @return Leading tag including brackets, or null if msg does not start with a tag
+	 */
+	public static String getLeadingTag(String msg) {
+		if (msg.isEmpty() || msg.charAt(0) != '<') {
+			return null;
 		}
-
-		return peerList;
+		int end = msg.indexOf('>');
+		return end < 0 ? null : msg.substring(0, end + 1);
 	}
 
 	/**
@@ -200,42 +240,56 @@ public final class Decode {
 	 * @return Message content, or null if invalid
 	 */
 	public static String getMessage(String msg) {
-		if (MESSAGE.matcher(msg).matches()) {
-			return extractContent(msg, Tags.CHAT_MSG_OPEN_TAG, Tags.CHAT_MSG_CLOSE_TAG);
-		}
-		return null;
+		String[] fields = MESSAGE.parse(msg);
+		return fields == null ? null : fields[0];
 	}
 
 	public static boolean isEdit(String msg) {
-		return EDIT.matcher(msg).matches();
+		return getEditPayload(msg) != null;
 	}
 
 	public static boolean isDelete(String msg) {
-		return DELETE.matcher(msg).matches();
+		return getDeletePayload(msg) != null;
 	}
 
 	public static boolean isTyping(String msg) {
-		return TYPING.matcher(msg).matches();
+		return getTypingPayload(msg) != null;
 	}
 
 	public static boolean isReaction(String msg) {
-		return REACTION.matcher(msg).matches();
+		return getReactionPayload(msg) != null;
 	}
 
 	public static boolean isGroupCreate(String msg) {
-		return GROUP_CREATE.matcher(msg).matches();
+		return getGroupCreatePayload(msg) != null;
 	}
 
 	public static boolean isGroupInvite(String msg) {
-		return GROUP_INVITE.matcher(msg).matches();
+		return getGroupInvitePayload(msg) != null;
 	}
 
 	public static boolean isGroupMessage(String msg) {
-		return GROUP_MSG.matcher(msg).matches();
+		return getGroupMessagePayload(msg) != null;
 	}
 
 	public static boolean isGroupJoin(String msg) {
-		return GROUP_JOIN.matcher(msg).matches();
+		return getGroupJoinPayload(msg) != null;
+	}
+
+	/**
+	 * Keep-alive contents; version is -1 when the client wants a full snapshot
+	 */
+	public record KeepAlivePayload(String name, boolean online, long version) {
+	}
+
+	/**
+	 * Presence changes from version {@code since} to {@code version};
+	 * since is -1 for a full snapshot
+	 */
+	public record PresenceDelta(long since, long version, ArrayList<Peer> joined, ArrayList<String> left) {
+		public boolean reset() {
+			return since < 0;
+		}
 	}
 
 	public record EditPayload(String oldText, String newText) {
@@ -262,76 +316,191 @@ public final class Decode {
 	public record GroupJoinPayload(int groupId, String member) {
 	}
 
-	public static EditPayload getEditPayload(String msg) {
-		if (!isEdit(msg)) {
+	/**
+	 * Extracts peer name and status from a keep-alive message
+	 * 
+	 * @param msg Keep-alive message
+	 * @return Payload, or null if not a keep-alive
+	 */
+	public static KeepAlivePayload getKeepAlivePayload(String msg) {
+		int[] b = new int[6];
+		long version = -1;
+		if (KEEP_ALIVE_VERSIONED.match(msg, b)) {
+			version = parseNumber(msg, b[4], b[5]);
+			if (version < 0) {
+				return null;
+			}
+		} else if (!KEEP_ALIVE.match(msg, b)) {
+			return null;
+		}
+		if (b[0] == b[1] || hasTag(msg, b[0], b[1])) {
+			return null;
+		}
+		boolean online = msg.startsWith(Tags.SERVER_ONLINE, b[2]) && b[3] - b[2] == Tags.SERVER_ONLINE.length();
+		if (!online && !(msg.startsWith(Tags.SERVER_OFFLINE, b[2]) && b[3] - b[2] == Tags.SERVER_OFFLINE.length())) {
 			return null;
 		}
-		String oldText = extractContent(msg, Tags.CHAT_EDIT_OLD_OPEN_TAG, Tags.CHAT_EDIT_OLD_CLOSE_TAG);
-		String newText = extractContent(msg, Tags.CHAT_EDIT_NEW_OPEN_TAG, Tags.CHAT_EDIT_NEW_CLOSE_TAG);
-		return new EditPayload(oldText, newText);
+		return new KeepAlivePayload(msg.substring(b[0], b[1]), online, version);
 	}
 
-	public static DeletePayload getDeletePayload(String msg) {
-		if (!isDelete(msg)) {
+	/**
+	 * Extracts a presence delta sent in reply to a versioned keep-alive
+	 * 
+	 * @param msg Server message
+	 * @return Delta, or null if not a SESSION_DELTA message
+	 */
+	public static PresenceDelta getPresenceDelta(String msg) {
+		int end = msg.length() - Tags.SESSION_DELTA_CLOSE_TAG.length();
+		if (end < DELTA_HEAD.length() || !msg.startsWith(DELTA_HEAD) || !msg.endsWith(Tags.SESSION_DELTA_CLOSE_TAG)) {
 			return null;
 		}
-		String text = extractContent(msg, Tags.CHAT_DELETE_BODY_OPEN_TAG, Tags.CHAT_DELETE_BODY_CLOSE_TAG);
-		return new DeletePayload(text);
+		int pos = DELTA_HEAD.length();
+		int at = msg.indexOf('<', pos);
+		long version = at < 0 ? -1 : parseNumber(msg, pos, at);
+		if (version < 0 || !msg.startsWith(Tags.VERSION_CLOSE_TAG, at)) {
+			return null;
+		}
+		pos = at + Tags.VERSION_CLOSE_TAG.length();
+
+		long since = -1;
+		if (msg.startsWith(Tags.SINCE_OPEN_TAG, pos)) {
+			pos += Tags.SINCE_OPEN_TAG.length();
+			at = msg.indexOf('<', pos);
+			since = at < 0 ? -1 : parseNumber(msg, pos, at);
+			if (since < 0 || !msg.startsWith(Tags.SINCE_CLOSE_TAG, at)) {
+				return null;
+			}
+			pos = at + Tags.SINCE_CLOSE_TAG.length();
+		} else if (msg.startsWith(Tags.DELTA_RESET_TAG, pos)) {
+			pos += Tags.DELTA_RESET_TAG.length();
+		} else {
+			return null;
+		}
+
+		PeerList joined = new PeerList();
+		while (pos < end && msg.startsWith(PEER_HEAD, pos)) {
+			pos = parsePeer(msg, pos, end, joined);
+			if (pos < 0) {
+				return null;
+			}
+		}
+
+		ArrayList<String> left = new ArrayList<>();
+		while (pos < end) {
+			if (!msg.startsWith(Tags.LEAVE_OPEN_TAG, pos)) {
+				return null;
+			}
+			pos += Tags.LEAVE_OPEN_TAG.length();
+			at = msg.indexOf('<', pos);
+			if (at < 0 || !msg.startsWith(Tags.LEAVE_CLOSE_TAG, at) || at + Tags.LEAVE_CLOSE_TAG.length() > end) {
+				return null;
+			}
+			left.add(msg.substring(pos, at));
+			pos = at + Tags.LEAVE_CLOSE_TAG.length();
+		}
+		return new PresenceDelta(since, version, joined.toPeers(), left);
 	}
 
-	public static TypingPayload getTypingPayload(String msg) {
-		if (!isTyping(msg)) {
+	/**
+	 * Extracts a handshake. Capability tokens this build does not know are
+	 * skipped, so newer peers can offer more.
+	 * 
+	 * @param msg HELLO message
+	 * @return Version and capabilities, or null if not a HELLO message
+	 */
+	public static Handshake getHello(String msg) {
+		int[] b = new int[4];
+		if (!HELLO.match(msg, b)) {
 			return null;
 		}
-		String state = extractContent(msg, Tags.TYPING_STATE_OPEN_TAG, Tags.TYPING_STATE_CLOSE_TAG);
-		return new TypingPayload("ON".equals(state));
+		long version = parseNumber(msg, b[0], b[1]);
+		if (version < Handshake.LEGACY_VERSION) {
+			return null;
+		}
+		EnumSet<Handshake.Capability> caps = EnumSet.noneOf(Handshake.Capability.class);
+		int start = b[2];
+		while (start < b[3]) {
+			int end = msg.indexOf(',', start);
+			if (end < 0 || end > b[3]) {
+				end = b[3];
+			}
+			Handshake.Capability c = Handshake.Capability.of(msg.substring(start, end).trim());
+			if (c != null) {
+				caps.add(c);
+			}
+			start = end + 1;
+		}
+		return new Handshake((int) Math.min(version, Integer.MAX_VALUE), caps);
 	}
 
-	public static ReactionPayload getReactionPayload(String msg) {
-		if (!isReaction(msg)) {
+	/**
+	 * Extracts the capabilities offered with a chat accept
+	 * 
+	 * @param msg Reply to a chat request
+	 * @return Peer's offer, or null for a plain accept or any other reply
+	 */
+	public static Handshake getChatAcceptHello(String msg) {
+		if (!msg.startsWith(Tags.CHAT_ACCEPT_TAG)) {
 			return null;
 		}
-		String target = extractContent(msg, Tags.CHAT_REACTION_TARGET_OPEN_TAG, Tags.CHAT_REACTION_TARGET_CLOSE_TAG);
-		String emoji = extractContent(msg, Tags.CHAT_REACTION_EMOJI_OPEN_TAG, Tags.CHAT_REACTION_EMOJI_CLOSE_TAG);
-		return new ReactionPayload(target, emoji);
+		return getHello(msg.substring(Tags.CHAT_ACCEPT_TAG.length()));
 	}
 
-	public static GroupCreatePayload getGroupCreatePayload(String msg) {
-		if (!isGroupCreate(msg)) {
+	/**
+	 * Extracts the client's known version from a presence subscribe message
+	 * 
+	 * @param msg Client message
+	 * @return Known version, or -1 if not a subscribe message
+	 */
+	public static long getSubscribeVersion(String msg) {
+		int[] b = new int[2];
+		return SUBSCRIBE.match(msg, b) ? parseNumber(msg, b[0], b[1]) : -1;
+	}
+
+	public static EditPayload getEditPayload(String msg) {
+		String[] f = EDIT.parse(msg);
+		return f == null ? null : new EditPayload(f[0], f[1]);
+	}
+
+	public static DeletePayload getDeletePayload(String msg) {
+		String[] f = DELETE.parse(msg);
+		return f == null ? null : new DeletePayload(f[0]);
+	}
+
+	public static TypingPayload getTypingPayload(String msg) {
+		String[] f = TYPING.parse(msg);
+		if (f == null || !(f[0].equals("ON") || f[0].equals("OFF"))) {
 			return null;
 		}
-		String groupName = extractContent(msg, Tags.GROUP_NAME_OPEN_TAG, Tags.GROUP_NAME_CLOSE_TAG);
-		String creator = extractContent(msg, Tags.GROUP_CREATOR_OPEN_TAG, Tags.GROUP_CREATOR_CLOSE_TAG);
-		return new GroupCreatePayload(groupName, creator);
+		return new TypingPayload(f[0].equals("ON"));
+	}
+
+	public static ReactionPayload getReactionPayload(String msg) {
+		String[] f = REACTION.parse(msg);
+		return f == null || f[1].isEmpty() ? null : new ReactionPayload(f[0], f[1]);
+	}
+
+	public static GroupCreatePayload getGroupCreatePayload(String msg) {
+		String[] f = GROUP_CREATE.parse(msg);
+		return f == null ? null : new GroupCreatePayload(f[0], f[1]);
 	}
 
 	public static GroupInvitePayload getGroupInvitePayload(String msg) {
-		if (!isGroupInvite(msg)) {
-			return null;
-		}
-		String groupIdStr = extractContent(msg, Tags.GROUP_ID_OPEN_TAG, Tags.GROUP_ID_CLOSE_TAG);
-		String groupName = extractContent(msg, Tags.GROUP_NAME_OPEN_TAG, Tags.GROUP_NAME_CLOSE_TAG);
-		String invitee = extractContent(msg, Tags.INVITEE_OPEN_TAG, Tags.INVITEE_CLOSE_TAG);
-		return new GroupInvitePayload(Integer.parseInt(groupIdStr), groupName, invitee);
+		String[] f = GROUP_INVITE.parse(msg);
+		int groupId = f == null ? -1 : parseGroupId(f[0]);
+		return groupId < 0 ? null : new GroupInvitePayload(groupId, f[1], f[2]);
 	}
 
 	public static GroupMessagePayload getGroupMessagePayload(String msg) {
-		if (!isGroupMessage(msg)) {
-			return null;
-		}
-		String groupIdStr = extractContent(msg, Tags.GROUP_ID_OPEN_TAG, Tags.GROUP_ID_CLOSE_TAG);
-		String sender = extractContent(msg, Tags.GROUP_SENDER_OPEN_TAG, Tags.GROUP_SENDER_CLOSE_TAG);
-		String content = extractContent(msg, Tags.GROUP_CONTENT_OPEN_TAG, Tags.GROUP_CONTENT_CLOSE_TAG);
-		return new GroupMessagePayload(Integer.parseInt(groupIdStr), sender, content);
+		String[] f = GROUP_MSG.parse(msg);
+		int groupId = f == null ? -1 : parseGroupId(f[0]);
+		return groupId < 0 ? null : new GroupMessagePayload(groupId, f[1], f[2]);
 	}
 
 	public static GroupJoinPayload getGroupJoinPayload(String msg) {
-		if (!isGroupJoin(msg)) {
-			return null;
-		}
-		String groupIdStr = extractContent(msg, Tags.GROUP_ID_OPEN_TAG, Tags.GROUP_ID_CLOSE_TAG);
-		String member = extractContent(msg, Tags.GROUP_MEMBER_OPEN_TAG, Tags.GROUP_MEMBER_CLOSE_TAG);
-		return new GroupJoinPayload(Integer.parseInt(groupIdStr), member);
+		String[] f = GROUP_JOIN.parse(msg);
+		int groupId = f == null ? -1 : parseGroupId(f[0]);
+		return groupId < 0 ? null : new GroupJoinPayload(groupId, f[1]);
 	}
 
 	/**
@@ -341,14 +510,11 @@ public final class Decode {
 	 * @return Peer name, or null if invalid
 	 */
 	public static String getNameRequestChat(String msg) {
-		Pattern checkRequest = Pattern.compile(Tags.CHAT_REQ_OPEN_TAG + Tags.PEER_NAME_OPEN_TAG + "[^<>]*"
-				+ Tags.PEER_NAME_CLOSE_TAG + Tags.CHAT_REQ_CLOSE_TAG);
-		if (checkRequest.matcher(msg).matches()) {
-			return extractContent(msg,
-					Tags.CHAT_REQ_OPEN_TAG + Tags.PEER_NAME_OPEN_TAG,
-					Tags.PEER_NAME_CLOSE_TAG + Tags.CHAT_REQ_CLOSE_TAG);
+		int[] b = new int[2];
+		if (!CHAT_REQUEST.match(msg, b) || hasTag(msg, b[0], b[1])) {
+			return null;
 		}
-		return null;
+		return msg.substring(b[0], b[1]);
 	}
 
 	/**
@@ -358,7 +524,18 @@ public final class Decode {
 	 * @return true if valid file request
 	 */
 	public static boolean checkFile(String name) {
-		return FILE_NAME.matcher(name).matches();
+		return getFileName(name) != null;
+	}
+
+	/**
+	 * Extracts the file name from a file request
+	 * 
+	 * @param msg File request message
+	 * @return File name, or null if not a file request
+	 */
+	public static String getFileName(String msg) {
+		String[] fields = FILE_NAME.parse(msg);
+		return fields == null ? null : fields[0];
 	}
 
 	/**
@@ -381,7 +558,7 @@ public final class Decode {
 	 * @return true if valid feedback
 	 */
 	public static boolean checkFeedBack(String msg) {
-		return FEEDBACK.matcher(msg).matches();
+		return FEEDBACK.match(msg, new int[2]);
 	}
 
 	/**
@@ -394,28 +571,65 @@ public final class Decode {
 	 */
 	private static String extractContent(String src, String openTag, String closeTag) {
 		int start = src.indexOf(openTag);
-		int end = src.indexOf(closeTag);
-
-		if (start == -1 || end == -1 || end <= start) {
+		if (start == -1) {
 			return "";
 		}
-
 		start += openTag.length();
-		return src.substring(start, end);
+		int end = src.indexOf(closeTag, start);
+		return end == -1 ? "" : src.substring(start, end);
+	}
+
+	/**
+	 * Parses a decimal field that must fit a long
+	 * 
+	 * @return Value, or -1 if the field is not a number
+	 */
+	private static long parseNumber(String msg, int start, int end) {
+		// Presence versions are 19 digits; anything longer cannot fit
+		if (end - start > 19 || !TagParser.isDigits(msg, start, end)) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(msg, start, end, 10);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static int parseGroupId(String field) {
+		long id = parseNumber(field, 0, field.length());
+		return id > Integer.MAX_VALUE ? -1 : (int) id;
+	}
+
+	private static boolean hasTag(String msg, int start, int end) {
+		for (int i = start; i < end; i++) {
+			char c = msg.charAt(i);
+			if (c == '<' || c == '>') {
+				return true;
+			}
+		}
+		return false;
 	}
 
 	/**
 	 * Sanitizes IP address by removing leading slashes and whitespace
 	 * Handles formats like "/192.168.56.1" and converts to "192.168.56.1"
 	 * 
-	 * @param ipAddress Raw IP address from protocol
+	 * @param src   Message holding the raw IP address
+	 * @param start Start of the address
+	 * @param end   End of the address
 	 * @return Cleaned IP address suitable for InetAddress.getByName()
 	 */
-	private static String sanitizeIPAddress(String ipAddress) {
-		if (ipAddress == null || ipAddress.isEmpty()) {
-			return "";
+	private static String sanitizeIPAddress(String src, int start, int end) {
+		while (start < end && src.charAt(start) == '/') {
+			start++;
+		}
+		while (start < end && src.charAt(start) <= ' ') {
+			start++;
 		}
-		// Remove leading slashes and whitespace
-		return ipAddress.replaceAll("^/+", "").trim();
+		while (end > start && src.charAt(end - 1) <= ' ') {
+			end--;
+		}
+		return src.substring(start, end);
 	}
 }
@@ -1,7 +1,8 @@
 package tags;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Collection;
+
+import data.Peer;
 
 /**
  * Protocol message encoder for VKU Chat application.
@@ -13,8 +14,6 @@ public final class Encode {
 		// Utility class - prevent instantiation
 	}
 
-	private static final Pattern CHECK_MESSAGE = Pattern.compile("[^<>]*[<>]");
-
 	/**
 	 * Creates an account creation message
 	 * 
@@ -28,6 +27,56 @@ public final class Encode {
 				+ Tags.PORT_CLOSE_TAG + Tags.SESSION_CLOSE_TAG;
 	}
 
+	/**
+	 * Creates the online peer list sent in reply to login and keep-alive
+	 * 
+	 * @param peers Online peers
+	 * @return Encoded SESSION_ACCEPT message
+	 */
+	public static String getSessionAccept(Collection<Peer> peers) {
+		StringBuilder msg = new StringBuilder(Tags.SESSION_ACCEPT_OPEN_TAG);
+		for (Peer peer : peers) {
+			msg.append(Tags.PEER_OPEN_TAG)
+					.append(Tags.PEER_NAME_OPEN_TAG).append(peer.getName()).append(Tags.PEER_NAME_CLOSE_TAG)
+					.append(Tags.IP_OPEN_TAG).append(peer.getHost()).append(Tags.IP_CLOSE_TAG)
+					.append(Tags.PORT_OPEN_TAG).append(peer.getPort()).append(Tags.PORT_CLOSE_TAG)
+					.append(Tags.PEER_CLOSE_TAG);
+		}
+		return msg.append(Tags.SESSION_ACCEPT_CLOSE_TAG).toString();
+	}
+
+	/**
+	 * Creates a presence delta, sent in reply to a versioned keep-alive or pushed
+	 * 
+	 * @param since   Version the changes start from, or -1 for a full snapshot
+	 *                that replaces the receiver's list
+	 * @param version Registry version the delta leads to
+	 * @param joined  Peers that joined or changed address
+	 * @param left    Names of peers that left
+	 * @return Encoded SESSION_DELTA message
+	 */
+	public static String getPresenceDelta(long since, long version, Collection<Peer> joined,
+			Collection<String> left) {
+		StringBuilder msg = new StringBuilder(Tags.SESSION_DELTA_OPEN_TAG)
+				.append(Tags.VERSION_OPEN_TAG).append(version).append(Tags.VERSION_CLOSE_TAG);
+		if (since < 0) {
+			msg.append(Tags.DELTA_RESET_TAG);
+		} else {
+			msg.append(Tags.SINCE_OPEN_TAG).append(since).append(Tags.SINCE_CLOSE_TAG);
+		}
+		for (Peer peer : joined) {
+			msg.append(Tags.PEER_OPEN_TAG)
+					.append(Tags.PEER_NAME_OPEN_TAG).append(peer.getName()).append(Tags.PEER_NAME_CLOSE_TAG)
+					.append(Tags.IP_OPEN_TAG).append(peer.getHost()).append(Tags.IP_CLOSE_TAG)
+					.append(Tags.PORT_OPEN_TAG).append(peer.getPort()).append(Tags.PORT_CLOSE_TAG)
+					.append(Tags.PEER_CLOSE_TAG);
+		}
+		for (String name : left) {
+			msg.append(Tags.LEAVE_OPEN_TAG).append(name).append(Tags.LEAVE_CLOSE_TAG);
+		}
+		return msg.append(Tags.SESSION_DELTA_CLOSE_TAG).toString();
+	}
+
 	/**
 	 * Creates a keep-alive/status request message
 	 * 
@@ -41,6 +90,32 @@ public final class Encode {
 				+ Tags.SESSION_KEEP_ALIVE_CLOSE_TAG;
 	}
 
+	/**
+	 * Creates a keep-alive that asks for a presence delta
+	 * 
+	 * @param name    Username
+	 * @param version Last registry version the client applied, 0 if none
+	 * @return Encoded message with online status and known version
+	 */
+	public static String sendRequest(String name, long version) {
+		return Tags.SESSION_KEEP_ALIVE_OPEN_TAG + Tags.PEER_NAME_OPEN_TAG
+				+ name + Tags.PEER_NAME_CLOSE_TAG + Tags.STATUS_OPEN_TAG
+				+ Tags.SERVER_ONLINE + Tags.STATUS_CLOSE_TAG
+				+ Tags.VERSION_OPEN_TAG + version + Tags.VERSION_CLOSE_TAG
+				+ Tags.SESSION_KEEP_ALIVE_CLOSE_TAG;
+	}
+
+	/**
+	 * Subscribes the control connection to pushed presence deltas
+	 * 
+	 * @param version Last registry version the client applied, 0 if none
+	 * @return Encoded subscribe message
+	 */
+	public static String sendSubscribe(long version) {
+		return Tags.PRESENCE_SUBSCRIBE_OPEN_TAG + Tags.VERSION_OPEN_TAG + version
+				+ Tags.VERSION_CLOSE_TAG + Tags.PRESENCE_SUBSCRIBE_CLOSE_TAG;
+	}
+
 	/**
 	 * Creates a registration message
 	 * 
@@ -53,23 +128,14 @@ public final class Encode {
 	}
 
 	/**
-	 * Encodes a chat message with special character handling
+	 * Encodes a chat message, escaping characters that would read as tags
+	 * ({@link MessageStream} sends it raw to clients without the escape capability)
 	 * 
 	 * @param message Message to encode
 	 * @return Encoded message wrapped in tags
 	 */
 	public static String sendMessage(String message) {
-		StringBuilder result = new StringBuilder();
-		Matcher findMessage = CHECK_MESSAGE.matcher(message);
-
-		int lastEnd = 0;
-		while (findMessage.find()) {
-			result.append(message, lastEnd, findMessage.start()).append(findMessage.group(0));
-			lastEnd = findMessage.end();
-		}
-		result.append(message.substring(lastEnd));
-
-		return Tags.CHAT_MSG_OPEN_TAG + result + Tags.CHAT_MSG_CLOSE_TAG;
+		return Tags.CHAT_MSG_OPEN_TAG + TagParser.escape(message) + Tags.CHAT_MSG_CLOSE_TAG;
 	}
 
 	/**
@@ -77,8 +143,8 @@ public final class Encode {
 	 */
 	public static String sendEdit(String oldDisplayedText, String newText) {
 		return Tags.CHAT_EDIT_OPEN_TAG +
-				Tags.CHAT_EDIT_OLD_OPEN_TAG + oldDisplayedText + Tags.CHAT_EDIT_OLD_CLOSE_TAG +
-				Tags.CHAT_EDIT_NEW_OPEN_TAG + newText + Tags.CHAT_EDIT_NEW_CLOSE_TAG +
+				Tags.CHAT_EDIT_OLD_OPEN_TAG + TagParser.escape(oldDisplayedText) + Tags.CHAT_EDIT_OLD_CLOSE_TAG +
+				Tags.CHAT_EDIT_NEW_OPEN_TAG + TagParser.escape(newText) + Tags.CHAT_EDIT_NEW_CLOSE_TAG +
 				Tags.CHAT_EDIT_CLOSE_TAG;
 	}
 
@@ -87,7 +153,7 @@ public final class Encode {
 	 */
 	public static String sendDelete(String displayedText) {
 		return Tags.CHAT_DELETE_OPEN_TAG +
-				Tags.CHAT_DELETE_BODY_OPEN_TAG + displayedText + Tags.CHAT_DELETE_BODY_CLOSE_TAG +
+				Tags.CHAT_DELETE_BODY_OPEN_TAG + TagParser.escape(displayedText) + Tags.CHAT_DELETE_BODY_CLOSE_TAG +
 				Tags.CHAT_DELETE_CLOSE_TAG;
 	}
 
@@ -112,8 +178,8 @@ public final class Encode {
 	 */
 	public static String sendReaction(String targetDisplayText, String emojiName) {
 		return Tags.CHAT_REACTION_OPEN_TAG +
-				Tags.CHAT_REACTION_TARGET_OPEN_TAG + targetDisplayText + Tags.CHAT_REACTION_TARGET_CLOSE_TAG +
-				Tags.CHAT_REACTION_EMOJI_OPEN_TAG + emojiName + Tags.CHAT_REACTION_EMOJI_CLOSE_TAG +
+				Tags.CHAT_REACTION_TARGET_OPEN_TAG + TagParser.escape(targetDisplayText) + Tags.CHAT_REACTION_TARGET_CLOSE_TAG +
+				Tags.CHAT_REACTION_EMOJI_OPEN_TAG + TagParser.escape(emojiName) + Tags.CHAT_REACTION_EMOJI_CLOSE_TAG +
 				Tags.CHAT_REACTION_CLOSE_TAG;
 	}
 
@@ -122,8 +188,8 @@ public final class Encode {
 	 */
 	public static String sendGroupCreate(String groupName, String creator) {
 		return Tags.GROUP_CREATE_OPEN_TAG +
-				Tags.GROUP_NAME_OPEN_TAG + groupName + Tags.GROUP_NAME_CLOSE_TAG +
-				Tags.GROUP_CREATOR_OPEN_TAG + creator + Tags.GROUP_CREATOR_CLOSE_TAG +
+				Tags.GROUP_NAME_OPEN_TAG + TagParser.escape(groupName) + Tags.GROUP_NAME_CLOSE_TAG +
+				Tags.GROUP_CREATOR_OPEN_TAG + TagParser.escape(creator) + Tags.GROUP_CREATOR_CLOSE_TAG +
 				Tags.GROUP_CREATE_CLOSE_TAG;
 	}
 
@@ -133,8 +199,8 @@ public final class Encode {
 	public static String sendGroupInvite(int groupId, String groupName, String invitee) {
 		return Tags.GROUP_INVITE_OPEN_TAG +
 				Tags.GROUP_ID_OPEN_TAG + groupId + Tags.GROUP_ID_CLOSE_TAG +
-				Tags.GROUP_NAME_OPEN_TAG + groupName + Tags.GROUP_NAME_CLOSE_TAG +
-				Tags.INVITEE_OPEN_TAG + invitee + Tags.INVITEE_CLOSE_TAG +
+				Tags.GROUP_NAME_OPEN_TAG + TagParser.escape(groupName) + Tags.GROUP_NAME_CLOSE_TAG +
+				Tags.INVITEE_OPEN_TAG + TagParser.escape(invitee) + Tags.INVITEE_CLOSE_TAG +
 				Tags.GROUP_INVITE_CLOSE_TAG;
 	}
 
@@ -144,8 +210,8 @@ public final class Encode {
 	public static String sendGroupMessage(int groupId, String sender, String content) {
 		return Tags.GROUP_MSG_OPEN_TAG +
 				Tags.GROUP_ID_OPEN_TAG + groupId + Tags.GROUP_ID_CLOSE_TAG +
-				Tags.GROUP_SENDER_OPEN_TAG + sender + Tags.GROUP_SENDER_CLOSE_TAG +
-				Tags.GROUP_CONTENT_OPEN_TAG + content + Tags.GROUP_CONTENT_CLOSE_TAG +
+				Tags.GROUP_SENDER_OPEN_TAG + TagParser.escape(sender) + Tags.GROUP_SENDER_CLOSE_TAG +
+				Tags.GROUP_CONTENT_OPEN_TAG + TagParser.escape(content) + Tags.GROUP_CONTENT_CLOSE_TAG +
 				Tags.GROUP_MSG_CLOSE_TAG;
 	}
 
@@ -155,10 +221,39 @@ public final class Encode {
 	public static String sendGroupJoin(int groupId, String member) {
 		return Tags.GROUP_JOIN_OPEN_TAG +
 				Tags.GROUP_ID_OPEN_TAG + groupId + Tags.GROUP_ID_CLOSE_TAG +
-				Tags.GROUP_MEMBER_OPEN_TAG + member + Tags.GROUP_MEMBER_CLOSE_TAG +
+				Tags.GROUP_MEMBER_OPEN_TAG + TagParser.escape(member) + Tags.GROUP_MEMBER_CLOSE_TAG +
 				Tags.GROUP_JOIN_CLOSE_TAG;
 	}
 
+	/**
+	 * Creates a handshake message
+	 * 
+	 * @param handshake Version and capabilities offered or agreed
+	 * @return Encoded HELLO message
+	 */
+	public static String sendHello(Handshake handshake) {
+		StringBuilder msg = new StringBuilder(Tags.HELLO_OPEN_TAG)
+				.append(Tags.VERSION_OPEN_TAG).append(handshake.version()).append(Tags.VERSION_CLOSE_TAG)
+				.append(Tags.CAPS_OPEN_TAG);
+		String sep = "";
+		for (Handshake.Capability c : handshake.capabilities()) {
+			msg.append(sep).append(c.token());
+			sep = ",";
+		}
+		return msg.append(Tags.CAPS_CLOSE_TAG).append(Tags.HELLO_CLOSE_TAG).toString();
+	}
+
+	/**
+	 * Accepts a chat request, offering this side's capabilities. Clients
+	 * without the handshake only check that the reply is not a deny.
+	 * 
+	 * @param offer Local version and capabilities
+	 * @return Encoded accept message
+	 */
+	public static String sendChatAccept(Handshake offer) {
+		return Tags.CHAT_ACCEPT_TAG + sendHello(offer);
+	}
+
 	/**
 	 * Creates a chat request message
 	 * 
@@ -177,7 +272,7 @@ public final class Encode {
 	 * @return Encoded file request message
 	 */
 	public static String sendFile(String name) {
-		return Tags.FILE_REQ_OPEN_TAG + name + Tags.FILE_REQ_CLOSE_TAG;
+		return Tags.FILE_REQ_OPEN_TAG + TagParser.escape(name) + Tags.FILE_REQ_CLOSE_TAG;
 	}
 
 	/**
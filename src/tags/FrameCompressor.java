@@ -0,0 +1,230 @@
+package tags;
+
+import java.io.StreamCorruptedException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-frame DEFLATE for one connection, used when both sides agreed on
+ * {@link Handshake.Capability#DEFLATE}. A {@link BinaryCodec} frame whose
+ * body reaches the threshold is sent as a {@link BinaryCodec.Opcode#DEFLATED}
+ * frame if that is smaller; anything shorter goes as it is, since DEFLATE's
+ * own overhead would eat the gain. Every frame is compressed on its own, so
+ * a shared frame compressed for one connection is valid on any other.
+ * <p>
+ * The deflater and inflater are kept for the life of the connection. Each
+ * side may be used by one thread at a time: the writer compresses and the
+ * reader inflates.
+ */
+public final class FrameCompressor {
+
+	/**
+	 * Smallest body worth compressing, in bytes; {@code vku.protocol.deflate.threshold}
+	 * overrides it
+	 */
+	public static final int DEFAULT_THRESHOLD = 256;
+
+	/**
+	 * Compression counters, shared by the connections of one client or server
+	 */
+	public static final class Metrics {
+		private final AtomicLong compressedFrames = new AtomicLong();
+		private final AtomicLong skippedFrames = new AtomicLong();
+		private final AtomicLong rawBytes = new AtomicLong();
+		private final AtomicLong compressedBytes = new AtomicLong();
+		private final AtomicLong deflateNanos = new AtomicLong();
+		private final AtomicLong inflatedFrames = new AtomicLong();
+		private final AtomicLong inflateNanos = new AtomicLong();
+
+		/**
+		 * Gets the number of frames sent compressed
+		 *
+		 * @return Compressed frames
+		 */
+		public long getCompressedFrames() {
+			return compressedFrames.get();
+		}
+
+		/**
+		 * Gets the number of frames sent as they were: under the threshold or
+		 * no smaller compressed
+		 *
+		 * @return Uncompressed frames
+		 */
+		public long getSkippedFrames() {
+			return skippedFrames.get();
+		}
+
+		/**
+		 * Gets the body bytes of the frames sent compressed, before compression
+		 *
+		 * @return Raw bytes
+		 */
+		public long getRawBytes() {
+			return rawBytes.get();
+		}
+
+		/**
+		 * Gets what those bodies compressed to
+		 *
+		 * @return Compressed bytes
+		 */
+		public long getCompressedBytes() {
+			return compressedBytes.get();
+		}
+
+		/**
+		 * Gets compressed size over raw size for the frames sent compressed
+		 *
+		 * @return Ratio below 1, or 1 if nothing was compressed yet
+		 */
+		public double getRatio() {
+			long raw = rawBytes.get();
+			return raw == 0 ? 1 : (double) compressedBytes.get() / raw;
+		}
+
+		/**
+		 * Gets the CPU time spent compressing, including attempts that did
+		 * not pay off
+		 *
+		 * @return Nanoseconds
+		 */
+		public long getDeflateNanos() {
+			return deflateNanos.get();
+		}
+
+		/**
+		 * Gets the number of compressed frames received
+		 *
+		 * @return Inflated frames
+		 */
+		public long getInflatedFrames() {
+			return inflatedFrames.get();
+		}
+
+		/**
+		 * Gets the CPU time spent inflating
+		 *
+		 * @return Nanoseconds
+		 */
+		public long getInflateNanos() {
+			return inflateNanos.get();
+		}
+	}
+
+	private final int threshold;
+	private final Metrics metrics;
+	// Chat text compresses well at the fastest level; higher ones cost far more CPU for little gain
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+	private final Inflater inflater = new Inflater(true);
+
+	/**
+	 * Creates a compressor with the configured threshold
+	 *
+	 * @param metrics Counters to update
+	 */
+	public FrameCompressor(Metrics metrics) {
+		this(Integer.getInteger("vku.protocol.deflate.threshold", DEFAULT_THRESHOLD), metrics);
+	}
+
+	/**
+	 * Creates a compressor
+	 *
+	 * @param threshold Smallest body to compress, in bytes
+	 * @param metrics   Counters to update
+	 */
+	public FrameCompressor(int threshold, Metrics metrics) {
+		this.threshold = threshold;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Compresses an encoded frame if it is large enough and shrinks
+	 *
+	 * @param frame Frame from {@link BinaryCodec}, length prefix included
+	 * @return A DEFLATED frame, or the same array if sending it as it is
+	 *         is better
+	 */
+	public byte[] compress(byte[] frame) {
+		int off = BinaryCodec.bodyOffset(frame);
+		int len = frame.length - off;
+		if (len < threshold) {
+			metrics.skippedFrames.incrementAndGet();
+			return frame;
+		}
+		long start = System.nanoTime();
+		deflater.reset();
+		deflater.setInput(frame, off, len);
+		deflater.finish();
+		// Output that does not fit in the original size is not worth sending
+		byte[] out = new byte[len];
+		int n = 0;
+		while (!deflater.finished() && n < out.length) {
+			n += deflater.deflate(out, n, out.length - n);
+		}
+		byte[] compressed = deflater.finished() ? BinaryCodec.encodeDeflated(len, out, n) : null;
+		metrics.deflateNanos.addAndGet(System.nanoTime() - start);
+		if (compressed == null || compressed.length >= frame.length) {
+			metrics.skippedFrames.incrementAndGet();
+			return frame;
+		}
+		metrics.compressedFrames.incrementAndGet();
+		metrics.rawBytes.addAndGet(len);
+		metrics.compressedBytes.addAndGet(n);
+		return compressed;
+	}
+
+	/**
+	 * Restores the frame a DEFLATED frame carries
+	 *
+	 * @param frame Decoded frame of any type
+	 * @return The inner frame, or the same frame if it was not compressed
+	 * @throws StreamCorruptedException If the compressed data is invalid or
+	 *                                  does not match its declared size
+	 */
+	public BinaryCodec.Frame inflate(BinaryCodec.Frame frame) throws StreamCorruptedException {
+		if (frame.opcode() != BinaryCodec.Opcode.DEFLATED) {
+			return frame;
+		}
+		long size = Long.parseLong(frame.field(0));
+		// Checked before allocating, so a small frame cannot claim a huge body
+		if (size < 1 || size > BinaryCodec.MAX_FRAME) {
+			throw new StreamCorruptedException("Invalid inflated size: " + size);
+		}
+		long start = System.nanoTime();
+		byte[] body = new byte[(int) size];
+		inflater.reset();
+		inflater.setInput(frame.data());
+		int n;
+		try {
+			n = inflater.inflate(body);
+		} catch (DataFormatException e) {
+			throw new StreamCorruptedException("Bad compressed frame: " + e.getMessage());
+		}
+		if (n != body.length || !inflater.finished()) {
+			throw new StreamCorruptedException("Compressed frame does not match its size");
+		}
+		metrics.inflateNanos.addAndGet(System.nanoTime() - start);
+		metrics.inflatedFrames.incrementAndGet();
+		if (body[0] == (byte) BinaryCodec.Opcode.DEFLATED.code()) {
+			throw new StreamCorruptedException("Nested compressed frame");
+		}
+		return BinaryCodec.decodeBody(body, 0, body.length);
+	}
+
+	/**
+	 * Fails on a DEFLATED frame from a peer that did not agree to compression
+	 *
+	 * @param frame Decoded frame
+	 * @return The same frame
+	 * @throws StreamCorruptedException If the frame is compressed
+	 */
+	public static BinaryCodec.Frame requireUncompressed(BinaryCodec.Frame frame) throws StreamCorruptedException {
+		if (frame.opcode() == BinaryCodec.Opcode.DEFLATED) {
+			throw new StreamCorruptedException("Compressed frame without the deflate capability");
+		}
+		return frame;
+	}
+}
@@ -0,0 +1,113 @@
+package tags;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Protocol version and optional features one side of a connection speaks,
+ * exchanged in a HELLO message. Two sides settle on the lower version and
+ * the capabilities both have, so a feature rolls out one client at a time
+ * and is used only between peers that know it. A side that never sends
+ * HELLO speaks {@link #LEGACY_VERSION}: tag strings through Java
+ * serialization, with no capabilities.
+ *
+ * @param version      Protocol version
+ * @param capabilities Features offered, or agreed after {@link #negotiate}
+ */
+public record Handshake(int version, Set<Handshake.Capability> capabilities) {
+
+	/** Tag strings through Java serialization, spoken by every client */
+	public static final int LEGACY_VERSION = 1;
+	/** Version of this build, which adds the HELLO exchange */
+	public static final int PROTOCOL_VERSION = 2;
+
+	/**
+	 * Optional features. Tokens are part of the wire format; a side ignores
+	 * tokens it does not know, so new ones can be added freely.
+	 */
+	public enum Capability {
+		/** {@link BinaryCodec} frames instead of serialized tag strings */
+		BINARY("binary"),
+		/** Large frames compressed by {@link FrameCompressor}; needs BINARY */
+		DEFLATE("deflate"),
+		/**
+		 * Free text with &amp;, &lt; and &gt; escaped, as {@link Encode} writes
+		 * it; older clients show entities literally, so text framing to a
+		 * side without it carries the raw text
+		 */
+		ESCAPE("escape");
+
+		private final String token;
+
+		Capability(String token) {
+			this.token = token;
+		}
+
+		public String token() {
+			return token;
+		}
+
+		/**
+		 * Looks up a capability by its wire token
+		 *
+		 * @param token Token
+		 * @return Capability, or null if this build does not know it
+		 */
+		public static Capability of(String token) {
+			for (Capability c : values()) {
+				if (c.token.equals(token)) {
+					return c;
+				}
+			}
+			return null;
+		}
+	}
+
+	public Handshake {
+		EnumSet<Capability> copy = EnumSet.noneOf(Capability.class);
+		copy.addAll(capabilities);
+		capabilities = Collections.unmodifiableSet(copy);
+	}
+
+	/**
+	 * What this build offers. Single capabilities can be switched off with
+	 * {@code -Dvku.protocol.disable=binary,...} to stage a rollout or back
+	 * one out without a new release.
+	 *
+	 * @return Local offer
+	 */
+	public static Handshake local() {
+		EnumSet<Capability> caps = EnumSet.allOf(Capability.class);
+		for (String token : System.getProperty("vku.protocol.disable", "").split(",")) {
+			Capability c = Capability.of(token.trim().toLowerCase());
+			if (c != null) {
+				caps.remove(c);
+			}
+		}
+		return new Handshake(PROTOCOL_VERSION, caps);
+	}
+
+	/**
+	 * Settles on what both sides speak
+	 *
+	 * @param remote The other side's offer
+	 * @return Lower version and common capabilities
+	 */
+	public Handshake negotiate(Handshake remote) {
+		EnumSet<Capability> common = EnumSet.noneOf(Capability.class);
+		common.addAll(capabilities);
+		common.retainAll(remote.capabilities());
+		return new Handshake(Math.min(version, remote.version()), common);
+	}
+
+	/**
+	 * Checks for a capability
+	 *
+	 * @param capability Capability
+	 * @return true if offered or agreed
+	 */
+	public boolean has(Capability capability) {
+		return capabilities.contains(capability);
+	}
+}
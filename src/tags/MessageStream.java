@@ -0,0 +1,261 @@
+package tags;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+
+import data.DataFile;
+
+/**
+ * Blocking message link over a socket. It starts out speaking Java
+ * serialization, which every client understands, and each direction moves
+ * to the framing agreed in the handshake on its own: the writer right
+ * after its HELLO, the reader right after the other side's. Messages are
+ * tag strings or {@link DataFile} chunks either way, so callers do not
+ * care which framing is in use. With {@link Handshake.Capability#DEFLATE}
+ * large messages are also compressed; file chunks are not, as files are
+ * mostly compressed already. Field text leaves {@link Encode} escaped; a
+ * text-framed link to a side that did not agree
+ * {@link Handshake.Capability#ESCAPE} writes it raw, as older clients
+ * expect.
+ * <p>
+ * Messages nobody is waiting on can be batched: they stay in the send
+ * buffer until the batch window ends, the buffer fills or an ordinary
+ * write flushes them ahead of itself. A burst then costs one write call
+ * and usually one TCP segment instead of one per message. Frames carry
+ * their own length, so the peer cannot tell and needs no support for it.
+ */
+public final class MessageStream {
+
+	private static final FrameCompressor.Metrics COMPRESSION = new FrameCompressor.Metrics();
+	/** Longest a batched message waits, in ms; {@code vku.protocol.batch.window}, 0 disables batching */
+	private static final long BATCH_WINDOW = Long.getLong("vku.protocol.batch.window", 5);
+	/** Send buffer; a batch reaching this size goes out at once */
+	private static final int BATCH_BYTES = 16 * 1024;
+	// Ends a batch window; one virtual thread per pending batch, so a peer that
+	// stops reading stalls only its own flush and not those of other links
+	private static final ThreadFactory FLUSHER = Thread.ofVirtual().name("message-flush").factory();
+
+	private final InputStream in;
+	private final OutputStream out;
+	private final ObjectOutputStream objectOut;
+	// created on the first read, as its constructor blocks for the peer's header
+	private ObjectInputStream objectIn;
+	private volatile boolean binaryIn = false;
+	private boolean binaryOut = false;
+	private boolean escapeOut = false;
+	// Set per direction when compression is agreed; one instance serves both
+	private FrameCompressor compressor;
+	private FrameCompressor deflateOut;
+	private volatile FrameCompressor inflateIn;
+	// Guards the send side; a lock rather than a monitor so a flush blocked
+	// on the socket does not pin the carrier of its virtual thread
+	private final ReentrantLock writeLock = new ReentrantLock();
+	// A flush is due at the end of the current batch window
+	private boolean flushScheduled = false;
+
+	/**
+	 * Opens the link and writes the serialization header
+	 *
+	 * @param socket Connected socket; any exchange before this must have
+	 *               read and written whole messages
+	 * @throws IOException If the socket is broken
+	 */
+	public MessageStream(Socket socket) throws IOException {
+		this.in = new BufferedInputStream(socket.getInputStream());
+		this.out = new BufferedOutputStream(socket.getOutputStream(), BATCH_BYTES);
+		this.objectOut = new ObjectOutputStream(out);
+		objectOut.flush();
+	}
+
+	/**
+	 * Sends a message
+	 *
+	 * @param msg Tag string or {@link DataFile}
+	 * @throws IOException If the socket is broken
+	 */
+	public void write(Object msg) throws IOException {
+		writeLock.lock();
+		try {
+			append(msg);
+			// Also sends any batched messages, which are ahead of this one
+			objectOut.flush();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Sends a message within the batch window, for messages such as typing
+	 * indicators that nobody waits on. It goes out no later than the window
+	 * and never after a message written later.
+	 *
+	 * @param msg Tag string or {@link DataFile}
+	 * @throws IOException If the socket is broken
+	 */
+	public void writeBatched(Object msg) throws IOException {
+		writeLock.lock();
+		try {
+			append(msg);
+			if (BATCH_WINDOW <= 0) {
+				objectOut.flush();
+			} else if (!flushScheduled) {
+				flushScheduled = true;
+				FLUSHER.newThread(this::endBatch).start();
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private void endBatch() {
+		try {
+			Thread.sleep(BATCH_WINDOW);
+		} catch (InterruptedException e) {
+			// Flush early rather than strand the batch
+		}
+		writeLock.lock();
+		try {
+			flushScheduled = false;
+			objectOut.flush();
+		} catch (IOException e) {
+			// The link is broken; the next write reports it
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	// Encodes a message into the send buffer; the caller decides when to flush
+	private void append(Object msg) throws IOException {
+		if (!binaryOut) {
+			if (!escapeOut && msg instanceof String s) {
+				// Entities come from escaped fields, so this restores the raw text
+				msg = TagParser.unescape(s, 0, s.length());
+			}
+			// Each message is a fresh object: do not let the stream keep references
+			objectOut.reset();
+			objectOut.writeObject(msg);
+			return;
+		}
+		if (msg instanceof DataFile file) {
+			out.write(BinaryCodec.encodeChunk(file.data, 0, file.data.length));
+		} else {
+			byte[] frame = BinaryCodec.encode((String) msg);
+			out.write(deflateOut != null ? deflateOut.compress(frame) : frame);
+		}
+	}
+
+	/**
+	 * Sends a HELLO and switches outgoing messages to the agreed framing
+	 *
+	 * @param agreed Negotiated handshake
+	 * @throws IOException If the socket is broken
+	 */
+	public void sendHello(Handshake agreed) throws IOException {
+		writeLock.lock();
+		try {
+			write(Encode.sendHello(agreed));
+			upgradeOutput(agreed);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Switches outgoing messages to the agreed framing, for the side whose
+	 * HELLO the other answered
+	 *
+	 * @param agreed Negotiated handshake
+	 * @throws IOException If batched messages cannot be sent
+	 */
+	public void upgradeOutput(Handshake agreed) throws IOException {
+		writeLock.lock();
+		try {
+			// Serialized messages still buffered must go before the first frame
+			objectOut.flush();
+			binaryOut = agreed.has(Handshake.Capability.BINARY);
+			escapeOut = agreed.has(Handshake.Capability.ESCAPE);
+			deflateOut = binaryOut && agreed.has(Handshake.Capability.DEFLATE) ? compressor() : null;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Switches incoming messages to the agreed framing; call right after
+	 * reading the other side's HELLO
+	 *
+	 * @param agreed Negotiated handshake
+	 */
+	public void upgradeInput(Handshake agreed) {
+		boolean binary = agreed.has(Handshake.Capability.BINARY);
+		inflateIn = binary && agreed.has(Handshake.Capability.DEFLATE) ? compressor() : null;
+		binaryIn = binary;
+	}
+
+	private synchronized FrameCompressor compressor() {
+		if (compressor == null) {
+			compressor = new FrameCompressor(COMPRESSION);
+		}
+		return compressor;
+	}
+
+	/**
+	 * Gets the compression counters of every link in this process
+	 *
+	 * @return Shared counters
+	 */
+	public static FrameCompressor.Metrics getCompressionMetrics() {
+		return COMPRESSION;
+	}
+
+	/**
+	 * Receives the next message
+	 *
+	 * @return Tag string or {@link DataFile}
+	 * @throws IOException If the socket is broken or the stream is corrupt
+	 */
+	public Object read() throws IOException {
+		if (binaryIn) {
+			BinaryCodec.Frame frame = BinaryCodec.read(in);
+			FrameCompressor inflater = inflateIn;
+			frame = inflater != null ? inflater.inflate(frame) : FrameCompressor.requireUncompressed(frame);
+			if (frame.opcode() == BinaryCodec.Opcode.FILE_CHUNK) {
+				DataFile file = new DataFile(0);
+				file.setData(frame.data());
+				return file;
+			}
+			return frame.toTags();
+		}
+		if (objectIn == null) {
+			objectIn = new ObjectInputStream(in);
+		}
+		try {
+			return objectIn.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new StreamCorruptedException("Unexpected object: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Receives the next message, which must be a tag string
+	 *
+	 * @return Tag string
+	 * @throws IOException If the socket is broken or something else arrived
+	 */
+	public String readString() throws IOException {
+		Object msg = read();
+		if (msg instanceof String s) {
+			return s;
+		}
+		throw new StreamCorruptedException("Expected a message, got " + msg);
+	}
+}
@@ -0,0 +1,193 @@
+package tags;
+
+/**
+ * Single-pass parser for tag messages of a known shape. A {@link Layout} is
+ * the literal tag text of a message type with a field between each pair of
+ * pieces; matching walks the message once, checking each piece in place and
+ * finding the next with one forward search, so the cost is linear in the
+ * message length and nothing backtracks. Fields come back as offsets into
+ * the message and are only copied when asked for.
+ *
+ * Field text is escaped by {@link #escape(String)} when encoded, so it never
+ * holds a tag and the first match of the following piece is its real end.
+ * The last field runs up to the closing piece at the end of the message, so
+ * unescaped text from older clients still parses there.
+ */
+final class TagParser {
+
+	private TagParser() {
+		// Utility class - prevent instantiation
+	}
+
+	/**
+	 * Literal pieces of one message type, with a field between each pair
+	 */
+	static final class Layout {
+
+		private final String[] pieces;
+
+		Layout(String... pieces) {
+			this.pieces = pieces;
+		}
+
+		/**
+		 * Gets the number of fields
+		 *
+		 * @return Field count
+		 */
+		int fields() {
+			return pieces.length - 1;
+		}
+
+		/**
+		 * Gets one literal piece
+		 *
+		 * @param i Piece index
+		 * @return Literal text
+		 */
+		String piece(int i) {
+			return pieces[i];
+		}
+
+		/**
+		 * Matches a message against the layout
+		 *
+		 * @param msg    Message
+		 * @param bounds Receives start and end offset of each field, at
+		 *               2i and 2i+1; needs room for 2 * fields()
+		 * @return true if the message has this shape
+		 */
+		boolean match(String msg, int[] bounds) {
+			String last = pieces[pieces.length - 1];
+			int end = msg.length() - last.length();
+			if (end < pieces[0].length() || !msg.startsWith(pieces[0]) || !msg.endsWith(last)) {
+				return false;
+			}
+			int pos = pieces[0].length();
+			for (int i = 1; i < pieces.length - 1; i++) {
+				int at = msg.indexOf(pieces[i], pos);
+				if (at < 0 || at + pieces[i].length() > end) {
+					return false;
+				}
+				bounds[2 * (i - 1)] = pos;
+				bounds[2 * (i - 1) + 1] = at;
+				pos = at + pieces[i].length();
+			}
+			bounds[2 * (pieces.length - 2)] = pos;
+			bounds[2 * (pieces.length - 2) + 1] = end;
+			return true;
+		}
+
+		/**
+		 * Matches a message and copies out its unescaped fields
+		 *
+		 * @param msg Message
+		 * @return Field values, or null if the message has another shape
+		 */
+		String[] parse(String msg) {
+			int[] bounds = new int[2 * fields()];
+			if (!match(msg, bounds)) {
+				return null;
+			}
+			String[] fields = new String[fields()];
+			for (int i = 0; i < fields.length; i++) {
+				fields[i] = unescape(msg, bounds[2 * i], bounds[2 * i + 1]);
+			}
+			return fields;
+		}
+	}
+
+	/**
+	 * Escapes text so it can sit between tags
+	 *
+	 * @param text Raw text
+	 * @return Text with &amp;, &lt; and &gt; replaced by entities
+	 */
+	static String escape(String text) {
+		int n = text.length();
+		int i = 0;
+		while (i < n) {
+			char c = text.charAt(i);
+			if (c == '&' || c == '<' || c == '>') {
+				break;
+			}
+			i++;
+		}
+		if (i == n) {
+			return text;
+		}
+		StringBuilder sb = new StringBuilder(n + 16).append(text, 0, i);
+		for (; i < n; i++) {
+			char c = text.charAt(i);
+			switch (c) {
+				case '&' -> sb.append("&amp;");
+				case '<' -> sb.append("&lt;");
+				case '>' -> sb.append("&gt;");
+				default -> sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Copies a field out of a message, undoing {@link #escape(String)}. Any
+	 * other ampersand is kept as is.
+	 *
+	 * @param msg   Message
+	 * @param start Field start
+	 * @param end   Field end
+	 * @return Raw field text
+	 */
+	static String unescape(String msg, int start, int end) {
+		int amp = msg.indexOf('&', start);
+		if (amp < 0 || amp >= end) {
+			return msg.substring(start, end);
+		}
+		StringBuilder sb = new StringBuilder(end - start).append(msg, start, amp);
+		int i = amp;
+		while (i < end) {
+			char c = msg.charAt(i);
+			if (c == '&') {
+				if (msg.startsWith("&lt;", i) && i + 4 <= end) {
+					sb.append('<');
+					i += 4;
+					continue;
+				}
+				if (msg.startsWith("&gt;", i) && i + 4 <= end) {
+					sb.append('>');
+					i += 4;
+					continue;
+				}
+				if (msg.startsWith("&amp;", i) && i + 5 <= end) {
+					sb.append('&');
+					i += 5;
+					continue;
+				}
+			}
+			sb.append(c);
+			i++;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Checks that a field is a non-empty run of decimal digits
+	 *
+	 * @param msg   Message
+	 * @param start Field start
+	 * @param end   Field end
+	 * @return true if the field is a number
+	 */
+	static boolean isDigits(String msg, int start, int end) {
+		if (start >= end) {
+			return false;
+		}
+		for (int i = start; i < end; i++) {
+			char c = msg.charAt(i);
+			if (c < '0' || c > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+}
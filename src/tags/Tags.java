@@ -33,8 +33,28 @@ public final class Tags {
 	public static final String STATUS_OPEN_TAG = "<STATUS>";
 	public static final String STATUS_CLOSE_TAG = "</STATUS>";
 
+	// Presence delta tags
+	public static final String VERSION_OPEN_TAG = "<VERSION>";
+	public static final String VERSION_CLOSE_TAG = "</VERSION>";
+	public static final String SESSION_DELTA_OPEN_TAG = "<SESSION_DELTA>";
+	public static final String SESSION_DELTA_CLOSE_TAG = "</SESSION_DELTA>";
+	public static final String DELTA_RESET_TAG = "<RESET />";
+	public static final String SINCE_OPEN_TAG = "<SINCE>";
+	public static final String SINCE_CLOSE_TAG = "</SINCE>";
+	public static final String PRESENCE_SUBSCRIBE_OPEN_TAG = "<PRESENCE_SUBSCRIBE>";
+	public static final String PRESENCE_SUBSCRIBE_CLOSE_TAG = "</PRESENCE_SUBSCRIBE>";
+	public static final String LEAVE_OPEN_TAG = "<LEAVE>";
+	public static final String LEAVE_CLOSE_TAG = "</LEAVE>";
+
+	// Handshake tags
+	public static final String HELLO_OPEN_TAG = "<HELLO>";
+	public static final String HELLO_CLOSE_TAG = "</HELLO>";
+	public static final String CAPS_OPEN_TAG = "<CAPS>";
+	public static final String CAPS_CLOSE_TAG = "</CAPS>";
+
 	// Response tags
 	public static final String SESSION_DENY_TAG = "<SESSION_DENY />";
+	public static final String SESSION_BUSY_TAG = "<SESSION_BUSY />";
 	public static final String SESSION_ACCEPT_OPEN_TAG = "<SESSION_ACCEPT>";
 	public static final String SESSION_ACCEPT_CLOSE_TAG = "</SESSION_ACCEPT>";
 
@@ -81,6 +101,10 @@ public final class Tags {
 	public static final String VOICE_ACCEPT_CLOSE = "</voice_accept>";
 	public static final String VOICE_REJECT_TAG = "<voice_reject/>";
 
+	// Video call tags
+	public static final String VIDEO_CALL_START_TAG = "<VIDEO_CALL_START>";
+	public static final String VIDEO_CALL_END_TAG = "<VIDEO_CALL_END>";
+
 	// Auth tags
 	public static final String REGISTER_TAG = "REGISTER";
 	public static final String REGISTER_OK = "REGISTER_OK";
@@ -0,0 +1,134 @@
+package server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import data.Peer;
+
+public class ClusterStateTest {
+
+	private static final long TOMBSTONE_TTL = 60_000;
+
+	private final PeerRegistry registryA = new PeerRegistry();
+	private final PeerRegistry registryB = new PeerRegistry();
+	private final ClusterState a = new ClusterState("a", registryA, TOMBSTONE_TTL);
+	private final ClusterState b = new ClusterState("b", registryB, TOMBSTONE_TTL);
+
+	private static Peer peer(String name) {
+		Peer peer = new Peer();
+		peer.setPeer(name, "10.0.0.1", 10001);
+		return peer;
+	}
+
+	private static List<ClusterState.Entry> all(ClusterState state) {
+		List<Integer> buckets = new ArrayList<>();
+		for (int i = 0; i < ClusterState.BUCKETS; i++) {
+			buckets.add(i);
+		}
+		return state.entriesIn(buckets);
+	}
+
+	@Test
+	public void claimRefusesANameOnline() {
+		assertTrue(a.claim(peer("alice"), "a"));
+		assertFalse(a.claim(peer("alice"), "b"));
+		assertEquals("a", a.entryOf("alice").server());
+	}
+
+	@Test
+	public void evictLogsOutClientsOfTheFailedNodeNotItsShard() {
+		// Both names are in a's shard; only alice is connected through b
+		a.claim(peer("alice"), "b");
+		a.claim(peer("bob"), "a");
+		assertEquals(0, a.evict("c"));
+		assertEquals(1, a.evict("b"));
+		assertFalse(registryA.contains("alice"));
+		assertTrue(registryA.contains("bob"));
+		assertFalse(a.entryOf("alice").alive());
+	}
+
+	@Test
+	public void releaseOnlyFromTheServingNode() {
+		a.claim(peer("alice"), "b");
+		assertNull(a.release("alice", "c"));
+		assertTrue(registryA.contains("alice"));
+		assertNotNull(a.release("alice", "b"));
+		assertFalse(registryA.contains("alice"));
+	}
+
+	@Test
+	public void reclaimMovesTheClientToItsNewNode() {
+		a.claim(peer("alice"), "b");
+		a.reclaim(peer("alice"), "c");
+		assertEquals("c", a.entryOf("alice").server());
+		assertEquals("a", a.entryOf("alice").owner());
+		assertEquals(0, a.evict("b"));
+		assertNull(a.release("alice", "b"));
+		assertTrue(registryA.contains("alice"));
+	}
+
+	@Test
+	public void mergeConvergesOnTheLatestWrite() {
+		a.attach("alice");
+		a.claim(peer("alice"), "a");
+		assertEquals(1, b.merge(all(a)));
+		assertTrue(registryB.contains("alice"));
+		List<ClusterState.Entry> online = all(a);
+
+		a.detach("alice");
+		a.release("alice", "a");
+		b.merge(all(a));
+		assertFalse(registryB.contains("alice"));
+
+		// An older write arriving late changes nothing
+		assertEquals(0, b.merge(online));
+		assertFalse(registryB.contains("alice"));
+		assertArrayEquals(a.digests(), b.digests());
+	}
+
+	@Test
+	public void mergeDropsAClientLeftFromBeforeARestart() {
+		// b restarted: nothing is attached, so its old client is gone
+		b.merge(List.of(new ClusterState.Entry("alice", 5, "a", "b", "10.0.0.1", 10001, 0)));
+		assertFalse(registryB.contains("alice"));
+		ClusterState.Entry entry = b.entryOf("alice");
+		assertFalse(entry.alive());
+		assertTrue(entry.clock() > 5);
+	}
+
+	@Test
+	public void mergeKeepsTheOwnersWriteForAnAttachedClient() {
+		// The shard owner's reply to a forwarded claim
+		b.attach("alice");
+		b.merge(List.of(new ClusterState.Entry("alice", 5, "a", "b", "10.0.0.1", 10001, 0)));
+		assertTrue(registryB.contains("alice"));
+		assertEquals(5, b.entryOf("alice").clock());
+	}
+
+	@Test
+	public void mergeReassertsAnAttachedClientAgainstAMistakenEviction() {
+		b.attach("alice");
+		b.merge(List.of(new ClusterState.Entry("alice", 5, "a", "b", "10.0.0.1", 10001, 0)));
+		// a thought b was down
+		b.merge(List.of(new ClusterState.Entry("alice", 6, "a", "b", null, 0, System.currentTimeMillis())));
+		assertTrue(registryB.contains("alice"));
+		assertTrue(b.entryOf("alice").alive());
+		assertTrue(b.entryOf("alice").clock() > 6);
+	}
+
+	@Test
+	public void mergeIgnoresExpiredTombstones() {
+		long old = System.currentTimeMillis() - 2 * TOMBSTONE_TTL;
+		assertEquals(0, b.merge(List.of(new ClusterState.Entry("alice", 5, "a", "a", null, 0, old))));
+		assertNull(b.entryOf("alice"));
+	}
+}
@@ -0,0 +1,87 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import data.Peer;
+
+public class PeerRegistryTest {
+
+	private final PeerRegistry registry = new PeerRegistry();
+
+	private static Peer peer(String name, int port) {
+		Peer peer = new Peer();
+		peer.setPeer(name, "10.0.0.1", port);
+		return peer;
+	}
+
+	@Test
+	public void everyChangeBumpsTheVersionOnce() {
+		long start = registry.getVersion();
+		assertTrue(registry.add(peer("alice", 1)));
+		assertFalse(registry.add(peer("alice", 2)));
+		assertEquals(start + 1, registry.getVersion());
+		assertNull(registry.remove("bob"));
+		assertEquals(start + 1, registry.getVersion());
+		registry.put(peer("alice", 1));
+		assertEquals(start + 1, registry.getVersion());
+		registry.put(peer("alice", 2));
+		assertEquals(start + 2, registry.getVersion());
+	}
+
+	@Test
+	public void deltaHoldsTheNetChangesInOrder() {
+		long start = registry.getVersion();
+		registry.add(peer("alice", 1));
+		registry.add(peer("bob", 2));
+		registry.remove("alice");
+		registry.put(peer("bob", 3));
+
+		PeerRegistry.Delta delta = registry.changesSince(start);
+		assertEquals(registry.getVersion(), delta.version());
+		Map<String, Peer> changes = delta.changes();
+		assertEquals(List.of("alice", "bob"), List.copyOf(changes.keySet()));
+		assertNull(changes.get("alice"));
+		assertEquals(3, changes.get("bob").getPort());
+
+		assertEquals(List.of("bob"), List.copyOf(registry.changesSince(start + 3).changes().keySet()));
+		assertTrue(registry.changesSince(registry.getVersion()).changes().isEmpty());
+	}
+
+	@Test
+	public void unknownVersionsHaveNoDelta() {
+		registry.add(peer("alice", 1));
+		long version = registry.getVersion();
+		// Before this run: the client must take a full reset
+		assertNull(registry.changesSince(0));
+		assertNull(registry.changesSince(version - 2));
+		assertNull(registry.changesSince(version + 1));
+	}
+
+	@Test
+	public void deltaOlderThanTheChangeLogIsDropped() {
+		long start = registry.getVersion();
+		for (int i = 0; i < 5000; i++) {
+			registry.add(peer("user" + i, i));
+		}
+		assertNull(registry.changesSince(start));
+		assertEquals(100, registry.changesSince(registry.getVersion() - 100).changes().size());
+	}
+
+	@Test
+	public void changeListenersRunOnEveryChange() {
+		int[] calls = new int[1];
+		registry.addChangeListener(() -> calls[0]++);
+		registry.add(peer("alice", 1));
+		registry.add(peer("alice", 1));
+		registry.remove("alice");
+		assertEquals(2, calls[0]);
+	}
+}
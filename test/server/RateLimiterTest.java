@@ -0,0 +1,81 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+
+import org.junit.Test;
+
+import tags.Encode;
+import tags.Tags;
+
+public class RateLimiterTest {
+
+	private static final InetAddress HOST_A = InetAddress.getLoopbackAddress();
+	private static final InetAddress HOST_B;
+
+	static {
+		try {
+			HOST_B = InetAddress.getByAddress(new byte[] { 10, 0, 0, 2 });
+		} catch (Exception e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private static String login(String name) {
+		return Encode.getCreateAccount(name, "10001");
+	}
+
+	@Test
+	public void addressIsThrottledAfterItsBurst() {
+		// Refill is negligible at this rate
+		RateLimiter limiter = new RateLimiter(new RateLimiter.Config(0.001, 3, 0, 0));
+		for (int i = 0; i < 3; i++) {
+			assertTrue(limiter.allow(HOST_A, login("user" + i)));
+		}
+		assertFalse(limiter.allow(HOST_A, login("other")));
+		assertTrue(limiter.allow(HOST_B, login("other")));
+		assertEquals(1, limiter.getThrottledByIp());
+		assertEquals(0, limiter.getThrottledByUser());
+	}
+
+	@Test
+	public void usernameIsThrottledAcrossAddresses() {
+		RateLimiter limiter = new RateLimiter(new RateLimiter.Config(0, 0, 0.001, 2));
+		assertTrue(limiter.allow(HOST_A, login("alice")));
+		assertTrue(limiter.allow(HOST_B, Encode.sendRequest("alice", 1)));
+		assertFalse(limiter.allow(HOST_B, login("alice")));
+		assertTrue(limiter.allow(HOST_A, login("bob")));
+		// Messages naming no user only count against the address
+		assertTrue(limiter.allow(HOST_A, Encode.sendSubscribe(0)));
+		assertEquals(1, limiter.getThrottledByUser());
+	}
+
+	@Test
+	public void bucketRefillsOverTime() throws InterruptedException {
+		RateLimiter limiter = new RateLimiter(new RateLimiter.Config(20, 1, 0, 0));
+		assertTrue(limiter.allow(HOST_A, "x"));
+		assertFalse(limiter.allow(HOST_A, "x"));
+		Thread.sleep(100);
+		assertTrue(limiter.allow(HOST_A, "x"));
+	}
+
+	@Test
+	public void zeroRateDisablesALimit() {
+		RateLimiter limiter = new RateLimiter(new RateLimiter.Config(0, 0, 0, 0));
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(limiter.allow(HOST_A, login("alice")));
+		}
+	}
+
+	@Test
+	public void nameIsCutOutWithoutParsing() {
+		assertEquals("alice", RateLimiter.extractName(login("alice")));
+		assertEquals("alice", RateLimiter.extractName(Encode.sendRequest("alice", 42)));
+		assertNull(RateLimiter.extractName(Encode.sendSubscribe(0)));
+		assertNull(RateLimiter.extractName(login("alice").replace(Tags.PEER_NAME_CLOSE_TAG, "")));
+	}
+}
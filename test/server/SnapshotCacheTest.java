@@ -0,0 +1,66 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StreamCorruptedException;
+import java.util.List;
+
+import org.junit.Test;
+
+import data.Peer;
+import tags.BinaryCodec;
+import tags.Decode;
+
+public class SnapshotCacheTest {
+
+	private final PeerRegistry registry = new PeerRegistry();
+	private final SnapshotCache cache = new SnapshotCache(registry);
+
+	private static Peer peer(String name) {
+		Peer peer = new Peer();
+		peer.setPeer(name, "10.0.0.1", 10001);
+		return peer;
+	}
+
+	private static Decode.PresenceDelta decode(WireFrame frame) throws StreamCorruptedException {
+		return Decode.getPresenceDelta(BinaryCodec.decode(frame.binary()).toTags());
+	}
+
+	@Test
+	public void snapshotIsSharedUntilTheNextChange() {
+		registry.add(peer("alice"));
+		WireFrame first = cache.get();
+		assertSame(first, cache.get());
+		registry.add(peer("bob"));
+		assertNotSame(first, cache.get());
+	}
+
+	@Test
+	public void deltaCarriesJoinsAndLeaves() throws StreamCorruptedException {
+		registry.add(peer("alice"));
+		long since = registry.getVersion();
+		registry.add(peer("bob"));
+		registry.remove("alice");
+
+		WireFrame frame = cache.getDelta(since);
+		assertSame(frame, cache.getDelta(since));
+		Decode.PresenceDelta delta = decode(frame);
+		assertEquals(since, delta.since());
+		assertEquals(registry.getVersion(), delta.version());
+		assertEquals("bob", delta.joined().get(0).getName());
+		assertEquals(List.of("alice"), delta.left());
+	}
+
+	@Test
+	public void unknownVersionGetsAFullReset() throws StreamCorruptedException {
+		registry.add(peer("alice"));
+		registry.add(peer("bob"));
+		Decode.PresenceDelta delta = decode(cache.getDelta(0));
+		assertTrue(delta.reset());
+		assertEquals(2, delta.joined().size());
+		assertEquals(registry.getVersion(), delta.version());
+	}
+}
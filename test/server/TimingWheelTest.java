@@ -0,0 +1,95 @@
+package server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+	private static final long TICK = 10;
+
+	// Wall-clock time each key expired at
+	private final Map<String, Long> expired = new ConcurrentHashMap<>();
+	private TimingWheel<String> wheel;
+
+	private TimingWheel<String> start(int wheelSize, long timeout) {
+		wheel = new TimingWheel<>("test-wheel", TICK, wheelSize, timeout,
+				key -> expired.put(key, System.currentTimeMillis()));
+		wheel.start();
+		return wheel;
+	}
+
+	private boolean awaitExpiry(String key, long maxMillis) throws InterruptedException {
+		long until = System.currentTimeMillis() + maxMillis;
+		while (!expired.containsKey(key) && System.currentTimeMillis() < until) {
+			Thread.sleep(5);
+		}
+		return expired.containsKey(key);
+	}
+
+	@After
+	public void stop() {
+		if (wheel != null) {
+			wheel.stop();
+		}
+	}
+
+	@Test
+	public void silentKeyExpiresAfterTheTimeout() throws InterruptedException {
+		start(16, 50);
+		long touched = System.currentTimeMillis();
+		wheel.touch("alice");
+		assertTrue(awaitExpiry("alice", 2000));
+		assertTrue(expired.get("alice") - touched >= 50 - TICK);
+		assertEquals(0, wheel.size());
+	}
+
+	@Test
+	public void touchingKeepsAKeyAlive() throws InterruptedException {
+		start(16, 80);
+		for (int i = 0; i < 10; i++) {
+			wheel.touch("alice");
+			Thread.sleep(20);
+		}
+		assertFalse(expired.containsKey("alice"));
+		assertTrue(awaitExpiry("alice", 2000));
+	}
+
+	@Test
+	public void deadlineSeveralRotationsAwayIsNotExpiredEarly() throws InterruptedException {
+		// 4 slots of 10 ms: the deadline is more than seven rotations away
+		start(4, 300);
+		long touched = System.currentTimeMillis();
+		wheel.touch("alice");
+		assertTrue(awaitExpiry("alice", 3000));
+		assertTrue(expired.get("alice") - touched >= 300 - TICK);
+	}
+
+	@Test
+	public void cancelledKeyNeverExpires() throws InterruptedException {
+		start(16, 30);
+		wheel.touch("alice");
+		wheel.touch("bob");
+		wheel.cancel("alice");
+		assertEquals(1, wheel.size());
+		assertTrue(awaitExpiry("bob", 2000));
+		Thread.sleep(100);
+		assertFalse(expired.containsKey("alice"));
+	}
+
+	@Test
+	public void absoluteDeadlineIsKept() {
+		TimingWheel<String> idle = new TimingWheel<>("idle-wheel", TICK, 16, 1000, key -> {
+		});
+		long deadline = System.currentTimeMillis() + 5000;
+		idle.touchUntil("alice", deadline);
+		assertTrue(Math.abs(idle.getDeadline("alice") - deadline) <= TICK);
+		assertEquals(-1, idle.getDeadline("bob"));
+	}
+}
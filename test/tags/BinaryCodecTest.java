@@ -0,0 +1,127 @@
+package tags;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import data.Peer;
+
+public class BinaryCodecTest {
+
+	// What the registry hands out: wall clock shifted left by 20 bits
+	private static final long VERSION = 1_879_381_137_608_938_376L;
+
+	private static Peer peer(String name, String host, int port) {
+		Peer peer = new Peer();
+		peer.setPeer(name, host, port);
+		return peer;
+	}
+
+	private static BinaryCodec.Frame roundTrip(String msg) throws IOException {
+		BinaryCodec.Frame frame = BinaryCodec.decode(BinaryCodec.encode(msg));
+		assertEquals(msg, frame.toTags());
+		return frame;
+	}
+
+	@Test
+	public void keepAliveWithNineteenDigitVersionKeepsItsOpcode() throws IOException {
+		String msg = Encode.sendRequest("alice", VERSION);
+		assertEquals(BinaryCodec.Opcode.KEEP_ALIVE, BinaryCodec.toFrame(msg).opcode());
+		assertEquals(String.valueOf(VERSION), roundTrip(msg).field(1));
+	}
+
+	@Test
+	public void subscribeAtLongMaxKeepsItsOpcode() throws IOException {
+		String msg = Encode.sendSubscribe(Long.MAX_VALUE);
+		assertEquals(BinaryCodec.Opcode.PRESENCE_SUBSCRIBE, roundTrip(msg).opcode());
+	}
+
+	@Test
+	public void deltaWithNineteenDigitVersionsKeepsItsOpcode() throws IOException {
+		String msg = Encode.getPresenceDelta(VERSION, VERSION + 2,
+				List.of(peer("alice", "10.0.0.1", 10001), peer("bob", "10.0.0.2", 10002)), List.of("carol"));
+		BinaryCodec.Frame frame = roundTrip(msg);
+		assertEquals(BinaryCodec.Opcode.SESSION_DELTA, frame.opcode());
+		assertEquals(String.valueOf(VERSION + 2), frame.field(0));
+	}
+
+	@Test
+	public void resetDeltaRoundTrips() throws IOException {
+		String msg = Encode.getPresenceDelta(-1, VERSION, List.of(peer("alice", "10.0.0.1", 10001)), List.of());
+		assertEquals(BinaryCodec.Opcode.SESSION_DELTA, roundTrip(msg).opcode());
+	}
+
+	@Test
+	public void numbersThatDoNotFitALongStayText() throws IOException {
+		String over = Encode.sendRequest("alice", Long.MAX_VALUE).replace(String.valueOf(Long.MAX_VALUE),
+				"9223372036854775808");
+		assertEquals(BinaryCodec.Opcode.TEXT, roundTrip(over).opcode());
+		String twenty = Encode.sendSubscribe(0).replace(">0<", ">10000000000000000000<");
+		assertEquals(BinaryCodec.Opcode.TEXT, roundTrip(twenty).opcode());
+	}
+
+	@Test
+	public void nonCanonicalNumbersStayText() throws IOException {
+		assertEquals(BinaryCodec.Opcode.TEXT, roundTrip(Encode.sendSubscribe(7).replace(">7<", ">007<")).opcode());
+		assertEquals(BinaryCodec.Opcode.TEXT, roundTrip(Encode.sendSubscribe(7).replace(">7<", ">-7<")).opcode());
+	}
+
+	@Test
+	public void sessionAcceptRoundTrips() throws IOException {
+		String msg = Encode.getSessionAccept(List.of(peer("alice", "10.0.0.1", 10001), peer("bob", "::1", 10002)));
+		assertEquals(BinaryCodec.Opcode.SESSION_ACCEPT, roundTrip(msg).opcode());
+	}
+
+	@Test
+	public void fixedTagsGetTheirOwnOpcode() throws IOException {
+		assertEquals(BinaryCodec.Opcode.SESSION_DENY, roundTrip(Tags.SESSION_DENY_TAG).opcode());
+		assertEquals(BinaryCodec.Opcode.SESSION_BUSY, roundTrip(Tags.SESSION_BUSY_TAG).opcode());
+		assertEquals(2, BinaryCodec.encode(Tags.SESSION_BUSY_TAG).length);
+	}
+
+	@Test
+	public void unknownMessagesRoundTripAsText() throws IOException {
+		assertEquals(BinaryCodec.Opcode.TEXT, roundTrip("plain text, <not a tag").opcode());
+		assertEquals(BinaryCodec.Opcode.TEXT, roundTrip("").opcode());
+	}
+
+	@Test
+	public void fileChunkKeepsItsBytes() throws IOException {
+		byte[] data = { 1, 2, 3, 4, 5, 6 };
+		BinaryCodec.Frame frame = BinaryCodec.decode(BinaryCodec.encodeChunk(data, 1, 4));
+		assertEquals(BinaryCodec.Opcode.FILE_CHUNK, frame.opcode());
+		assertArrayEquals(new byte[] { 2, 3, 4, 5 }, frame.data());
+	}
+
+	@Test
+	public void framesReadBackToBackFromABufferAndAStream() throws IOException {
+		byte[] a = BinaryCodec.encode(Encode.sendRequest("alice", VERSION));
+		byte[] b = BinaryCodec.encode(Tags.SESSION_DENY_TAG);
+		byte[] both = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, both, a.length, b.length);
+
+		ByteBuffer buf = ByteBuffer.wrap(both);
+		assertEquals(BinaryCodec.Opcode.KEEP_ALIVE, BinaryCodec.next(buf).opcode());
+		assertEquals(BinaryCodec.Opcode.SESSION_DENY, BinaryCodec.next(buf).opcode());
+		assertTrue(!buf.hasRemaining());
+
+		ByteArrayInputStream in = new ByteArrayInputStream(both);
+		assertEquals(BinaryCodec.Opcode.KEEP_ALIVE, BinaryCodec.read(in).opcode());
+		assertEquals(BinaryCodec.Opcode.SESSION_DENY, BinaryCodec.read(in).opcode());
+	}
+
+	@Test(expected = StreamCorruptedException.class)
+	public void truncatedFrameIsRejected() throws IOException {
+		byte[] frame = BinaryCodec.encode(Encode.sendRequest("alice", VERSION));
+		BinaryCodec.decode(Arrays.copyOf(frame, frame.length - 1));
+	}
+}
@@ -0,0 +1,138 @@
+package tags;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import data.Peer;
+import data.PeerList;
+
+public class DecodeTest {
+
+	// What the registry hands out: wall clock shifted left by 20 bits
+	private static final long VERSION = 1_879_381_137_608_938_376L;
+
+	private static Peer peer(String name, String host, int port) {
+		Peer peer = new Peer();
+		peer.setPeer(name, host, port);
+		return peer;
+	}
+
+	@Test
+	public void keepAliveCarriesNineteenDigitVersion() {
+		Decode.KeepAlivePayload keepAlive = Decode.getKeepAlivePayload(Encode.sendRequest("alice", VERSION));
+		assertEquals("alice", keepAlive.name());
+		assertTrue(keepAlive.online());
+		assertEquals(VERSION, keepAlive.version());
+	}
+
+	@Test
+	public void keepAliveAtLongMaxIsAccepted() {
+		assertEquals(Long.MAX_VALUE, Decode.getKeepAlivePayload(Encode.sendRequest("alice", Long.MAX_VALUE)).version());
+	}
+
+	@Test
+	public void keepAliveVersionPastLongMaxIsRejected() {
+		String msg = Encode.sendRequest("alice", Long.MAX_VALUE).replace(String.valueOf(Long.MAX_VALUE),
+				"9223372036854775808");
+		assertNull(Decode.getKeepAlivePayload(msg));
+	}
+
+	@Test
+	public void unversionedKeepAliveAndExit() {
+		assertEquals(-1, Decode.getKeepAlivePayload(Encode.sendRequest("alice")).version());
+		assertFalse(Decode.getKeepAlivePayload(Encode.exit("alice")).online());
+	}
+
+	@Test
+	public void presenceDeltaWithNineteenDigitVersions() {
+		String msg = Encode.getPresenceDelta(VERSION, VERSION + 3,
+				List.of(peer("alice", "10.0.0.1", 10001), peer("bob", "10.0.0.2", 10002)), List.of("carol"));
+		Decode.PresenceDelta delta = Decode.getPresenceDelta(msg);
+		assertEquals(VERSION, delta.since());
+		assertEquals(VERSION + 3, delta.version());
+		assertFalse(delta.reset());
+		assertEquals(2, delta.joined().size());
+		assertEquals("bob", delta.joined().get(1).getName());
+		assertEquals("10.0.0.2", delta.joined().get(1).getHost());
+		assertEquals(10002, delta.joined().get(1).getPort());
+		assertEquals(List.of("carol"), delta.left());
+	}
+
+	@Test
+	public void resetDelta() {
+		Decode.PresenceDelta delta = Decode.getPresenceDelta(Encode.getPresenceDelta(-1, VERSION,
+				List.of(peer("alice", "10.0.0.1", 10001)), List.of()));
+		assertTrue(delta.reset());
+		assertEquals(1, delta.joined().size());
+	}
+
+	@Test
+	public void malformedDeltaIsRejected() {
+		String msg = Encode.getPresenceDelta(VERSION, VERSION + 1, List.of(), List.of("carol"));
+		assertNull(Decode.getPresenceDelta(msg.replace(Tags.LEAVE_CLOSE_TAG, "")));
+		assertNull(Decode.getPresenceDelta(msg.replace(String.valueOf(VERSION + 1), "12x")));
+	}
+
+	@Test
+	public void subscribeVersion() {
+		assertEquals(Long.MAX_VALUE, Decode.getSubscribeVersion(Encode.sendSubscribe(Long.MAX_VALUE)));
+		assertEquals(0, Decode.getSubscribeVersion(Encode.sendSubscribe(0)));
+		assertEquals(-1, Decode.getSubscribeVersion(
+				Encode.sendSubscribe(0).replace(">0<", ">10000000000000000000<")));
+	}
+
+	@Test
+	public void escapedChatTextComesBackIntact() {
+		String text = "a </CHAT_MSG> & <b>\nsecond line";
+		assertEquals(text, Decode.getMessage(Encode.sendMessage(text)));
+		Decode.EditPayload edit = Decode.getEditPayload(Encode.sendEdit("<old>", "new & improved"));
+		assertEquals("<old>", edit.oldText());
+		assertEquals("new & improved", edit.newText());
+	}
+
+	@Test
+	public void peerListDecodesIntoReusableList() {
+		PeerList peers = new PeerList();
+		String msg = Encode.getSessionAccept(List.of(peer("alice", "10.0.0.1", 10001), peer("bob", "10.0.0.2", 10002)));
+		assertTrue(Decode.getAllUser(msg, peers));
+		assertEquals(2, peers.size());
+		assertEquals("alice", peers.getName(0));
+		assertEquals(10002, peers.getPort(1));
+
+		assertFalse(Decode.getAllUser(msg.replace(Tags.SESSION_ACCEPT_CLOSE_TAG, ""), peers));
+		assertEquals(0, peers.size());
+	}
+
+	@Test
+	public void badPeerEntryIsSkippedNotTheWholeList() {
+		PeerList peers = new PeerList();
+		String msg = Encode.getSessionAccept(List.of(peer("a<b", "10.0.0.9", 10009), peer("alice", "10.0.0.1", 10001),
+				peer("carol", "10.0.0.3", 10003), peer("bob", "10.0.0.2", 10002)));
+		msg = msg.replace("10003", "port");
+		assertTrue(Decode.getAllUser(msg, peers));
+		assertEquals(2, peers.size());
+		assertEquals("alice", peers.getName(0));
+		assertEquals("bob", peers.getName(1));
+
+		Decode.PresenceDelta delta = Decode.getPresenceDelta(Encode.getPresenceDelta(VERSION, VERSION + 1,
+				List.of(peer("a<b", "10.0.0.9", 10009), peer("alice", "10.0.0.1", 10001)), List.of("carol")));
+		assertEquals(1, delta.joined().size());
+		assertEquals("alice", delta.joined().get(0).getName());
+		assertEquals(List.of("carol"), delta.left());
+	}
+
+	@Test
+	public void loginRequest() {
+		assertEquals(List.of("alice", "10001"), Decode.getUser(Encode.getCreateAccount("alice", "10001")));
+		assertNull(Decode.getUser(Encode.getCreateAccount("alice", "port")));
+		assertNull(Decode.getUser(Encode.getCreateAccount("a<b", "123")));
+		assertNull(Decode.getUser(Encode.getCreateAccount("a>b", "123")));
+		assertNull(Decode.getUser(Encode.getCreateAccount("", "123")));
+	}
+}
@@ -0,0 +1,129 @@
+package tags;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+import data.Peer;
+
+public class FrameCompressorTest {
+
+	private final FrameCompressor.Metrics metrics = new FrameCompressor.Metrics();
+	private final FrameCompressor compressor = new FrameCompressor(FrameCompressor.DEFAULT_THRESHOLD, metrics);
+
+	private static String peerList(int count) {
+		List<Peer> peers = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			Peer peer = new Peer();
+			peer.setPeer("user" + i, "10.0." + (i / 256) + "." + (i % 256), 10000 + i);
+			peers.add(peer);
+		}
+		return Encode.getSessionAccept(peers);
+	}
+
+	// DEFLATED frame around a body compressed here, not by the compressor
+	private static BinaryCodec.Frame deflated(int size, byte[] body) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+		deflater.setInput(body);
+		deflater.finish();
+		byte[] out = new byte[body.length + 64];
+		int n = deflater.deflate(out);
+		deflater.end();
+		return new BinaryCodec.Frame(BinaryCodec.Opcode.DEFLATED, new String[] { String.valueOf(size) },
+				Arrays.copyOf(out, n));
+	}
+
+	@Test
+	public void smallFrameGoesAsItIs() {
+		byte[] frame = BinaryCodec.encode(Tags.SESSION_DENY_TAG);
+		assertSame(frame, compressor.compress(frame));
+		assertEquals(1, metrics.getSkippedFrames());
+		assertEquals(0, metrics.getCompressedFrames());
+	}
+
+	@Test
+	public void largeFrameCompressesAndInflatesBack() throws StreamCorruptedException {
+		String msg = peerList(200);
+		byte[] frame = BinaryCodec.encode(msg);
+		byte[] compressed = compressor.compress(frame);
+		assertTrue(compressed.length < frame.length);
+
+		BinaryCodec.Frame decoded = BinaryCodec.decode(compressed);
+		assertEquals(BinaryCodec.Opcode.DEFLATED, decoded.opcode());
+		assertEquals(msg, compressor.inflate(decoded).toTags());
+
+		assertEquals(1, metrics.getCompressedFrames());
+		assertEquals(1, metrics.getInflatedFrames());
+		assertTrue(metrics.getRatio() < 1);
+		assertEquals(frame.length - BinaryCodec.bodyOffset(frame), metrics.getRawBytes());
+	}
+
+	@Test
+	public void framesAreCompressedIndependently() throws StreamCorruptedException {
+		String msg = peerList(50);
+		byte[] first = compressor.compress(BinaryCodec.encode(msg));
+		compressor.compress(BinaryCodec.encode(peerList(80)));
+		assertArrayEquals(first, compressor.compress(BinaryCodec.encode(msg)));
+
+		// A shared frame compressed for one connection inflates on any other
+		FrameCompressor other = new FrameCompressor(FrameCompressor.DEFAULT_THRESHOLD, metrics);
+		assertEquals(msg, other.inflate(BinaryCodec.decode(first)).toTags());
+	}
+
+	@Test
+	public void incompressibleFrameGoesAsItIs() {
+		byte[] data = new byte[4096];
+		new Random(1).nextBytes(data);
+		byte[] frame = BinaryCodec.encodeChunk(data, 0, data.length);
+		assertSame(frame, compressor.compress(frame));
+		assertEquals(1, metrics.getSkippedFrames());
+	}
+
+	@Test
+	public void uncompressedFramePassesThroughInflate() throws StreamCorruptedException {
+		BinaryCodec.Frame frame = BinaryCodec.toFrame(Tags.SESSION_DENY_TAG);
+		assertSame(frame, compressor.inflate(frame));
+		assertSame(frame, FrameCompressor.requireUncompressed(frame));
+	}
+
+	@Test(expected = StreamCorruptedException.class)
+	public void wrongSizeIsRejected() throws StreamCorruptedException {
+		byte[] frame = BinaryCodec.encode(peerList(20));
+		byte[] body = Arrays.copyOfRange(frame, BinaryCodec.bodyOffset(frame), frame.length);
+		compressor.inflate(deflated(body.length + 1, body));
+	}
+
+	@Test(expected = StreamCorruptedException.class)
+	public void hugeSizeIsRejectedBeforeAllocating() throws StreamCorruptedException {
+		compressor.inflate(deflated(Integer.MAX_VALUE, new byte[] { 1 }));
+	}
+
+	@Test(expected = StreamCorruptedException.class)
+	public void corruptDataIsRejected() throws StreamCorruptedException {
+		compressor.inflate(new BinaryCodec.Frame(BinaryCodec.Opcode.DEFLATED, new String[] { "100" },
+				new byte[] { (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0 }));
+	}
+
+	@Test(expected = StreamCorruptedException.class)
+	public void nestedCompressedFrameIsRejected() throws StreamCorruptedException {
+		byte[] inner = BinaryCodec.encodeDeflated(10, new byte[] { 1, 2, 3 }, 3);
+		byte[] body = Arrays.copyOfRange(inner, BinaryCodec.bodyOffset(inner), inner.length);
+		compressor.inflate(deflated(body.length, body));
+	}
+
+	@Test(expected = StreamCorruptedException.class)
+	public void compressedFrameWithoutTheCapabilityIsRejected() throws StreamCorruptedException {
+		byte[] frame = compressor.compress(BinaryCodec.encode(peerList(200)));
+		FrameCompressor.requireUncompressed(BinaryCodec.decode(frame));
+	}
+}
@@ -0,0 +1,79 @@
+package tags;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class HandshakeTest {
+
+	@After
+	public void clearDisable() {
+		System.clearProperty("vku.protocol.disable");
+	}
+
+	@Test
+	public void negotiateTakesLowerVersionAndCommonCapabilities() {
+		Handshake mine = new Handshake(3, EnumSet.allOf(Handshake.Capability.class));
+		Handshake theirs = new Handshake(2, EnumSet.of(Handshake.Capability.BINARY));
+		Handshake agreed = mine.negotiate(theirs);
+		assertEquals(2, agreed.version());
+		assertEquals(Set.of(Handshake.Capability.BINARY), agreed.capabilities());
+		assertEquals(agreed, theirs.negotiate(mine));
+	}
+
+	@Test
+	public void legacyPeerAgreesOnNothing() {
+		Handshake legacy = new Handshake(Handshake.LEGACY_VERSION, Set.of());
+		Handshake agreed = Handshake.local().negotiate(legacy);
+		assertEquals(Handshake.LEGACY_VERSION, agreed.version());
+		assertFalse(agreed.has(Handshake.Capability.BINARY));
+	}
+
+	@Test
+	public void localOfferHonoursDisabledCapabilities() {
+		assertTrue(Handshake.local().has(Handshake.Capability.DEFLATE));
+		System.setProperty("vku.protocol.disable", " Deflate ,unknown");
+		Handshake local = Handshake.local();
+		assertEquals(Handshake.PROTOCOL_VERSION, local.version());
+		assertTrue(local.has(Handshake.Capability.BINARY));
+		assertFalse(local.has(Handshake.Capability.DEFLATE));
+	}
+
+	@Test
+	public void helloRoundTrips() {
+		Handshake offer = Handshake.local();
+		assertEquals(offer, Decode.getHello(Encode.sendHello(offer)));
+		Handshake none = new Handshake(Handshake.PROTOCOL_VERSION, Set.of());
+		assertEquals(none, Decode.getHello(Encode.sendHello(none)));
+	}
+
+	@Test
+	public void unknownCapabilityTokensAreSkipped() {
+		String msg = Encode.sendHello(new Handshake(7, Set.of())).replace(Tags.CAPS_OPEN_TAG + Tags.CAPS_CLOSE_TAG,
+				Tags.CAPS_OPEN_TAG + "zstd, binary,,teleport" + Tags.CAPS_CLOSE_TAG);
+		Handshake hello = Decode.getHello(msg);
+		assertEquals(7, hello.version());
+		assertEquals(Set.of(Handshake.Capability.BINARY), hello.capabilities());
+	}
+
+	@Test
+	public void helloBelowLegacyVersionIsRejected() {
+		assertNull(Decode.getHello(Encode.sendHello(new Handshake(0, Set.of()))));
+		assertNull(Decode.getHello(Tags.SESSION_DENY_TAG));
+	}
+
+	@Test
+	public void chatAcceptCarriesTheOffer() {
+		Handshake offer = Handshake.local();
+		assertEquals(offer, Decode.getChatAcceptHello(Encode.sendChatAccept(offer)));
+		assertNull(Decode.getChatAcceptHello(Tags.CHAT_ACCEPT_TAG));
+		assertNull(Decode.getChatAcceptHello(Tags.CHAT_DENY_TAG));
+	}
+}
@@ -0,0 +1,52 @@
+package tags;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.EnumSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MessageStreamTest {
+
+	private Socket client;
+	private Socket server;
+	private MessageStream out;
+	private MessageStream in;
+
+	@Before
+	public void connect() throws IOException {
+		try (ServerSocket listener = new ServerSocket(0)) {
+			client = new Socket("localhost", listener.getLocalPort());
+			server = listener.accept();
+		}
+		out = new MessageStream(client);
+		in = new MessageStream(server);
+	}
+
+	@After
+	public void close() throws IOException {
+		client.close();
+		server.close();
+	}
+
+	@Test
+	public void legacyLinkCarriesRawText() throws IOException {
+		out.write(Encode.sendMessage("a < b & c"));
+		assertEquals(Tags.CHAT_MSG_OPEN_TAG + "a < b & c" + Tags.CHAT_MSG_CLOSE_TAG, in.readString());
+	}
+
+	@Test
+	public void escapeLinkKeepsEntities() throws IOException {
+		out.upgradeOutput(new Handshake(Handshake.PROTOCOL_VERSION, EnumSet.of(Handshake.Capability.ESCAPE)));
+		String msg = Encode.sendMessage("a < b & c");
+		out.write(msg);
+		String received = in.readString();
+		assertEquals(msg, received);
+		assertEquals("a < b & c", Decode.getMessage(received));
+	}
+}